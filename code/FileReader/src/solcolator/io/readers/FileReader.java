@@ -1,33 +1,66 @@
 package solcolator.io.readers;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
-import solcolator.io.api.IQueryReader;
+import solcolator.io.api.IQueryChangeListener;
+import solcolator.io.api.IWatchableQueryReader;
 import solcolator.io.api.SolcolatorQuery;
+import solcolator.io.api.SolcolatorQueryChanges;
 
 /**
  * NOTE! IT'S A BASIC IMPLEMENTATION ONLY. DON'T USE THIS READER IN PRODUCTION ENVIRONMENT WITHOUT ADDITIONAL TESTS!
  * 
  * Query reader from json file
+ * The file is streamed record by record, so memory doesn't grow with the file size. While reading, an index
+ * between query id and position of its record in the file is built, so a single query (UPDATE command) is read
+ * from its mapped record only. The index is rebuilt once the file modification time or size is changed
+ * 
+ * Queries may be changed by an append-only change log (optional): a json record per line with a sequence number (starting from 1),
+ * upsert/delete operation and the query. The change log is applied on top of the queries file (records with a sequence number
+ * which was already applied are skipped). In watch mode (optional, false by default) the queries file and the change log
+ * are watched by the file system watch service: appended records are applied incrementally, a rewritten queries file
+ * (or truncated change log) is read again, and only changed queries are updated. Changes are coalesced until the files
+ * are quiet for watchCoalesceMs
  * 
  * File Reader Config:
  * <lst name="reader">
 		<str name="class">solcolator.io.readers.FileReader</str>
 		<str name="filePath">[full path to file with queries]</str>
+		<str name="changeLogPath">[full path to change log of queries (optional)]</str>
+		<bool name="watch">false</bool>
+		<long name="watchCoalesceMs">1000</long>
 	</lst>
  * 
  * Query file for example:
@@ -38,12 +71,38 @@ import solcolator.io.api.SolcolatorQuery;
 			"query": "q=price:[100 TO 200]"
 		}
    ]
+ * 
+ * Change log for example:
+ * {"seq": 1, "op": "upsert", "query_id": "2", "query_name": "test2", "query": "q=price:[200 TO 300]"}
+ * {"seq": 2, "op": "delete", "query_id": "1"}
  */
-public class FileReader implements IQueryReader {
+public class FileReader implements IWatchableQueryReader {
 	public static final String FILE_PATH = "filePath";
-	private final Type type = new TypeToken<FileQueryObject[]>() { }.getType();
+	public static final String CHANGE_LOG_PATH = "changeLogPath";
+	public static final String WATCH = "watch";
+	public static final String WATCH_COALESCE_MS = "watchCoalesceMs";
+	private static final Logger log = LoggerFactory.getLogger(FileReader.class);
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long DEFAULT_WATCH_COALESCE_MS = 1000;
+	private static final int MAX_COALESCE_FACTOR = 10;		// changes are notified after 10 * watchCoalesceMs even if the files aren't quiet
+	private static final String UPSERT_OP = "upsert";
+	private static final String DELETE_OP = "delete";
 	private final Gson gson = new Gson();
 	private File file;
+	private File changeLogFile;
+	private boolean watchEnabled;
+	private long watchCoalesceMs;
+	private volatile QueriesIndex index;
+	private WatchService watchService;
+	private Thread watcher;
+	
+	// state of the last read (guarded by this): queries file stamp, ids of read queries and the read part of the change log
+	private long readLastModified;
+	private long readSize;
+	private Set<String> readQueryIds;
+	private long changeLogOffset;
+	private long lastSeq;
+	private final Map<String, FileQueryObject> changeLogQueries = new HashMap<>();	// the latest record of query in the change log (null - deleted)
 	
 	@Override
 	public void init(NamedList<?> inputConfig) {
@@ -53,6 +112,13 @@ public class FileReader implements IQueryReader {
 		if (!file.exists()) {
 			throw new IllegalArgumentException(String.format("File %s doesn't exist", filePath));
 		}
+		
+		String changeLogPath = (String) inputConfig.get(CHANGE_LOG_PATH);
+		changeLogFile = changeLogPath == null ? null : new File(changeLogPath);
+		Boolean watch = (Boolean) inputConfig.get(WATCH);
+		watchEnabled = watch != null && watch;
+		Number coalesceMs = (Number) inputConfig.get(WATCH_COALESCE_MS);
+		watchCoalesceMs = coalesceMs == null ? DEFAULT_WATCH_COALESCE_MS : coalesceMs.longValue();
 	}
 	
 	@Override
@@ -61,55 +127,402 @@ public class FileReader implements IQueryReader {
 			return new ArrayList<SolcolatorQuery>();
 		}
 		
-		FileQueryObject[] queriesObjects;
-		List<SolcolatorQuery> solcolatorQueries;
 		String filePath = file.getAbsolutePath();
 		
 		try {
-			String fileContent = new String(Files.readAllBytes(Paths.get(filePath)), Charsets.UTF_8);
-			queriesObjects = gson.fromJson(fileContent, type);
-			
-			solcolatorQueries = new ArrayList<SolcolatorQuery>(queriesObjects.length);
-			for (int i = 0; i < queriesObjects.length; i++) {
-				FileQueryObject obj = queriesObjects[i];
-				solcolatorQueries.add(new SolcolatorQuery(obj.query_id, obj.query_name, obj.query, reqHandlerMetadata));
-			}			
+			return toSolcolatorQueries(readAllRecords().values(), reqHandlerMetadata);
 		} catch (Exception e) {
 			throw new ExceptionInInitializerError(String.format("Failed to read queries from file %s due to %s", filePath, e));
 		}
-
-		return solcolatorQueries;
 	}
 	
 	@Override
 	public SolcolatorQuery readByQueryId(String queryId, String queryName, Map<String, String> reqHandlerMetadata) throws IOException {
-		List<SolcolatorQuery> queries = readAllQueries(reqHandlerMetadata);
+		synchronized (this) {
+			if (changeLogQueries.containsKey(queryId)) {
+				FileQueryObject obj = changeLogQueries.get(queryId);
+				if (obj == null) {
+					throw new IOException(String.format("Query with id %s was deleted by the change log", queryId));
+				}
+				
+				return new SolcolatorQuery(obj.query_id, obj.query_name, obj.query, reqHandlerMetadata);
+			}
+		}
+		
+		FileQueryObject obj = readRecord(getIndex(), queryId);
+		if (!queryId.equals(obj.query_id)) {
+			obj = readRecord(rebuildIndex(), queryId);	// the file was changed within its modification time resolution
+		}
+
+		return new SolcolatorQuery(obj.query_id, obj.query_name, obj.query, reqHandlerMetadata);
+	}
+	
+	@Override
+	public boolean watch(IQueryChangeListener listener) throws IOException {
+		if (!watchEnabled) {
+			return false;
+		}
+		
+		Set<Path> watchedPaths = new HashSet<>();
+		watchedPaths.add(file.toPath().toAbsolutePath());
+		if (changeLogFile != null) {
+			watchedPaths.add(changeLogFile.toPath().toAbsolutePath());
+		}
+		
+		watchService = FileSystems.getDefault().newWatchService();
+		Set<Path> watchedDirs = new HashSet<>();
+		for (Path path : watchedPaths) {
+			if (watchedDirs.add(path.getParent())) {
+				path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			}
+		}
+		
+		watcher = new Thread(() -> watchFiles(watchedPaths, listener), "solcolator-file-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+		log.info(String.format("Files %s are watched, changes are coalesced for %d ms", watchedPaths, watchCoalesceMs));
+		
+		return true;
+	}
+	
+	@Override
+	public synchronized SolcolatorQueryChanges readChanges(Map<String, String> reqHandlerMetadata) throws IOException {
+		boolean fileChanged = readQueryIds == null || file.lastModified() != readLastModified || file.length() != readSize;
+		boolean changeLogTruncated = changeLogFile != null && changeLogFile.length() < changeLogOffset;
+		
+		if (fileChanged || changeLogTruncated) {
+			Set<String> deletedQueryIds = readQueryIds == null ? new HashSet<>() : readQueryIds;
+			Map<String, FileQueryObject> queries = readAllRecords();
+			deletedQueryIds.removeAll(queries.keySet());
+			log.info(String.format("Queries file was changed, %d queries were read again", queries.size()));
+			
+			return new SolcolatorQueryChanges(toSolcolatorQueries(queries.values(), reqHandlerMetadata), deletedQueryIds);
+		}
+		
+		List<SolcolatorQuery> upsertedQueries = new ArrayList<>();
+		List<String> deletedQueryIds = new ArrayList<>();
+		for (Entry<String, FileQueryObject> change : tailChangeLog().entrySet()) {
+			FileQueryObject obj = change.getValue();
+			if (obj == null) {
+				readQueryIds.remove(change.getKey());
+				deletedQueryIds.add(change.getKey());
+			} else {
+				readQueryIds.add(change.getKey());
+				upsertedQueries.add(new SolcolatorQuery(obj.query_id, obj.query_name, obj.query, reqHandlerMetadata));
+			}
+		}
+		
+		return new SolcolatorQueryChanges(upsertedQueries, deletedQueryIds);
+	}
+	
+	/**
+	 * Read the queries file and apply the whole change log on top of it
+	 * @return map between query id and its record
+	 * @throws IOException
+	 */
+	private synchronized Map<String, FileQueryObject> readAllRecords() throws IOException {
+		Map<String, FileQueryObject> queries = new LinkedHashMap<>();
+		long lastModified = file.lastModified();
+		long size = file.length();
+		QueriesIndex newIndex = new QueriesIndex(lastModified, size);
+		scanRecords((record, offset) -> {
+			FileQueryObject obj = parseRecord(record);
+			newIndex.add(obj.query_id, offset, record.length);
+			queries.put(obj.query_id, obj);
+		});
+		index = newIndex;
+		
+		changeLogQueries.clear();
+		changeLogOffset = 0;
+		lastSeq = 0;
+		for (Entry<String, FileQueryObject> change : tailChangeLog().entrySet()) {
+			if (change.getValue() == null) {
+				queries.remove(change.getKey());
+			} else {
+				queries.put(change.getKey(), change.getValue());
+			}
+		}
+		
+		readLastModified = lastModified;
+		readSize = size;
+		readQueryIds = new HashSet<>(queries.keySet());
+		
+		return queries;
+	}
+	
+	/**
+	 * Read complete records appended to the change log since the last read
+	 * @return map between query id and its latest record (null - deleted) in the order of changes
+	 * @throws IOException
+	 */
+	private Map<String, FileQueryObject> tailChangeLog() throws IOException {
+		Map<String, FileQueryObject> changes = new LinkedHashMap<>();
+		if (changeLogFile == null || !changeLogFile.exists()) {
+			return changes;
+		}
+		
+		try (FileChannel channel = FileChannel.open(changeLogFile.toPath(), StandardOpenOption.READ)) {
+			channel.position(changeLogOffset);
+			InputStream in = Channels.newInputStream(channel);
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			
+			for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+				int lineStart = 0;
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] == '\n') {
+						line.write(buffer, lineStart, i - lineStart);
+						changeLogOffset += line.size() + 1;
+						applyChangeLogRecord(line.toByteArray(), changes);
+						line.reset();
+						lineStart = i + 1;
+					}
+				}
+				
+				line.write(buffer, lineStart, read - lineStart);	// an incomplete record is read again by the next tail
+			}
+		}
+		
+		return changes;
+	}
+	
+	private void applyChangeLogRecord(byte[] line, Map<String, FileQueryObject> changes) {
+		String json = new String(line, Charsets.UTF_8).trim();
+		if (json.isEmpty()) {
+			return;
+		}
+		
+		ChangeLogRecord record = gson.fromJson(json, ChangeLogRecord.class);
+		if (record.seq <= lastSeq) {
+			log.warn(String.format("Change log record %d was already applied, it's skipped", record.seq));
+			return;
+		}
 		
-		List<SolcolatorQuery> foundQueries = queries.stream().filter(x -> x.getQueryId().equals(queryId)).collect(Collectors.toList());
+		if (record.seq != lastSeq + 1) {
+			log.warn(String.format("Change log records %d-%d are missing", lastSeq + 1, record.seq - 1));
+		}
+		
+		lastSeq = record.seq;
+		if (UPSERT_OP.equals(record.op)) {
+			changeLogQueries.put(record.query_id, record);
+			changes.put(record.query_id, record);
+		} else if (DELETE_OP.equals(record.op)) {
+			changeLogQueries.put(record.query_id, null);
+			changes.put(record.query_id, null);
+		} else {
+			log.warn(String.format("Change log record %d has unknown operation %s, it's skipped", record.seq, record.op));
+		}
+	}
+	
+	/**
+	 * Notify the listener once the watched files are quiet for watchCoalesceMs after a change (or after MAX_COALESCE_FACTOR * watchCoalesceMs)
+	 * @param watchedPaths - queries file and change log
+	 * @param listener - listener of changes
+	 */
+	private void watchFiles(Set<Path> watchedPaths, IQueryChangeListener listener) {
+		boolean pending = true;		// changes made since the queries were loaded
+		long firstChangeTime = System.currentTimeMillis();
+		
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				WatchKey key = watchService.poll(watchCoalesceMs, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW || watchedPaths.contains(((Path) key.watchable()).resolve((Path) event.context()))) {
+							firstChangeTime = pending ? firstChangeTime : System.currentTimeMillis();
+							pending = true;
+						}
+					}
+					
+					key.reset();
+				}
+				
+				if (pending && (key == null || System.currentTimeMillis() - firstChangeTime >= MAX_COALESCE_FACTOR * watchCoalesceMs)) {
+					pending = false;
+					listener.onQueriesChanged();
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			} catch (Exception e) {
+				log.error("Failed to notify changes of queries", e);
+			}
+		}
+	}
+	
+	private List<SolcolatorQuery> toSolcolatorQueries(Iterable<FileQueryObject> queriesObjects, Map<String, String> reqHandlerMetadata) {
+		List<SolcolatorQuery> solcolatorQueries = new ArrayList<SolcolatorQuery>();
+		for (FileQueryObject obj : queriesObjects) {
+			solcolatorQueries.add(new SolcolatorQuery(obj.query_id, obj.query_name, obj.query, reqHandlerMetadata));
+		}
+		
+		return solcolatorQueries;
+	}
+	
+	private FileQueryObject readRecord(QueriesIndex queriesIndex, String queryId) throws IOException {
+		RecordPosition position = queriesIndex.positions.get(queryId);
 		
-		if (foundQueries.isEmpty()) {
+		if (position == null) {
 			String errMsg = String.format("Query with id %s wasn't found", queryId);
 			
 			throw new IOException(errMsg);
 		}
 		
-		if (foundQueries.size() > 1) {
-			String errMsg = String.format("Were found %d queries with id %s", foundQueries.size(), queryId);
+		if (position.count > 1) {
+			String errMsg = String.format("Were found %d queries with id %s", position.count, queryId);
 			
 			throw new IOException(errMsg);
 		}
-
-		return foundQueries.get(0);
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (position.offset + position.length > channel.size()) {
+				return new FileQueryObject();	// the file was truncated, the index is stale
+			}
+			
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, position.offset, position.length);
+			byte[] record = new byte[position.length];
+			buffer.get(record);
+			
+			return parseRecord(record);
+		}
+	}
+	
+	/**
+	 * @return index of the current file, it's rebuilt if the file was changed since it was indexed
+	 * @throws IOException
+	 */
+	private QueriesIndex getIndex() throws IOException {
+		QueriesIndex current = index;
+		if (current != null && current.lastModified == file.lastModified() && current.size == file.length()) {
+			return current;
+		}
+		
+		return rebuildIndex();
+	}
+	
+	private synchronized QueriesIndex rebuildIndex() throws IOException {
+		long start = System.currentTimeMillis();
+		QueriesIndex newIndex = new QueriesIndex(file.lastModified(), file.length());
+		scanRecords((record, offset) -> newIndex.add(parseRecord(record).query_id, offset, record.length));
+		index = newIndex;
+		log.info(String.format("Index of %d queries of file %s was built in %d ms", newIndex.positions.size(), file.getAbsolutePath(), System.currentTimeMillis() - start));
+		
+		return newIndex;
+	}
+	
+	/**
+	 * Stream the json array of the file and pass each of its objects (raw bytes) with its offset in the file
+	 * @param consumer - consumer of records
+	 * @throws IOException
+	 */
+	private void scanRecords(IRecordConsumer consumer) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long position = 0;
+			long recordOffset = 0;
+			int depth = 0;
+			boolean inString = false;
+			boolean escaped = false;
+			
+			for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+				int recordStart = 0;
+				for (int i = 0; i < read; i++, position++) {
+					byte b = buffer[i];
+					if (depth == 0) {
+						if (b == '{') {			// '[', ',', ']' and whitespaces between records are skipped
+							depth = 1;
+							recordOffset = position;
+							recordStart = i;
+							record.reset();
+						}
+						
+						continue;
+					}
+					
+					if (inString) {
+						if (escaped) {
+							escaped = false;
+						} else if (b == '\\') {
+							escaped = true;
+						} else if (b == '"') {
+							inString = false;
+						}
+					} else if (b == '"') {
+						inString = true;
+					} else if (b == '{' || b == '[') {
+						depth++;
+					} else if ((b == '}' || b == ']') && --depth == 0) {
+						record.write(buffer, recordStart, i - recordStart + 1);
+						consumer.accept(record.toByteArray(), recordOffset);
+					}
+				}
+				
+				if (depth > 0) {
+					record.write(buffer, recordStart, read - recordStart);	// the record continues in the next buffer
+				}
+			}
+			
+			if (depth > 0) {
+				throw new IOException(String.format("Unexpected end of file %s", file.getAbsolutePath()));
+			}
+		}
+	}
+	
+	private FileQueryObject parseRecord(byte[] record) {
+		return gson.fromJson(new String(record, Charsets.UTF_8), FileQueryObject.class);
+	}
+	
+	private interface IRecordConsumer {
+		void accept(byte[] record, long offset) throws IOException;
+	}
+	
+	private static class QueriesIndex {
+		private final long lastModified;
+		private final long size;
+		private final Map<String, RecordPosition> positions = new HashMap<>();
+		
+		private QueriesIndex(long lastModified, long size) {
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+		
+		private void add(String queryId, long offset, int length) {
+			RecordPosition position = positions.get(queryId);
+			if (position == null) {
+				positions.put(queryId, new RecordPosition(offset, length));
+			} else {
+				position.count++;
+			}
+		}
+	}
+	
+	private static class RecordPosition {
+		private final long offset;
+		private final int length;
+		private int count = 1;
+		
+		private RecordPosition(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
 	}
 	
-	private class FileQueryObject {
+	private static class FileQueryObject {
 		public String query_id;
 		public String query_name;
 		public String query;
 	}
+	
+	private static class ChangeLogRecord extends FileQueryObject {
+		public long seq;
+		public String op;
+	}
 
 	@Override
 	public void close() throws Exception {
-		//Nothing to close
+		if (watcher != null) {
+			watcher.interrupt();
+			watchService.close();
+		}
 	}
 }
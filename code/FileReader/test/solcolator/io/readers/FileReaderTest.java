@@ -0,0 +1,293 @@
+package solcolator.io.readers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import solcolator.io.api.SolcolatorQuery;
+import solcolator.io.api.SolcolatorQueryChanges;
+
+public class FileReaderTest {
+	private final static Map<String, String> METADATA = Collections.emptyMap();
+	private final static int BUFFER_SIZE = 1 << 16;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private File changeLog;
+	private FileReader reader;
+
+	@After
+	public void tearDown() throws Exception {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void readAllQueriesReadsEveryRecord() throws Exception {
+		reader = createReader("[\n  " + record("1", "first", "q=title:a") + ",\n  " + record("2", "second", "q=title:b") + "\n]");
+
+		List<SolcolatorQuery> queries = reader.readAllQueries(METADATA);
+
+		assertEquals(2, queries.size());
+		assertQuery(queries.get(0), "1", "first", "q=title:a");
+		assertQuery(queries.get(1), "2", "second", "q=title:b");
+	}
+
+	@Test
+	public void bracesAndEscapesInsideStringsDontEndRecord() throws Exception {
+		String query = "q=title:\\\"a}b]\\\" AND text:\\\\ AND tag:{x TO y]";
+		reader = createReader("[" + record("1", "{name}", query) + "," + record("2", "\\\\", "q=*:*") + "]");
+
+		List<SolcolatorQuery> queries = reader.readAllQueries(METADATA);
+
+		assertEquals(2, queries.size());
+		assertQuery(queries.get(0), "1", "{name}", "q=title:\"a}b]\" AND text:\\ AND tag:{x TO y]");
+		assertQuery(queries.get(1), "2", "\\", "q=*:*");
+		assertQuery(reader.readByQueryId("1", null, METADATA), "1", "{name}", "q=title:\"a}b]\" AND text:\\ AND tag:{x TO y]");
+		assertQuery(reader.readByQueryId("2", null, METADATA), "2", "\\", "q=*:*");
+	}
+
+	@Test
+	public void recordsSplitAcrossBuffersAreRead() throws Exception {
+		StringBuilder content = new StringBuilder("[");
+		List<String> expectedQueries = new ArrayList<>();
+		// a record bigger than the buffer
+		String bigQuery = "q=title:" + repeat('a', BUFFER_SIZE + 100);
+		content.append(record("big", "big", bigQuery)).append(',');
+		expectedQueries.add(bigQuery);
+		// a record starting right before the buffer end
+		pad(content, 2 * BUFFER_SIZE - 5);
+		content.append(record("start", "start", "q=title:start")).append(',');
+		expectedQueries.add("q=title:start");
+		// an escape sequence split between buffers: the backslash is the last byte of a buffer
+		String prefix = "{\"query_id\":\"escape\",\"query_name\":\"n\",\"query\":\"q=";
+		pad(content, 3 * BUFFER_SIZE - 1 - prefix.length());
+		content.append(prefix).append("\\\"}\"},");
+		expectedQueries.add("q=\"}");
+		// a record ending right after the buffer end
+		String last = record("end", "end", "q=title:end");
+		pad(content, 4 * BUFFER_SIZE + 1 - last.length());
+		content.append(last).append(']');
+		expectedQueries.add("q=title:end");
+
+		reader = createReader(content.toString());
+		List<SolcolatorQuery> queries = reader.readAllQueries(METADATA);
+
+		assertEquals(4, queries.size());
+		for (int i = 0; i < queries.size(); i++) {
+			assertEquals(expectedQueries.get(i), queries.get(i).getQuery());
+		}
+
+		assertEquals(bigQuery, reader.readByQueryId("big", null, METADATA).getQuery());
+		assertEquals("q=title:start", reader.readByQueryId("start", null, METADATA).getQuery());
+		assertEquals("q=\"}", reader.readByQueryId("escape", null, METADATA).getQuery());
+		assertEquals("q=title:end", reader.readByQueryId("end", null, METADATA).getQuery());
+	}
+
+	@Test
+	public void multiByteCharactersKeepRecordOffsets() throws Exception {
+		reader = createReader("[" + record("1", "שאילתה", "q=title:אב") + "," + record("2", "second", "q=title:b") + "]");
+		reader.readAllQueries(METADATA);
+
+		assertQuery(reader.readByQueryId("1", null, METADATA), "1", "שאילתה", "q=title:אב");
+		assertQuery(reader.readByQueryId("2", null, METADATA), "2", "second", "q=title:b");
+	}
+
+	@Test(expected = ExceptionInInitializerError.class)
+	public void unterminatedRecordFailsLoad() throws Exception {
+		reader = createReader("[" + record("1", "first", "q=title:a") + ",{\"query_id\":\"2\",\"query\":\"q=}");
+
+		reader.readAllQueries(METADATA);
+	}
+
+	@Test
+	public void readByQueryIdReindexesChangedFile() throws Exception {
+		reader = createReader("[" + record("1", "first", "q=title:a") + "]");
+		reader.readAllQueries(METADATA);
+
+		write("[" + record("0", "zero", "q=title:z") + "," + record("1", "first", "q=title:changed") + "]");
+		if (!file.setLastModified(file.lastModified() + 2000)) {
+			fail("Modification time of the file wasn't changed");
+		}
+
+		assertQuery(reader.readByQueryId("1", null, METADATA), "1", "first", "q=title:changed");
+		assertQuery(reader.readByQueryId("0", null, METADATA), "0", "zero", "q=title:z");
+	}
+
+	@Test
+	public void readByQueryIdFailsOnMissingAndDuplicateIds() throws Exception {
+		reader = createReader("[" + record("1", "first", "q=title:a") + "," + record("1", "again", "q=title:b") + "]");
+		reader.readAllQueries(METADATA);
+
+		for (String queryId : new String[] { "1", "2" }) {
+			try {
+				reader.readByQueryId(queryId, null, METADATA);
+				fail(String.format("Query %s was read", queryId));
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void changeLogIsAppliedOnTopOfFile() throws Exception {
+		reader = createReader("[" + record("1", "first", "q=title:a") + "," + record("2", "second", "q=title:b") + "]",
+				changeLogRecord(1, "upsert", "3", "q=title:c") + "\n" + changeLogRecord(2, "delete", "1", null) + "\n");
+
+		List<SolcolatorQuery> queries = reader.readAllQueries(METADATA);
+
+		assertEquals(2, queries.size());
+		assertQuery(queries.get(0), "2", "second", "q=title:b");
+		assertQuery(queries.get(1), "3", "3", "q=title:c");
+		assertQuery(reader.readByQueryId("3", null, METADATA), "3", "3", "q=title:c");
+		try {
+			reader.readByQueryId("1", null, METADATA);
+			fail("Deleted query was read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void partialTrailingLineIsReadWhenCompleted() throws Exception {
+		reader = createReader("[" + record("1", "first", "q=title:a") + "]", changeLogRecord(1, "upsert", "2", "q=title:b") + "\n");
+		reader.readAllQueries(METADATA);
+
+		String record = changeLogRecord(2, "upsert", "3", "q=title:c");
+		appendChangeLog(record.substring(0, 10));
+		assertTrue(reader.readChanges(METADATA).isEmpty());
+
+		appendChangeLog(record.substring(10));
+		assertTrue(reader.readChanges(METADATA).isEmpty());	// the record isn't terminated yet
+
+		appendChangeLog("\n");
+		SolcolatorQueryChanges changes = reader.readChanges(METADATA);
+		assertEquals(1, changes.getUpsertedQueries().size());
+		assertQuery(changes.getUpsertedQueries().get(0), "3", "3", "q=title:c");
+		assertTrue(changes.getDeletedQueryIds().isEmpty());
+	}
+
+	@Test
+	public void seqGapsAreAppliedAndReplayedRecordsAreSkipped() throws Exception {
+		reader = createReader("[" + record("1", "first", "q=title:a") + "]", changeLogRecord(1, "upsert", "2", "q=title:b") + "\n");
+		reader.readAllQueries(METADATA);
+
+		appendChangeLog(changeLogRecord(3, "upsert", "3", "q=title:c") + "\n"
+				+ changeLogRecord(2, "delete", "3", null) + "\n"
+				+ changeLogRecord(3, "delete", "2", null) + "\n"
+				+ changeLogRecord(4, "delete", "1", null) + "\n");
+		SolcolatorQueryChanges changes = reader.readChanges(METADATA);
+
+		assertEquals(1, changes.getUpsertedQueries().size());
+		assertQuery(changes.getUpsertedQueries().get(0), "3", "3", "q=title:c");
+		assertEquals(Collections.singletonList("1"), new ArrayList<>(changes.getDeletedQueryIds()));
+		assertQuery(reader.readByQueryId("2", null, METADATA), "2", "2", "q=title:b");
+	}
+
+	@Test
+	public void truncatedChangeLogRereadsAllQueries() throws Exception {
+		reader = createReader("[" + record("1", "first", "q=title:a") + "]",
+				changeLogRecord(1, "upsert", "2", "q=title:b") + "\n" + changeLogRecord(2, "upsert", "3", "q=title:c") + "\n");
+		reader.readAllQueries(METADATA);
+
+		Files.write(changeLog.toPath(), (changeLogRecord(1, "upsert", "2", "q=title:b") + "\n").getBytes(StandardCharsets.UTF_8));
+		SolcolatorQueryChanges changes = reader.readChanges(METADATA);
+
+		assertEquals(2, changes.getUpsertedQueries().size());
+		assertEquals(Collections.singletonList("3"), new ArrayList<>(changes.getDeletedQueryIds()));
+	}
+
+	private FileReader createReader(String content) throws IOException {
+		return createReader(content, null);
+	}
+
+	/**
+	 * @param changeLogContent - content of the change log (null - no change log)
+	 */
+	private FileReader createReader(String content, String changeLogContent) throws IOException {
+		file = folder.newFile("queries.json");
+		write(content);
+
+		NamedList<Object> config = new NamedList<>();
+		config.add(FileReader.FILE_PATH, file.getAbsolutePath());
+		if (changeLogContent != null) {
+			changeLog = folder.newFile("queries.log");
+			appendChangeLog(changeLogContent);
+			config.add(FileReader.CHANGE_LOG_PATH, changeLog.getAbsolutePath());
+		}
+		FileReader fileReader = new FileReader();
+		fileReader.init(config);
+
+		return fileReader;
+	}
+
+	private void write(String content) throws IOException {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void appendChangeLog(String content) throws IOException {
+		Files.write(changeLog.toPath(), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * @param query - query as a json string content (already escaped)
+	 */
+	private static String record(String queryId, String queryName, String query) {
+		return String.format("{\"query_id\":\"%s\",\"query_name\":\"%s\",\"query\":\"%s\"}", queryId, queryName, query);
+	}
+
+	/**
+	 * @param query - query of upsert (null for delete), the query id is used as its name
+	 */
+	private static String changeLogRecord(long seq, String op, String queryId, String query) {
+		if (query == null) {
+			return String.format("{\"seq\":%d,\"op\":\"%s\",\"query_id\":\"%s\"}", seq, op, queryId);
+		}
+
+		return String.format("{\"seq\":%d,\"op\":\"%s\",\"query_id\":\"%s\",\"query_name\":\"%s\",\"query\":\"%s\"}", seq, op, queryId, queryId, query);
+	}
+
+	/**
+	 * Pad ascii content with whitespaces up to the given length
+	 */
+	private static void pad(StringBuilder content, int length) {
+		if (content.length() > length) {
+			throw new IllegalStateException(String.format("Content is already longer than %d", length));
+		}
+
+		content.append(repeat(' ', length - content.length()));
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+
+		return new String(chars);
+	}
+
+	private static void assertQuery(SolcolatorQuery query, String queryId, String queryName, String queryText) {
+		assertEquals(queryId, query.getQueryId());
+		assertEquals(queryName, query.getQueryName());
+		assertEquals(queryText, query.getQuery());
+	}
+}
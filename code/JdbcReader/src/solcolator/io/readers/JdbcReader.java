@@ -0,0 +1,542 @@
+package solcolator.io.readers;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import solcolator.io.api.IQueryChangeFeed;
+import solcolator.io.api.IQueryChangeListener;
+import solcolator.io.api.IWatchableQueryReader;
+import solcolator.io.api.SolcolatorQuery;
+import solcolator.io.api.SolcolatorQueryChanges;
+
+/**
+ * NOTE! IT'S A BASIC IMPLEMENTATION ONLY. DON'T USE THIS READER IN PRODUCTION ENVIRONMENT WITHOUT ADDITIONAL TESTS!
+ * 
+ * Query reader from a table of a relational database over JDBC
+ * Queries are read by keyset pagination (pages of pageSize rows ordered by the id column, each page is streamed by fetchSize),
+ * so the whole table is never materialized by the database or the driver. With a numeric id column, the table is split
+ * into partitions id ranges read in parallel. Rows with a set tombstone column (deletedColumn) are skipped.
+ * With updatedAtColumn (time or version of the last row change), the table is polled every pollIntervalMs for rows
+ * changed since the last read: changed rows are updated and tombstoned rows are deleted without REREAD
+ * (hard deleted rows are deleted by REREAD only). The same changes are provided as a change feed (see IQueryChangeFeed),
+ * its token is the (change value, id) of the last read row and rows are read strictly after it (keyset of updatedAtColumn and idColumn),
+ * so a poll without changes reads nothing. A row committed later with the same change value and a lower id than the last read row
+ * is missed until REREAD: the change value should be assigned at commit (e.g. a sequence or a trigger) or be unique.
+ * Rows with a NULL change value are read by REREAD only
+ * The JDBC driver has to be in the classpath (an embedded database like H2 or Derby is configured by its url only)
+ * 
+ * Jdbc Reader Config:
+ * <lst name="reader">
+		<str name="class">solcolator.io.readers.JdbcReader</str>
+		<str name="url">[jdbc url]</str>
+		<str name="user">[database user (optional)]</str>
+		<str name="password">[database password (optional)]</str>
+		<str name="table">[table of queries]</str>
+		<str name="idColumn">query_id</str>
+		<str name="nameColumn">query_name</str>
+		<str name="queryColumn">query</str>
+		<str name="updatedAtColumn">[column of the last row change (optional)]</str>
+		<str name="deletedColumn">[boolean tombstone column (optional)]</str>
+		<int name="partitions">1</int>
+		<int name="pageSize">10000</int>
+		<int name="fetchSize">1000</int>
+		<long name="pollIntervalMs">0</long>
+	</lst>
+ */
+public class JdbcReader implements IWatchableQueryReader, IQueryChangeFeed {
+	public static final String URL = "url";
+	public static final String USER = "user";
+	public static final String PASSWORD = "password";
+	public static final String TABLE = "table";
+	public static final String ID_COLUMN = "idColumn";
+	public static final String NAME_COLUMN = "nameColumn";
+	public static final String QUERY_COLUMN = "queryColumn";
+	public static final String UPDATED_AT_COLUMN = "updatedAtColumn";
+	public static final String DELETED_COLUMN = "deletedColumn";
+	public static final String PARTITIONS = "partitions";
+	public static final String PAGE_SIZE = "pageSize";
+	public static final String FETCH_SIZE = "fetchSize";
+	public static final String POLL_INTERVAL_MS = "pollIntervalMs";
+	private static final Logger log = LoggerFactory.getLogger(JdbcReader.class);
+	private static final int DEFAULT_PAGE_SIZE = 10000;
+	private static final int DEFAULT_FETCH_SIZE = 1000;
+	private static final char TIMESTAMP_TOKEN = 't';
+	private static final char NUMBER_TOKEN = 'n';
+	private static final char STRING_TOKEN = 's';
+	
+	private String url;
+	private String user;
+	private String password;
+	private String table;
+	private String idColumn;
+	private String nameColumn;
+	private String queryColumn;
+	private String updatedAtColumn;
+	private String deletedColumn;
+	private int partitions;
+	private int pageSize;
+	private int fetchSize;
+	private long pollIntervalMs;
+	private boolean numericIds;
+	private String watermark;		// token of the latest change read by watch (guarded by this), null - the table was empty
+	private ScheduledExecutorService poller;
+	
+	@Override
+	public void init(NamedList<?> inputConfig) throws IOException {
+		url = (String) inputConfig.get(URL);
+		user = (String) inputConfig.get(USER);
+		password = (String) inputConfig.get(PASSWORD);
+		table = (String) inputConfig.get(TABLE);
+		idColumn = getString(inputConfig, ID_COLUMN, "query_id");
+		nameColumn = getString(inputConfig, NAME_COLUMN, "query_name");
+		queryColumn = getString(inputConfig, QUERY_COLUMN, "query");
+		updatedAtColumn = (String) inputConfig.get(UPDATED_AT_COLUMN);
+		deletedColumn = (String) inputConfig.get(DELETED_COLUMN);
+		partitions = getNumber(inputConfig, PARTITIONS, 1).intValue();
+		pageSize = getNumber(inputConfig, PAGE_SIZE, DEFAULT_PAGE_SIZE).intValue();
+		fetchSize = getNumber(inputConfig, FETCH_SIZE, DEFAULT_FETCH_SIZE).intValue();
+		pollIntervalMs = getNumber(inputConfig, POLL_INTERVAL_MS, 0).longValue();
+		
+		if (url == null || table == null) {
+			throw new IllegalArgumentException(String.format("Jdbc reader requires %s and %s", URL, TABLE));
+		}
+		
+		if (partitions < 1 || pageSize < 1 || fetchSize < 1) {
+			throw new IllegalArgumentException(String.format("%s, %s and %s must be positive", PARTITIONS, PAGE_SIZE, FETCH_SIZE));
+		}
+		
+		try (Connection connection = getConnection();
+				Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(String.format("SELECT %s FROM %s WHERE 1 = 0", idColumn, table))) {
+			numericIds = isNumeric(rs.getMetaData().getColumnType(1));
+		} catch (SQLException e) {
+			throw new IOException(String.format("Failed to read table %s of %s", table, url), e);
+		}
+		
+		if (partitions > 1 && !numericIds) {
+			log.warn(String.format("Column %s isn't numeric, table %s is read by a single partition", idColumn, table));
+		}
+		
+		if (updatedAtColumn != null) {
+			log.warn(String.format("Changes of table %s are read after the last read (%s, %s): a row committed later with the same %s "
+					+ "and a lower %s is missed until REREAD, and rows with NULL %s are read by REREAD only",
+					table, updatedAtColumn, idColumn, updatedAtColumn, idColumn, updatedAtColumn));
+		}
+	}
+	
+	@Override
+	public synchronized List<SolcolatorQuery> readAllQueries(Map<String, String> reqHandlerMetadata) throws IOException {
+		long start = System.currentTimeMillis();
+		AtomicLong readRows = new AtomicLong();
+		
+		try {
+			String newWatermark = updatedAtColumn == null ? null : getCurrentToken();		// changes made while reading are read again by the next poll
+			List<Object[]> ranges = getPartitionRanges();
+			List<SolcolatorQuery> solcolatorQueries;
+			
+			if (ranges.size() == 1) {
+				solcolatorQueries = readRange(ranges.get(0), reqHandlerMetadata, readRows);
+			} else {
+				solcolatorQueries = readRangesInParallel(ranges, reqHandlerMetadata, readRows);
+			}
+			
+			watermark = newWatermark;
+			long loadTimeMs = System.currentTimeMillis() - start;
+			log.info(String.format("%d rows (%d queries) were read from table %s by %d partitions in %d ms (%.1f rows/sec)",
+					readRows.get(), solcolatorQueries.size(), table, ranges.size(), loadTimeMs,
+					loadTimeMs == 0 ? (double) readRows.get() : readRows.get() * 1000.0 / loadTimeMs));
+			
+			return solcolatorQueries;
+		} catch (SQLException | ExecutionException e) {
+			throw new IOException(String.format("Failed to read queries from table %s", table), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			
+			throw new IOException(String.format("Reading queries from table %s was interrupted", table), e);
+		}
+	}
+	
+	@Override
+	public SolcolatorQuery readByQueryId(String queryId, String queryName, Map<String, String> reqHandlerMetadata) throws IOException {
+		String sql = String.format("SELECT %s FROM %s WHERE %s = ?", getColumns(), table, idColumn);
+		
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setObject(1, numericIds ? Long.valueOf(queryId) : queryId);
+			try (ResultSet rs = statement.executeQuery()) {
+				if (!rs.next() || isDeleted(rs)) {
+					throw new IOException(String.format("Query with id %s wasn't found", queryId));
+				}
+				
+				return toSolcolatorQuery(rs, reqHandlerMetadata);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException(String.format("Query with id %s wasn't found", queryId));
+		} catch (SQLException e) {
+			throw new IOException(String.format("Failed to read query with id %s from table %s", queryId, table), e);
+		}
+	}
+	
+	@Override
+	public boolean watch(IQueryChangeListener listener) {
+		if (updatedAtColumn == null || pollIntervalMs <= 0) {
+			return false;
+		}
+		
+		poller = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "solcolator-jdbc-poller");
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+		poller.scheduleWithFixedDelay(() -> {
+			try {
+				listener.onQueriesChanged();
+			} catch (Exception e) {
+				log.error("Failed to notify changes of queries", e);
+			}
+		}, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+		log.info(String.format("Table %s is polled for changes every %d ms", table, pollIntervalMs));
+		
+		return true;
+	}
+	
+	@Override
+	public synchronized SolcolatorQueryChanges readChanges(Map<String, String> reqHandlerMetadata) throws IOException {
+		SolcolatorQueryChanges changes = readChangesSince(watermark, reqHandlerMetadata);
+		watermark = changes.getToken();
+		
+		return changes;
+	}
+	
+	@Override
+	public String getCurrentToken() throws IOException {
+		if (updatedAtColumn == null) {
+			throw new IOException(String.format("Change feed of table %s requires %s", table, UPDATED_AT_COLUMN));
+		}
+		
+		String sql = String.format("SELECT %1$s, %2$s FROM %3$s WHERE %1$s IS NOT NULL ORDER BY %1$s DESC, %2$s DESC", updatedAtColumn, idColumn, table);
+		
+		try (Connection connection = getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.setMaxRows(1);
+			try (ResultSet rs = statement.executeQuery(sql)) {
+				return rs.next() ? encodeToken(rs.getObject(1), rs.getObject(2)) : null;
+			}
+		} catch (SQLException e) {
+			throw new IOException(String.format("Failed to read the last change of table %s", table), e);
+		}
+	}
+	
+	/**
+	 * Rows are read strictly after the token row in (updatedAtColumn, idColumn) order, the token is returned as is if there are no changes
+	 */
+	@Override
+	public SolcolatorQueryChanges readChangesSince(String token, Map<String, String> reqHandlerMetadata) throws IOException {
+		Map<String, SolcolatorQuery> upsertedQueries = new LinkedHashMap<>();
+		Set<String> deletedQueryIds = new HashSet<>();
+		if (updatedAtColumn == null) {
+			return new SolcolatorQueryChanges(new ArrayList<>(), deletedQueryIds, token);
+		}
+		
+		Object[] lastRow = decodeToken(token);
+		Object lastUpdatedAt = lastRow[0];
+		Object lastId = lastRow[1];
+		
+		try (Connection connection = getConnection()) {
+			int pageRows;
+			do {
+				List<Object> params = new ArrayList<>();
+				String condition = String.format("WHERE %s IS NOT NULL", updatedAtColumn);	// NULL would break the keyset order
+				if (lastUpdatedAt != null) {
+					condition += String.format(" AND (%1$s > ? OR (%1$s = ? AND %2$s > ?))", updatedAtColumn, idColumn);
+					params.add(lastUpdatedAt);
+					params.add(lastUpdatedAt);
+					params.add(lastId);
+				}
+				
+				String sql = String.format("SELECT %s, %s FROM %s %s ORDER BY %s, %s", getColumns(), updatedAtColumn, table, condition, updatedAtColumn, idColumn);
+				pageRows = 0;
+				
+				try (PreparedStatement statement = prepareStatement(connection, sql, params); ResultSet rs = statement.executeQuery()) {
+					int updatedAtIndex = rs.getMetaData().getColumnCount();
+					while (rs.next()) {
+						pageRows++;
+						lastId = rs.getObject(1);
+						lastUpdatedAt = rs.getObject(updatedAtIndex);
+						
+						String queryId = rs.getString(1);
+						if (isDeleted(rs)) {
+							upsertedQueries.remove(queryId);
+							deletedQueryIds.add(queryId);
+						} else {
+							deletedQueryIds.remove(queryId);
+							upsertedQueries.put(queryId, toSolcolatorQuery(rs, reqHandlerMetadata));
+						}
+					}
+				}
+			} while (pageRows == pageSize);
+		} catch (SQLException e) {
+			throw new IOException(String.format("Failed to read changes of queries from table %s", table), e);
+		}
+		
+		return new SolcolatorQueryChanges(new ArrayList<>(upsertedQueries.values()), deletedQueryIds, encodeToken(lastUpdatedAt, lastId));
+	}
+	
+	/**
+	 * @return id ranges (exclusive lower bound, inclusive upper bound, null - unbounded) of partitions
+	 * @throws SQLException
+	 */
+	List<Object[]> getPartitionRanges() throws SQLException {
+		List<Object[]> ranges = new ArrayList<>();
+		Object min = partitions > 1 && numericIds ? readMin(idColumn) : null;
+		if (min == null) {
+			ranges.add(new Object[] { null, null });
+			
+			return ranges;
+		}
+		
+		long minId = ((Number) min).longValue();
+		long maxId = ((Number) readMax(idColumn)).longValue();
+		long step = (maxId - minId) / partitions + 1;
+		for (long lower = minId - 1; lower < maxId; lower += step) {
+			ranges.add(new Object[] { ranges.isEmpty() ? null : lower, lower + step >= maxId ? null : lower + step });
+		}
+		
+		return ranges;
+	}
+	
+	private List<SolcolatorQuery> readRangesInParallel(List<Object[]> ranges, Map<String, String> reqHandlerMetadata, AtomicLong readRows)
+			throws InterruptedException, ExecutionException {
+		ExecutorService loadService = Executors.newFixedThreadPool(ranges.size());
+		
+		try {
+			List<Future<List<SolcolatorQuery>>> futures = new ArrayList<>(ranges.size());
+			for (Object[] range : ranges) {
+				futures.add(loadService.submit(() -> readRange(range, reqHandlerMetadata, readRows)));
+			}
+			
+			List<SolcolatorQuery> solcolatorQueries = new ArrayList<>();
+			for (Future<List<SolcolatorQuery>> future : futures) {
+				solcolatorQueries.addAll(future.get());
+			}
+			
+			return solcolatorQueries;
+		} finally {
+			loadService.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Read queries of an id range page by page, each page starts after the last id of the previous one
+	 * @param range - exclusive lower bound and inclusive upper bound of ids (null - unbounded)
+	 * @param reqHandlerMetadata - Request handler metadata (default args)
+	 * @param readRows - counter of read rows
+	 * @return queries of the range
+	 * @throws SQLException
+	 */
+	private List<SolcolatorQuery> readRange(Object[] range, Map<String, String> reqHandlerMetadata, AtomicLong readRows) throws SQLException {
+		List<SolcolatorQuery> solcolatorQueries = new ArrayList<>();
+		Object lastId = range[0];
+		
+		try (Connection connection = getConnection()) {
+			int pageRows;
+			do {
+				List<String> conditions = new ArrayList<>();
+				List<Object> params = new ArrayList<>();
+				if (lastId != null) {
+					conditions.add(String.format("%s > ?", idColumn));
+					params.add(lastId);
+				}
+				
+				if (range[1] != null) {
+					conditions.add(String.format("%s <= ?", idColumn));
+					params.add(range[1]);
+				}
+				
+				String condition = conditions.isEmpty() ? "" : "WHERE " + String.join(" AND ", conditions);
+				String sql = String.format("SELECT %s FROM %s %s ORDER BY %s", getColumns(), table, condition, idColumn);
+				pageRows = 0;
+				
+				try (PreparedStatement statement = prepareStatement(connection, sql, params); ResultSet rs = statement.executeQuery()) {
+					while (rs.next()) {
+						pageRows++;
+						lastId = rs.getObject(1);
+						if (!isDeleted(rs)) {
+							solcolatorQueries.add(toSolcolatorQuery(rs, reqHandlerMetadata));
+						}
+					}
+				}
+				
+				readRows.addAndGet(pageRows);
+			} while (pageRows == pageSize);
+		}
+		
+		return solcolatorQueries;
+	}
+	
+	private PreparedStatement prepareStatement(Connection connection, String sql, List<Object> params) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statement.setMaxRows(pageSize);
+		statement.setFetchSize(fetchSize);
+		for (int i = 0; i < params.size(); i++) {
+			statement.setObject(i + 1, params.get(i));
+		}
+		
+		return statement;
+	}
+	
+	/**
+	 * Streaming of result sets requires a transaction for some drivers (e.g. PostgreSQL)
+	 */
+	private Connection getConnection() throws SQLException {
+		Connection connection = user == null ? DriverManager.getConnection(url) : DriverManager.getConnection(url, user, password);
+		connection.setAutoCommit(false);
+		connection.setReadOnly(true);
+		
+		return connection;
+	}
+	
+	private Object readMin(String column) throws SQLException {
+		return readAggregate(String.format("MIN(%s)", column));
+	}
+	
+	private Object readMax(String column) throws SQLException {
+		return readAggregate(String.format("MAX(%s)", column));
+	}
+	
+	private Object readAggregate(String aggregate) throws SQLException {
+		try (Connection connection = getConnection();
+				Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(String.format("SELECT %s FROM %s", aggregate, table))) {
+			return rs.next() ? rs.getObject(1) : null;
+		}
+	}
+	
+	private String getColumns() {
+		String columns = String.join(", ", idColumn, nameColumn, queryColumn);
+		
+		return deletedColumn == null ? columns : columns + ", " + deletedColumn;
+	}
+	
+	private boolean isDeleted(ResultSet rs) throws SQLException {
+		return deletedColumn != null && rs.getBoolean(4);
+	}
+	
+	private SolcolatorQuery toSolcolatorQuery(ResultSet rs, Map<String, String> reqHandlerMetadata) throws SQLException {
+		return new SolcolatorQuery(rs.getString(1), rs.getString(2), rs.getString(3), reqHandlerMetadata);
+	}
+	
+	/**
+	 * Token keeps the type of the change value and the id, so they are bound back as the same types.
+	 * Each value is encoded as its type, length and text, e.g. t21:2020-01-01 00:00:00.0n2:42
+	 */
+	private static String encodeToken(Object updatedAt, Object id) {
+		if (updatedAt == null) {
+			return null;
+		}
+		
+		StringBuilder token = new StringBuilder();
+		appendTokenValue(token, updatedAt);
+		appendTokenValue(token, id);
+		
+		return token.toString();
+	}
+	
+	private static void appendTokenValue(StringBuilder token, Object value) {
+		String text = value.toString();
+		char type = value instanceof Timestamp ? TIMESTAMP_TOKEN : value instanceof Number ? NUMBER_TOKEN : STRING_TOKEN;
+		
+		token.append(type).append(text.length()).append(':').append(text);
+	}
+	
+	/**
+	 * @param token - change feed token
+	 * @return change value and id of the token row (null - unknown)
+	 */
+	private static Object[] decodeToken(String token) {
+		Object[] row = new Object[2];
+		if (token == null || token.isEmpty()) {
+			return row;
+		}
+		
+		int position = 0;
+		for (int i = 0; i < row.length && position < token.length(); i++) {
+			int separator = token.indexOf(':', position);
+			if (separator < 0) {
+				throw new IllegalArgumentException(String.format("Illegal change feed token %s", token));
+			}
+			
+			int start = separator + 1;
+			int end = start + Integer.parseInt(token.substring(position + 1, separator));
+			row[i] = decodeTokenValue(token.charAt(position), token.substring(start, end));
+			position = end;
+		}
+		
+		return row;
+	}
+	
+	private static Object decodeTokenValue(char type, String value) {
+		switch (type) {
+			case TIMESTAMP_TOKEN:
+				return Timestamp.valueOf(value);
+				
+			case NUMBER_TOKEN:
+				return new BigDecimal(value);
+				
+			case STRING_TOKEN:
+				return value;
+				
+			default:
+				throw new IllegalArgumentException(String.format("Illegal change feed token value type %s", type));
+		}
+	}
+	
+	private static boolean isNumeric(int sqlType) {
+		return sqlType == Types.INTEGER || sqlType == Types.BIGINT || sqlType == Types.SMALLINT || sqlType == Types.TINYINT
+				|| sqlType == Types.NUMERIC || sqlType == Types.DECIMAL;
+	}
+	
+	private static String getString(NamedList<?> inputConfig, String name, String defaultValue) {
+		String value = (String) inputConfig.get(name);
+		
+		return value == null ? defaultValue : value;
+	}
+	
+	private static Number getNumber(NamedList<?> inputConfig, String name, Number defaultValue) {
+		Number value = (Number) inputConfig.get(name);
+		
+		return value == null ? defaultValue : value;
+	}
+	
+	@Override
+	public void close() throws Exception {
+		if (poller != null) {
+			poller.shutdownNow();
+		}
+	}
+}
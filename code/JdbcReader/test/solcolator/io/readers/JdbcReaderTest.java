@@ -0,0 +1,311 @@
+package solcolator.io.readers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import solcolator.io.api.SolcolatorQuery;
+import solcolator.io.api.SolcolatorQueryChanges;
+
+public class JdbcReaderTest {
+	private final static AtomicInteger databases = new AtomicInteger();
+	private final static Map<String, String> METADATA = Collections.emptyMap();
+
+	private String url;
+	private Connection connection;
+	private JdbcReader reader;
+
+	@Before
+	public void setUp() throws SQLException {
+		url = String.format("jdbc:h2:mem:queries%d;DB_CLOSE_DELAY=-1", databases.incrementAndGet());
+		connection = DriverManager.getConnection(url);
+		execute("CREATE TABLE queries (query_id INT PRIMARY KEY, query_name VARCHAR(100), query VARCHAR(1000), "
+				+ "updated_at TIMESTAMP, deleted BOOLEAN DEFAULT FALSE)");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (reader != null) {
+			reader.close();
+		}
+
+		execute("DROP ALL OBJECTS");
+		connection.close();
+	}
+
+	@Test
+	public void readAllQueriesPagesThroughTable() throws Exception {
+		insertQueries(1, 10, "2020-01-01 00:00:00");
+		reader = createReader(1, 3);
+
+		List<SolcolatorQuery> queries = reader.readAllQueries(METADATA);
+
+		assertEquals(ids(1, 10), getQueryIds(queries));
+		assertEquals(10, queries.size());
+		assertEquals("q=field:5", queries.get(4).getQuery());
+		assertEquals("name5", queries.get(4).getQueryName());
+	}
+
+	@Test
+	public void readAllQueriesPagesThroughPartitions() throws Exception {
+		insertQueries(1, 4, "2020-01-01 00:00:00");
+		insertQueries(9, 17, "2020-01-01 00:00:00");
+		reader = createReader(3, 2);
+
+		List<SolcolatorQuery> queries = reader.readAllQueries(METADATA);
+
+		Set<String> expectedIds = ids(1, 4);
+		expectedIds.addAll(ids(9, 17));
+		assertEquals(expectedIds, getQueryIds(queries));
+		assertEquals(expectedIds.size(), queries.size());
+	}
+
+	@Test
+	public void partitionRangesOfSingleIdAreOneRange() throws Exception {
+		insertQueries(5, 5, "2020-01-01 00:00:00");
+		reader = createReader(4, 10);
+
+		List<Object[]> ranges = reader.getPartitionRanges();
+
+		assertEquals(1, ranges.size());
+		assertNull(ranges.get(0)[0]);
+		assertNull(ranges.get(0)[1]);
+		assertEquals(ids(5, 5), getQueryIds(reader.readAllQueries(METADATA)));
+	}
+
+	@Test
+	public void partitionRangesCoverEveryIdOnce() throws Exception {
+		// ids 5..8 are missing, so a range edge (4) falls right before the gap
+		insertQueries(1, 4, "2020-01-01 00:00:00");
+		insertQueries(9, 10, "2020-01-01 00:00:00");
+		reader = createReader(3, 10);
+
+		List<Object[]> ranges = reader.getPartitionRanges();
+
+		assertEquals(3, ranges.size());
+		assertNull(ranges.get(0)[0]);
+		assertNull(ranges.get(ranges.size() - 1)[1]);
+		for (int i = 1; i < ranges.size(); i++) {
+			assertEquals(ranges.get(i - 1)[1], ranges.get(i)[0]);
+		}
+
+		for (long id : new long[] { 1, 4, 9, 10 }) {
+			int containingRanges = 0;
+			for (Object[] range : ranges) {
+				if ((range[0] == null || id > (long) range[0]) && (range[1] == null || id <= (long) range[1])) {
+					containingRanges++;
+				}
+			}
+
+			assertEquals(String.format("ranges containing id %d", id), 1, containingRanges);
+		}
+	}
+
+	@Test
+	public void tombstonedRowsAreSkipped() throws Exception {
+		insertQueries(1, 5, "2020-01-01 00:00:00");
+		execute("UPDATE queries SET deleted = TRUE WHERE query_id IN (2, 4)");
+		reader = createReader(1, 2);
+
+		assertEquals(new HashSet<>(ids("1", "3", "5")), getQueryIds(reader.readAllQueries(METADATA)));
+
+		try {
+			reader.readByQueryId("2", null, METADATA);
+			fail("Tombstoned query was read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void readByNumericQueryId() throws Exception {
+		insertQueries(1, 3, "2020-01-01 00:00:00");
+		reader = createReader(1, 10);
+
+		SolcolatorQuery query = reader.readByQueryId("2", null, METADATA);
+
+		assertEquals("2", query.getQueryId());
+		assertEquals("q=field:2", query.getQuery());
+
+		try {
+			reader.readByQueryId("abc", null, METADATA);
+			fail("Query with non numeric id was read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void readByStringQueryId() throws Exception {
+		execute("CREATE TABLE string_queries (query_id VARCHAR(20) PRIMARY KEY, query_name VARCHAR(100), query VARCHAR(1000))");
+		execute("INSERT INTO string_queries VALUES ('a-1', 'first', 'q=field:a'), ('b-2', 'second', 'q=field:b')");
+		reader = new JdbcReader();
+		reader.init(createConfig("string_queries", 1, 10, false));
+
+		SolcolatorQuery query = reader.readByQueryId("b-2", null, METADATA);
+
+		assertEquals("b-2", query.getQueryId());
+		assertEquals("second", query.getQueryName());
+		assertEquals("q=field:b", query.getQuery());
+
+		try {
+			reader.readByQueryId("c-3", null, METADATA);
+			fail("Not existing query was read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void readChangesSinceReadsRowsAfterTokenRowOnly() throws Exception {
+		insertQueries(1, 5, "2020-01-01 00:00:00");
+		reader = createReader(1, 2);
+
+		SolcolatorQueryChanges allChanges = reader.readChangesSince(null, METADATA);
+		assertEquals(ids(1, 5), getQueryIds(allChanges.getUpsertedQueries()));
+		assertEquals(reader.getCurrentToken(), allChanges.getToken());
+
+		SolcolatorQueryChanges noChanges = reader.readChangesSince(allChanges.getToken(), METADATA);
+		assertTrue(noChanges.isEmpty());
+		assertEquals(allChanges.getToken(), noChanges.getToken());
+
+		// rows changed at the same time as the token row: only rows after it in (updated_at, query_id) order are read
+		insertQueries(6, 6, "2020-01-01 00:00:00");
+		execute("UPDATE queries SET deleted = TRUE, updated_at = '2020-01-01 00:00:01' WHERE query_id = 3");
+		execute("UPDATE queries SET query = 'q=field:changed', updated_at = '2020-01-01 00:00:01' WHERE query_id = 1");
+
+		SolcolatorQueryChanges changes = reader.readChangesSince(allChanges.getToken(), METADATA);
+
+		assertEquals(new HashSet<>(ids("1", "6")), getQueryIds(changes.getUpsertedQueries()));
+		assertEquals(Collections.singleton("3"), new HashSet<>(changes.getDeletedQueryIds()));
+		assertEquals("q=field:changed", getQuery(changes.getUpsertedQueries(), "1").getQuery());
+		assertNotEquals(allChanges.getToken(), changes.getToken());
+		assertTrue(reader.readChangesSince(changes.getToken(), METADATA).isEmpty());
+	}
+
+	@Test
+	public void readChangesSkipsRowsWithoutUpdateTime() throws Exception {
+		insertQueries(1, 2, "2020-01-01 00:00:00");
+		reader = createReader(1, 10);
+		reader.readAllQueries(METADATA);
+		String token = reader.getCurrentToken();
+
+		execute("INSERT INTO queries (query_id, query_name, query) VALUES (3, 'name3', 'q=field:3')");
+		assertEquals(token, reader.getCurrentToken());
+		insertQueries(4, 4, "2020-01-01 00:00:01");
+
+		assertEquals(ids(4, 4), getQueryIds(reader.readChanges(METADATA).getUpsertedQueries()));
+		assertTrue(reader.readChanges(METADATA).isEmpty());
+
+		// rows without an update time are read by a full read only
+		assertEquals(ids(1, 4), getQueryIds(reader.readAllQueries(METADATA)));
+	}
+
+	@Test
+	public void readChangesStartsAtLoadWatermark() throws Exception {
+		insertQueries(1, 3, "2020-01-01 00:00:00");
+		reader = createReader(1, 10);
+		reader.readAllQueries(METADATA);
+
+		assertTrue(reader.readChanges(METADATA).isEmpty());
+
+		insertQueries(4, 4, "2020-01-01 00:00:00");
+		execute("UPDATE queries SET deleted = TRUE, updated_at = '2020-01-01 00:00:02' WHERE query_id = 2");
+
+		SolcolatorQueryChanges changes = reader.readChanges(METADATA);
+
+		assertEquals(ids(4, 4), getQueryIds(changes.getUpsertedQueries()));
+		assertEquals(Collections.singleton("2"), new HashSet<>(changes.getDeletedQueryIds()));
+		assertTrue(reader.readChanges(METADATA).isEmpty());
+	}
+
+	private JdbcReader createReader(int partitions, int pageSize) throws IOException {
+		JdbcReader jdbcReader = new JdbcReader();
+		jdbcReader.init(createConfig("queries", partitions, pageSize, true));
+
+		return jdbcReader;
+	}
+
+	private NamedList<Object> createConfig(String table, int partitions, int pageSize, boolean changeColumns) {
+		NamedList<Object> config = new NamedList<>();
+		config.add(JdbcReader.URL, url);
+		config.add(JdbcReader.TABLE, table);
+		config.add(JdbcReader.PARTITIONS, partitions);
+		config.add(JdbcReader.PAGE_SIZE, pageSize);
+		config.add(JdbcReader.FETCH_SIZE, pageSize);
+		if (changeColumns) {
+			config.add(JdbcReader.UPDATED_AT_COLUMN, "updated_at");
+			config.add(JdbcReader.DELETED_COLUMN, "deleted");
+		}
+
+		return config;
+	}
+
+	private void insertQueries(int fromId, int toId, String updatedAt) throws SQLException {
+		for (int id = fromId; id <= toId; id++) {
+			execute(String.format("INSERT INTO queries (query_id, query_name, query, updated_at) VALUES (%1$d, 'name%1$d', 'q=field:%1$d', '%2$s')",
+					id, updatedAt));
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+
+	private static Set<String> ids(int fromId, int toId) {
+		Set<String> ids = new HashSet<>();
+		for (int id = fromId; id <= toId; id++) {
+			ids.add(String.valueOf(id));
+		}
+
+		return ids;
+	}
+
+	private static List<String> ids(String... ids) {
+		List<String> idsList = new ArrayList<>();
+		Collections.addAll(idsList, ids);
+
+		return idsList;
+	}
+
+	private static Set<String> getQueryIds(List<SolcolatorQuery> queries) {
+		Set<String> queryIds = new HashSet<>();
+		for (SolcolatorQuery query : queries) {
+			queryIds.add(query.getQueryId());
+		}
+
+		return queryIds;
+	}
+
+	private static SolcolatorQuery getQuery(List<SolcolatorQuery> queries, String queryId) {
+		for (SolcolatorQuery query : queries) {
+			if (query.getQueryId().equals(queryId)) {
+				return query;
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,25 @@
+package solcolator.io.api;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Queries reader with a change feed (see JdbcReader for example). Changes are read since an opaque token of the reader,
+ * which is persisted by solcolator, so a restart resumes from the last applied changes instead of reading all queries again
+ */
+public interface IQueryChangeFeed extends IQueryReader {
+	/**
+	 * It's called before readAllQueries, so changes made while reading all queries are read again by readChangesSince
+	 * @return token of the current state of the source
+	 * @throws IOException
+	 */
+	String getCurrentToken() throws IOException;
+	
+	/**
+	 * @param token - token returned by getCurrentToken or by the previous changes
+	 * @param reqHandlerMetadata - Request handler metadata (default args)
+	 * @return changes since the token (the latest change of each query) with the token of their end
+	 * @throws IOException
+	 */
+	SolcolatorQueryChanges readChangesSince(String token, Map<String, String> reqHandlerMetadata) throws IOException;
+}
@@ -0,0 +1,9 @@
+package solcolator.io.api;
+
+/**
+ * Listener of a watchable queries reader (see IWatchableQueryReader), it's notified once changes of queries are pending
+ * and it pulls them by readChanges
+ */
+public interface IQueryChangeListener {
+	void onQueriesChanged();
+}
@@ -0,0 +1,25 @@
+package solcolator.io.api;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Queries reader which source can be watched for changes (see FileReader for example)
+ * Changes are pulled by the listener, so changes and full reads are applied in the order they are read
+ */
+public interface IWatchableQueryReader extends IQueryReader {
+	/**
+	 * Start watching the source of queries. Changes are coalesced, the listener is notified once per batch of changes
+	 * @param listener - listener of changes
+	 * @return false if watching isn't enabled in the reader config
+	 * @throws IOException
+	 */
+	boolean watch(IQueryChangeListener listener) throws IOException;
+	
+	/**
+	 * @param reqHandlerMetadata - Request handler metadata (default args)
+	 * @return changes of queries since the last readAllQueries or readChanges
+	 * @throws IOException
+	 */
+	SolcolatorQueryChanges readChanges(Map<String, String> reqHandlerMetadata) throws IOException;
+}
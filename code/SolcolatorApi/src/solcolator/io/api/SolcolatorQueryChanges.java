@@ -0,0 +1,42 @@
+package solcolator.io.api;
+
+import java.util.Collection;
+import java.util.List;
+
+public class SolcolatorQueryChanges {
+	private final List<SolcolatorQuery> upsertedQueries;
+	private final Collection<String> deletedQueryIds;
+	private final String token;
+	
+	public SolcolatorQueryChanges(List<SolcolatorQuery> upsertedQueries, Collection<String> deletedQueryIds) {
+		this(upsertedQueries, deletedQueryIds, null);
+	}
+	
+	public SolcolatorQueryChanges(List<SolcolatorQuery> upsertedQueries, Collection<String> deletedQueryIds, String token) {
+		this.upsertedQueries = upsertedQueries;
+		this.deletedQueryIds = deletedQueryIds;
+		this.token = token;
+	}
+	
+	/**
+	 * @return added and updated queries
+	 */
+	public List<SolcolatorQuery> getUpsertedQueries() {
+		return upsertedQueries;
+	}
+	
+	public Collection<String> getDeletedQueryIds() {
+		return deletedQueryIds;
+	}
+	
+	/**
+	 * @return token of the end of the changes (see IQueryChangeFeed) or null
+	 */
+	public String getToken() {
+		return token;
+	}
+	
+	public boolean isEmpty() {
+		return upsertedQueries.isEmpty() && deletedQueryIds.isEmpty();
+	}
+}
@@ -1,9 +1,12 @@
 package solcolator.common;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 
@@ -52,4 +55,37 @@ public class SolrUtils {
 		
 		return solrParamsNamedList;
 	}
+	
+	/**
+	 * Rough estimation of solr document size in bytes (field names and values only)
+	 * @param doc - solr document
+	 * @return estimated size in bytes
+	 */
+	public static long estimateSize(SolrInputDocument doc) {
+		if (doc == null) {
+			return 0;
+		}
+		
+		long size = 0;
+		for (SolrInputField field : doc) {
+			size += field.getName().length() * 2;
+			
+			Collection<Object> values = field.getValues();
+			if (values == null) {
+				continue;
+			}
+			
+			for (Object value : values) {
+				if (value instanceof CharSequence) {
+					size += ((CharSequence) value).length() * 2;
+				} else if (value instanceof byte[]) {
+					size += ((byte[]) value).length;
+				} else {
+					size += 16;
+				}
+			}
+		}
+		
+		return size;
+	}
 }
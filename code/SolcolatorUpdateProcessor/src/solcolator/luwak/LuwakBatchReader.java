@@ -0,0 +1,27 @@
+package solcolator.luwak;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+
+/**
+ * Reader of a document batch index. It carries the batch scoped state (the filter cache) to the queries matching
+ * the batch, so the state lives and dies with its batch and no global registry of batches is needed
+ */
+public class LuwakBatchReader extends FilterLeafReader {
+	private final LuwakFilterCache filterCache;
+	
+	/**
+	 * @param in - reader of the batch index
+	 */
+	public LuwakBatchReader(LeafReader in) {
+		super(in);
+		this.filterCache = new LuwakFilterCache(in.maxDoc());
+	}
+	
+	/**
+	 * @return filter cache of the batch
+	 */
+	public LuwakFilterCache getFilterCache() {
+		return filterCache;
+	}
+}
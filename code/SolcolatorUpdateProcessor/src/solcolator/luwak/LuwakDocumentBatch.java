@@ -7,6 +7,7 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
@@ -21,21 +22,25 @@ import uk.co.flax.luwak.InputDocument;
  * This class extends DocumentBatch due to bug that you can see here:
  * https://github.com/flaxsearch/luwak/issues/171
  * 
- * Fix for this issue see in line 59
+ * Fix for this issue see in function build
+ * 
+ * Documents are added by a single thread and merged by an order preserving merge policy, so the doc number of
+ * each document in the merged segment equals its position in the batch (no stored fields are read to resolve ids)
  */
 public class LuwakDocumentBatch extends DocumentBatch {
 	private static Logger log = LoggerFactory.getLogger(LuwakDocumentBatch.class);
 	private final Directory directory = new RAMDirectory();
-    private LeafReader reader = null;
+    private LuwakBatchReader reader = null;
     private String[] docIds = null;
 
     public LuwakDocumentBatch(List<InputDocument> docs, Similarity similarity) {
         super(docs, similarity);
-        assert docs.size() > 1;
+        assert !docs.isEmpty();
         //Another issue (#172): docs.get(0).getAnalyzers() will get analyzers of first document only.
-        //In the case where second document has a field that first document doesn't have
-        //It will be a problem - TEMP SOLUTION: see in a file SolrUpdateProcessor.java (function createLuwakDoc)
-        IndexWriterConfig iwc = new IndexWriterConfig(docs.get(0).getAnalyzers()).setSimilarity(similarity);
+        //It's fine since all documents of a batch share the same schema analyzers (see SolcolatorAnalyzerCache)
+        IndexWriterConfig iwc = new IndexWriterConfig(docs.get(0).getAnalyzers())
+        		.setSimilarity(similarity)
+        		.setMergePolicy(new LogByteSizeMergePolicy());	// merges adjacent segments only, so insertion order is kept
         try (IndexWriter writer = new IndexWriter(directory, iwc)) {
             this.reader = build(writer);
         }
@@ -49,7 +54,7 @@ public class LuwakDocumentBatch extends DocumentBatch {
         return reader;
     }
 
-    private LeafReader build(IndexWriter writer) throws IOException {
+    private LuwakBatchReader build(IndexWriter writer) throws IOException {
 
         for (InputDocument doc : documents) {
             writer.addDocument(doc.getDocument());
@@ -64,11 +69,19 @@ public class LuwakDocumentBatch extends DocumentBatch {
         log.info("Batch size from index is " + reader.maxDoc());
         
         docIds = new String[reader.maxDoc()];
-        for (int i = 0; i < docIds.length; i++) {
-            docIds[i] = reader.document(i).get(InputDocument.ID_FIELD);     // TODO can this be more efficient?
+        if (docIds.length == documents.size()) {
+            int i = 0;
+            for (InputDocument doc : documents) {
+                docIds[i++] = doc.getId();
+            }
+        } else {
+            log.warn(String.format("Batch index contains %d docs instead of %d, ids will be read from stored fields", docIds.length, documents.size()));
+            for (int i = 0; i < docIds.length; i++) {
+                docIds[i] = reader.document(i).get(InputDocument.ID_FIELD);
+            }
         }
 
-        return reader;
+        return new LuwakBatchReader(reader);	// carries the filter cache: filters shared by queries are evaluated once per batch
 
     }
 
@@ -79,6 +92,7 @@ public class LuwakDocumentBatch extends DocumentBatch {
 
     @Override
     public void close() throws IOException {
+        reader.getFilterCache().release();
         IOUtils.close(reader, directory);
     }
 }
\ No newline at end of file
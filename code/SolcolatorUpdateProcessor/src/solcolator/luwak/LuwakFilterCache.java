@@ -0,0 +1,149 @@
+package solcolator.luwak;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BitDocIdSet;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batch scoped cache of filter clauses (see LuwakFilterQuery). Each filter is evaluated once per document batch
+ * into a bitset, which is shared by all candidate queries containing an equal filter. The cache lives as long
+ * as its batch: it's carried by the batch reader (see LuwakBatchReader) and released when the batch is closed
+ */
+public class LuwakFilterCache {
+	private final static Logger log = LoggerFactory.getLogger(LuwakFilterCache.class);
+	private final static AtomicLong batches = new AtomicLong();
+	private final static AtomicLong totalHits = new AtomicLong();
+	private final static AtomicLong totalMisses = new AtomicLong();
+	private static volatile String lastBatch = "";
+	
+	private final Map<Query, DocIdSet> filters = new ConcurrentHashMap<>();
+	private final int maxDoc;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Evaluates a filter against the batch
+	 */
+	public interface IFilterScorer {
+		Scorer get() throws IOException;
+	}
+	
+	LuwakFilterCache(int maxDoc) {
+		this.maxDoc = maxDoc;
+	}
+	
+	/**
+	 * @param reader - segment reader, possibly wrapping the batch reader (see LuwakRestrictedPresearcher)
+	 * @return filter cache of the batch or null if the reader isn't a batch reader
+	 */
+	public static LuwakFilterCache get(LeafReader reader) {
+		while (!(reader instanceof LuwakBatchReader) && reader instanceof FilterLeafReader) {
+			reader = ((FilterLeafReader) reader).getDelegate();
+		}
+		
+		return reader instanceof LuwakBatchReader ? ((LuwakBatchReader) reader).getFilterCache() : null;
+	}
+	
+	/**
+	 * Account the statistics of the batch, called once the batch is closed
+	 */
+	public void release() {
+		long batchHits = hits.get();
+		long batchMisses = misses.get();
+		batches.incrementAndGet();
+		totalHits.addAndGet(batchHits);
+		totalMisses.addAndGet(batchMisses);
+		lastBatch = String.format("%d hits, %d misses", batchHits, batchMisses);
+		
+		log.info(String.format("Filter cache of batch: %d distinct filters, %d hits, %d misses", filters.size(), batchHits, batchMisses));
+	}
+	
+	/**
+	 * @return number of filters served from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * @return number of filters evaluated against the batch
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * @param filter - filter clause
+	 * @param filterScorer - evaluates the filter on a cache miss
+	 * @return docs of the batch matching the filter
+	 * @throws IOException
+	 */
+	public DocIdSet getDocIdSet(Query filter, IFilterScorer filterScorer) throws IOException {
+		DocIdSet docIdSet = filters.get(filter);
+		if (docIdSet != null) {
+			hits.incrementAndGet();
+			
+			return docIdSet;
+		}
+		
+		try {
+			return filters.computeIfAbsent(filter, key -> {
+				misses.incrementAndGet();
+				
+				return evaluate(filterScorer);
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	private DocIdSet evaluate(IFilterScorer filterScorer) {
+		try {
+			Scorer scorer = filterScorer.get();
+			if (scorer == null) {
+				return DocIdSet.EMPTY;
+			}
+			
+			FixedBitSet bits = new FixedBitSet(maxDoc);
+			DocIdSetIterator iterator = scorer.iterator();
+			for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+				bits.set(doc);
+			}
+			
+			return new BitDocIdSet(bits);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * @return cumulative hits and misses of all batches
+	 */
+	public static NamedList<Object> getStatistics() {
+		NamedList<Object> stats = new NamedList<>();
+		long hitsCount = totalHits.get();
+		long missesCount = totalMisses.get();
+		
+		stats.add("batches", batches.get());
+		stats.add("hits", hitsCount);
+		stats.add("misses", missesCount);
+		stats.add("hitRatio", hitsCount + missesCount == 0 ? 0.0 : (double) hitsCount / (hitsCount + missesCount));
+		stats.add("lastBatch", lastBatch);
+		
+		return stats;
+	}
+}
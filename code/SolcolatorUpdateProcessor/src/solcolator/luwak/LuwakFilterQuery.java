@@ -0,0 +1,101 @@
+package solcolator.luwak;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import uk.co.flax.luwak.termextractor.QueryAnalyzer;
+import uk.co.flax.luwak.termextractor.QueryTreeBuilder;
+import uk.co.flax.luwak.termextractor.querytree.QueryTree;
+
+/**
+ * Filter clause (fq) of a solcolator query. Most queries share a handful of filters, so a filter is evaluated
+ * once per document batch into a bitset (see LuwakFilterCache) and the bitset is reused by every query containing
+ * an equal filter. Filters of single document batches aren't cached
+ */
+public class LuwakFilterQuery extends Query {
+	/**
+	 * Presearchers extract terms of the wrapped filter
+	 */
+	public final static QueryTreeBuilder<LuwakFilterQuery> TREE_BUILDER = new QueryTreeBuilder<LuwakFilterQuery>(LuwakFilterQuery.class) {
+		@Override
+		public QueryTree buildTree(QueryAnalyzer builder, LuwakFilterQuery query) {
+			return builder.buildTree(query.getFilter());
+		}
+	};
+	
+	private final Query filter;
+	
+	/**
+	 * @param filter - filter clause
+	 */
+	public LuwakFilterQuery(Query filter) {
+		this.filter = filter;
+	}
+	
+	public Query getFilter() {
+		return filter;
+	}
+	
+	@Override
+	public Query rewrite(IndexReader reader) throws IOException {
+		Query rewritten = filter.rewrite(reader);
+		
+		return rewritten == filter ? this : new LuwakFilterQuery(rewritten);
+	}
+	
+	@Override
+	public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+		return new ConstantScoreWeight(this) {
+			private Weight filterWeight = null;
+			
+			@Override
+			public Scorer scorer(LeafReaderContext context) throws IOException {
+				LuwakFilterCache cache = LuwakFilterCache.get(context.reader());
+				if (cache == null) {
+					return getFilterWeight().scorer(context);
+				}
+				
+				DocIdSet docIdSet = cache.getDocIdSet(filter, () -> getFilterWeight().scorer(context));
+				DocIdSetIterator iterator = docIdSet.iterator();
+				
+				return iterator == null ? null : new ConstantScoreScorer(this, score(), iterator);
+			}
+			
+			/**
+			 * The filter weight is created on a cache miss only
+			 */
+			private synchronized Weight getFilterWeight() throws IOException {
+				if (filterWeight == null) {
+					filterWeight = searcher.createNormalizedWeight(filter, false);
+				}
+				
+				return filterWeight;
+			}
+		};
+	}
+	
+	@Override
+	public String toString(String field) {
+		return String.format("filter(%s)", filter.toString(field));
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other) && filter.equals(((LuwakFilterQuery) other).filter);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * classHash() + filter.hashCode();
+	}
+}
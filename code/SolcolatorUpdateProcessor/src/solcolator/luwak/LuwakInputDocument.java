@@ -1,5 +1,8 @@
 package solcolator.luwak;
 
+import java.util.Map;
+import java.util.Set;
+
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.document.Document;
 
@@ -9,7 +12,29 @@ import uk.co.flax.luwak.InputDocument;
  * The class represents LUWAK input document
  */
 public class LuwakInputDocument extends InputDocument {
+	private final Map<String, Long> fieldFingerprints;
+	private final Set<String> monitorIds;
+	
 	public LuwakInputDocument(String id, Document luceneDocument, PerFieldAnalyzerWrapper analyzers) {
+		this(id, luceneDocument, analyzers, null, null);
+	}
+	
+	/**
+	 * @param fieldFingerprints - hashes of query relevant fields (see SolcolatorFingerprintCache) or null
+	 * @param monitorIds - ids of monitor queries to run against the document or null if all queries are run
+	 */
+	public LuwakInputDocument(String id, Document luceneDocument, PerFieldAnalyzerWrapper analyzers,
+			Map<String, Long> fieldFingerprints, Set<String> monitorIds) {
 		super(id, luceneDocument, analyzers);
+		this.fieldFingerprints = fieldFingerprints;
+		this.monitorIds = monitorIds;
+	}
+	
+	public Map<String, Long> getFieldFingerprints() {
+		return fieldFingerprints;
+	}
+	
+	public Set<String> getMonitorIds() {
+		return monitorIds;
 	}
 }
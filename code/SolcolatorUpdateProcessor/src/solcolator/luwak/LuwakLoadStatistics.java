@@ -0,0 +1,101 @@
+package solcolator.luwak;
+
+import java.util.Map;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Statistics of the last queries load (startup or REREAD) or rebuild
+ */
+public class LuwakLoadStatistics {
+	private final int readQueries;
+	private final int addedQueries;
+	private final int changedQueries;
+	private final int removedQueries;
+	private final int unchangedQueries;
+	private final Map<String, String> failedQueries;
+	private final long loadTimeMs;
+	
+	/**
+	 * @param readQueries - number of read queries
+	 * @param addedQueries - number of new queries which were added successfully
+	 * @param changedQueries - number of queries which text or metadata were changed and were updated successfully (rebuilt queries on rebuild)
+	 * @param removedQueries - number of registered queries which don't exist in the source anymore
+	 * @param unchangedQueries - number of queries which weren't updated
+	 * @param failedQueries - map between id of failed (added or changed) query and its error
+	 * @param loadTimeMs - load time
+	 */
+	public LuwakLoadStatistics(int readQueries, int addedQueries, int changedQueries, int removedQueries, int unchangedQueries,
+			Map<String, String> failedQueries, long loadTimeMs) {
+		this.readQueries = readQueries;
+		this.addedQueries = addedQueries;
+		this.changedQueries = changedQueries;
+		this.removedQueries = removedQueries;
+		this.unchangedQueries = unchangedQueries;
+		this.failedQueries = failedQueries;
+		this.loadTimeMs = loadTimeMs;
+	}
+	
+	public int getReadQueries() {
+		return readQueries;
+	}
+	
+	public int getAddedQueries() {
+		return addedQueries;
+	}
+	
+	public int getChangedQueries() {
+		return changedQueries;
+	}
+	
+	public int getRemovedQueries() {
+		return removedQueries;
+	}
+	
+	/**
+	 * @return number of added and changed queries which were updated successfully
+	 */
+	public int getUpdatedQueries() {
+		return addedQueries + changedQueries;
+	}
+	
+	public int getUnchangedQueries() {
+		return unchangedQueries;
+	}
+	
+	/**
+	 * @return map between id of failed query and its error
+	 */
+	public Map<String, String> getFailedQueries() {
+		return failedQueries;
+	}
+	
+	public long getLoadTimeMs() {
+		return loadTimeMs;
+	}
+	
+	public double getQueriesPerSecond() {
+		return loadTimeMs == 0 ? readQueries : readQueries * 1000.0 / loadTimeMs;
+	}
+	
+	public NamedList<Object> toNamedList() {
+		NamedList<Object> stats = new NamedList<>();
+		stats.add("readQueries", readQueries);
+		stats.add("addedQueries", addedQueries);
+		stats.add("changedQueries", changedQueries);
+		stats.add("removedQueries", removedQueries);
+		stats.add("updatedQueries", getUpdatedQueries());
+		stats.add("unchangedQueries", unchangedQueries);
+		stats.add("failedQueries", failedQueries.size());
+		stats.add("loadTimeMs", loadTimeMs);
+		stats.add("queriesPerSecond", getQueriesPerSecond());
+		
+		return stats;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d queries were read, %d added, %d changed, %d removed, %d unchanged, %d failed in %d ms (%.1f queries/sec)",
+				readQueries, addedQueries, changedQueries, removedQueries, unchangedQueries, failedQueries.size(), loadTimeMs, getQueriesPerSecond());
+	}
+}
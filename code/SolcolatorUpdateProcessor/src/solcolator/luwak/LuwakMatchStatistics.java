@@ -0,0 +1,40 @@
+package solcolator.luwak;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Cumulative matching counters. Candidate queries are queries selected by the presearcher,
+ * so candidates vs matches shows how selective the presearcher is
+ */
+public class LuwakMatchStatistics {
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong documents = new AtomicLong();
+	private final AtomicLong candidateQueries = new AtomicLong();
+	private final AtomicLong matches = new AtomicLong();
+	private final AtomicLong matchTimeMs = new AtomicLong();
+	
+	public void addBatch(int batchSize, int queriesRun, int matchesCount, long timeMs) {
+		batches.incrementAndGet();
+		documents.addAndGet(batchSize);
+		candidateQueries.addAndGet(queriesRun);
+		matches.addAndGet(matchesCount);
+		matchTimeMs.addAndGet(timeMs);
+	}
+	
+	public NamedList<Object> toNamedList() {
+		NamedList<Object> stats = new NamedList<>();
+		long candidates = candidateQueries.get();
+		long matched = matches.get();
+		
+		stats.add("batches", batches.get());
+		stats.add("documents", documents.get());
+		stats.add("candidateQueries", candidates);
+		stats.add("matches", matched);
+		stats.add("matchesPerCandidate", candidates == 0 ? 0.0 : (double) matched / candidates);
+		stats.add("matchTimeMs", matchTimeMs.get());
+		
+		return stats;
+	}
+}
@@ -6,11 +6,32 @@ import java.util.Arrays;
  * Factories for matching docs:
  * 		SimpleMatcher (simple) - reports which queries matched the InputDocument
  * 		HighlightingMatcher (highlighting) - reports which queries matched, with the individual matches for each query
+ * 		SimpleMatcher in partitions (partitioned) - the same as simple, but candidate queries are split into fixed slices (one per worker)
+ * 		HighlightingMatcher in partitions (partitioned_highlighting) - the same as highlighting, but candidate queries are split into fixed slices
+ * Partitioned factories don't feed workers from a single producer thread, so they scale better on many cores
 */
 
 public enum LuwakMatcherFactory {
-	HIGHLIGHTING,
-	SIMPLE;
+	HIGHLIGHTING(true, false),
+	SIMPLE(false, false),
+	PARTITIONED(false, true),
+	PARTITIONED_HIGHLIGHTING(true, true);
+	
+	private final boolean highlighting;
+	private final boolean partitioned;
+	
+	private LuwakMatcherFactory(boolean highlighting, boolean partitioned) {
+		this.highlighting = highlighting;
+		this.partitioned = partitioned;
+	}
+	
+	public boolean isHighlighting() {
+		return highlighting;
+	}
+	
+	public boolean isPartitioned() {
+		return partitioned;
+	}
 	
 	/**
 	 * If given factory exists, function will return its enum value otherwise will throw exception.
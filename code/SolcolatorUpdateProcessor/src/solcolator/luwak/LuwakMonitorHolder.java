@@ -0,0 +1,76 @@
+package solcolator.luwak;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.flax.luwak.Monitor;
+
+/**
+ * Reference counted monitor. The manager owns one reference while the monitor is current,
+ * each matching batch acquires its own reference. A retired (swapped out) monitor is closed
+ * once the last batch matching against it releases it
+ */
+public class LuwakMonitorHolder {
+	private final static Logger log = LoggerFactory.getLogger(LuwakMonitorHolder.class);
+	
+	private final Monitor monitor;
+	private final AtomicInteger refCount = new AtomicInteger(1);
+	private volatile Runnable onClose;
+	
+	public LuwakMonitorHolder(Monitor monitor) {
+		this.monitor = monitor;
+	}
+	
+	/**
+	 * Take a reference on the monitor
+	 * @return false if the monitor is already closed
+	 */
+	public boolean acquire() {
+		while (true) {
+			int current = refCount.get();
+			if (current <= 0) {
+				return false;
+			}
+			
+			if (refCount.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Release a reference, the last release closes the monitor
+	 */
+	public void release() {
+		if (refCount.decrementAndGet() != 0) {
+			return;
+		}
+		
+		try {
+			monitor.close();
+			log.info("Retired monitor was drained and closed");
+		} catch (IOException e) {
+			log.error("Failed to close Monitor", e);
+		}
+		
+		if (onClose != null) {
+			onClose.run();
+		}
+	}
+	
+	/**
+	 * Release the manager's reference: the monitor is closed once all matching batches release it
+	 * @param onClose - called after the monitor is closed (e.g. removing its query index directory), may be null
+	 */
+	public void retire(Runnable onClose) {
+		this.onClose = onClose;
+		release();
+	}
+	
+	public Monitor getMonitor() {
+		return monitor;
+	}
+}
@@ -2,15 +2,20 @@ package solcolator.luwak;
 
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.util.IOUtils;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.MultiMapSolrParams;
 import org.apache.solr.common.params.SolrParams;
@@ -20,6 +25,7 @@ import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
@@ -29,15 +35,26 @@ import com.google.common.base.Charsets;
 import com.google.common.net.UrlEscapers;
 
 import solcolator.common.SolrUtils;
+import uk.co.flax.luwak.MonitorQuery;
 import uk.co.flax.luwak.MonitorQueryParser;
 
 public class LuwakParser implements MonitorQueryParser {
+	private final static Pattern NOW_PATTERN = Pattern.compile("(?<![\\w.])NOW(?![\\w.])");
+	
 	private final SolrCore core;
 	private final List<String> componentsToParser;
+	private final long nowBucketMs;
+	private final Map<List<Object>, Set<String>> referencedFields = new ConcurrentHashMap<>();	// (query, metadata) -> fields of parsed query
 	
-	public LuwakParser(SolrCore core, List<String> componentsToParser) {
+	/**
+	 * @param core - solr core
+	 * @param componentsToParser - search components preparing query params
+	 * @param nowBucketMs - NOW rounding of time relative queries resolved at match time, 0 - NOW is resolved at parse time
+	 */
+	public LuwakParser(SolrCore core, List<String> componentsToParser, long nowBucketMs) {
 		this.core = core;
 		this.componentsToParser = componentsToParser;
+		this.nowBucketMs = nowBucketMs;
 	}
 	
 	//TODO: check if query/fq syntax is wrong (for example, time ranges)
@@ -48,6 +65,8 @@ public class LuwakParser implements MonitorQueryParser {
 	 *	+	- 	%2B
 	 *	=	-	%3D
 	 *	%	-	%25
+	 * Queries with NOW date math are resolved at match time (see LuwakTimeRelativeQuery), if it's enabled
+	 * Fields referenced by the parsed query are recorded (see getReferencedFields)
 	 */
 	@Override
 	public Query parse(String query, Map<String, String> queryMetadata) throws Exception {
@@ -60,6 +79,100 @@ public class LuwakParser implements MonitorQueryParser {
 					URLDecoder.decode(entry.getValue().toString(), Charsets.UTF_8.toString()));
 		}
 				
+		if (nowBucketMs > 0 && isTimeRelative(solrParamsNamedList)) {
+			LuwakTimeRelativeQuery timeRelativeQuery = new LuwakTimeRelativeQuery(query, queryMetadata, nowBucketMs,
+					now -> parseWithNow(solrParamsNamedList, now));
+			timeRelativeQuery.resolve();	// query syntax is validated on update
+			
+			return recordFields(query, queryMetadata, timeRelativeQuery);
+		}
+		
+		return recordFields(query, queryMetadata, parse(solrParamsNamedList));
+	}
+	
+	private Query recordFields(String query, Map<String, String> queryMetadata, Query parsedQuery) {
+		referencedFields.put(Arrays.asList(query, queryMetadata), LuwakQueryFields.getFields(parsedQuery));
+		
+		return parsedQuery;
+	}
+	
+	/**
+	 * Queries are published before the monitor parses them, so a query which wasn't parsed yet is parsed here
+	 * @param query - monitor query
+	 * @return fields referenced by the query or LuwakQueryFields.ALL if the query can't be parsed
+	 */
+	public Set<String> getReferencedFields(MonitorQuery query) {
+		List<Object> key = Arrays.asList(query.getQuery(), query.getMetadata());
+		Set<String> fields = referencedFields.get(key);
+		if (fields != null) {
+			return fields;
+		}
+		
+		try {
+			parse(query.getQuery(), query.getMetadata());
+		} catch (Exception e) {
+			return LuwakQueryFields.ALL;	// the monitor update of the query fails as well
+		}
+		
+		return referencedFields.getOrDefault(key, LuwakQueryFields.ALL);
+	}
+	
+	/**
+	 * Forget recorded fields once parsed queries are published (fields of registered queries are kept by the registry)
+	 */
+	public void clearReferencedFields() {
+		referencedFields.clear();
+	}
+	
+	/**
+	 * Forget recorded fields of a single query once it's published or failed
+	 * @param query - monitor query parsed by this parser
+	 */
+	public void forgetReferencedFields(MonitorQuery query) {
+		referencedFields.remove(Arrays.asList(query.getQuery(), query.getMetadata()));
+	}
+	
+	/**
+	 * Check if any query param (q, fq etc.) contains NOW date math
+	 * @param solrParamsNamedList - query params
+	 * @return true if query depends on the current time
+	 */
+	private boolean isTimeRelative(NamedList<Object> solrParamsNamedList) {
+		for (Entry<String, Object> entry : solrParamsNamedList) {
+			if (entry.getValue() != null && NOW_PATTERN.matcher(entry.getValue().toString()).find()) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Parse query with a given NOW. Solr date math takes NOW from the current request info, so a temporary request info
+	 * with the bucket NOW is installed for the parsing. The request info of the thread (matching in an update request thread)
+	 * is restored afterwards
+	 * @param solrParamsNamedList - query params
+	 * @param now - NOW in ms
+	 * @return lucene query
+	 * @throws Exception
+	 */
+	private Query parseWithNow(NamedList<Object> solrParamsNamedList, long now) throws Exception {
+		NamedList<Object> paramsWithNow = solrParamsNamedList.clone();
+		paramsWithNow.add(CommonParams.NOW, String.valueOf(now));
+		
+		SolrQueryRequest nowRequest = new LocalSolrQueryRequest(core, paramsWithNow);
+		NowRequestInfo nowRequestInfo = new NowRequestInfo(nowRequest);
+		SolrRequestInfo previous = NowRequestInfo.install(nowRequestInfo);
+		try {
+			return parse(paramsWithNow);
+		} finally {
+			NowRequestInfo.restore(previous);
+			nowRequestInfo.close();
+			nowRequest.close();
+		}
+	}
+	
+	private Query parse(NamedList<Object> solrParamsNamedList) throws Exception {
 		SolrParams solrParams = SolrParams.toSolrParams(solrParamsNamedList);	
 		SolrQueryRequest solrRequest = new LocalSolrQueryRequest(core, solrParamsNamedList);
 		
@@ -92,10 +205,11 @@ public class LuwakParser implements MonitorQueryParser {
 				BooleanQuery bfq = (BooleanQuery) qplug.createParser(fq, null, solrParams, solrRequest).parse();
 				
 				for (BooleanClause clause : bfq) {
+					// Filters are shared by many queries, so they are evaluated once per batch (see LuwakFilterCache)
 					if (clause.getOccur().equals(Occur.MUST_NOT)) {
-						builder.add(clause.getQuery(), Occur.MUST_NOT);
+						builder.add(new LuwakFilterQuery(clause.getQuery()), Occur.MUST_NOT);
 					} else {
-						builder.add(clause.getQuery(), Occur.FILTER);
+						builder.add(new LuwakFilterQuery(clause.getQuery()), Occur.FILTER);
 					}
 			    }
 			}
@@ -104,4 +218,45 @@ public class LuwakParser implements MonitorQueryParser {
 		// In Solcolator we don't need scoring, so using constant score queries will give us the best query performance
 		return new ConstantScoreQuery(builder.build());
 	}
-}
+	
+	/**
+	 * Request info with a given NOW. SolrRequestInfo.setRequestInfo/clearRequestInfo can't be used over a request info
+	 * of an update request: they complain about the unclosed request info and close it, so the thread local is swapped directly
+	 */
+	private static class NowRequestInfo extends SolrRequestInfo {
+		private NowRequestInfo(SolrQueryRequest nowRequest) {
+			super(nowRequest, new SolrQueryResponse());
+		}
+		
+		/**
+		 * @param requestInfo - request info to install for the current thread
+		 * @return previous request info of the thread or null
+		 */
+		private static SolrRequestInfo install(SolrRequestInfo requestInfo) {
+			SolrRequestInfo previous = threadLocal.get();
+			threadLocal.set(requestInfo);
+			
+			return previous;
+		}
+		
+		/**
+		 * @param previous - request info returned by install
+		 */
+		private static void restore(SolrRequestInfo previous) {
+			if (previous == null) {
+				threadLocal.remove();
+			} else {
+				threadLocal.set(previous);
+			}
+		}
+		
+		/**
+		 * Run close hooks registered while parsing
+		 */
+		private void close() {
+			if (closeHooks != null) {
+				IOUtils.closeWhileHandlingException(closeHooks);
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,380 @@
+package solcolator.luwak;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Immutable hash map which shares its structure with the map it was derived from (hash array mapped trie).
+ * plus and minus copy only the path to the changed entry (O(log32 n)), so a registry snapshot can be changed by a single
+ * query without copying all queries. Null keys and values aren't supported, map views are read-only
+ * @param <K> - key type
+ * @param <V> - value type
+ */
+public class LuwakPersistentMap<K, V> extends AbstractMap<K, V> {
+	private final static int BITS = 5;
+	private final static int MASK = (1 << BITS) - 1;
+	private final static LuwakPersistentMap<Object, Object> EMPTY = new LuwakPersistentMap<>(null, 0);
+	
+	private final Node root;	// null - empty map
+	private final int size;
+	
+	private LuwakPersistentMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static <K, V> LuwakPersistentMap<K, V> empty() {
+		return (LuwakPersistentMap<K, V>) EMPTY;
+	}
+	
+	/**
+	 * @param key - key
+	 * @param value - value
+	 * @return map with the given mapping (this map if the key is already mapped to the same value)
+	 */
+	public LuwakPersistentMap<K, V> plus(K key, V value) {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(value);
+		
+		boolean[] added = new boolean[1];
+		Node newRoot = root == null ? BitmapNode.EMPTY.plus(hash(key), key, value, 0, added) : root.plus(hash(key), key, value, 0, added);
+		
+		return newRoot == root ? this : new LuwakPersistentMap<>(newRoot, added[0] ? size + 1 : size);
+	}
+	
+	/**
+	 * @param key - key
+	 * @return map without the given key (this map if there is no such key)
+	 */
+	public LuwakPersistentMap<K, V> minus(Object key) {
+		if (root == null || key == null) {
+			return this;
+		}
+		
+		Node newRoot = root.minus(hash(key), key, 0);
+		if (newRoot == root) {
+			return this;
+		}
+		
+		return newRoot == null ? empty() : new LuwakPersistentMap<>(newRoot, size - 1);
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		return root == null || key == null ? null : (V) root.get(hash(key), key, 0);
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return new EntryIterator<>(root);
+			}
+			
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+	
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		
+		return h ^ (h >>> 16);
+	}
+	
+	private static abstract class Node {
+		/**
+		 * Pairs of key and value. A null key marks a sub node in place of the value (bitmap nodes only)
+		 */
+		protected final Object[] array;
+		
+		protected Node(Object[] array) {
+			this.array = array;
+		}
+		
+		abstract Object get(int hash, Object key, int shift);
+		
+		abstract Node plus(int hash, Object key, Object value, int shift, boolean[] added);
+		
+		/**
+		 * @return this node if there is no such key, null if the node became empty
+		 */
+		abstract Node minus(int hash, Object key, int shift);
+	}
+	
+	/**
+	 * Node with up to 32 slots selected by 5 bits of the hash. Only the slots in use are allocated
+	 */
+	private static class BitmapNode extends Node {
+		private final static BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+		
+		private final int bitmap;
+		
+		private BitmapNode(int bitmap, Object[] array) {
+			super(array);
+			this.bitmap = bitmap;
+		}
+		
+		private static int bit(int hash, int shift) {
+			return 1 << ((hash >>> shift) & MASK);
+		}
+		
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+		
+		@Override
+		Object get(int hash, Object key, int shift) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			
+			int i = 2 * index(bit);
+			if (array[i] == null) {
+				return ((Node) array[i + 1]).get(hash, key, shift + BITS);
+			}
+			
+			return key.equals(array[i]) ? array[i + 1] : null;
+		}
+		
+		@Override
+		Node plus(int hash, Object key, Object value, int shift, boolean[] added) {
+			int bit = bit(hash, shift);
+			int i = 2 * index(bit);
+			if ((bitmap & bit) == 0) {
+				Object[] newArray = new Object[array.length + 2];
+				System.arraycopy(array, 0, newArray, 0, i);
+				newArray[i] = key;
+				newArray[i + 1] = value;
+				System.arraycopy(array, i, newArray, i + 2, array.length - i);
+				added[0] = true;
+				
+				return new BitmapNode(bitmap | bit, newArray);
+			}
+			
+			Object slotKey = array[i];
+			Object slotValue = array[i + 1];
+			if (slotKey == null) {
+				Node subNode = ((Node) slotValue).plus(hash, key, value, shift + BITS, added);
+				
+				return subNode == slotValue ? this : withSlot(i, null, subNode);
+			}
+			
+			if (key.equals(slotKey)) {
+				return value == slotValue ? this : withSlot(i, slotKey, value);
+			}
+			
+			added[0] = true;
+			
+			return withSlot(i, null, createNode(slotKey, slotValue, hash, key, value, shift + BITS));
+		}
+		
+		@Override
+		Node minus(int hash, Object key, int shift) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			
+			int i = 2 * index(bit);
+			if (array[i] == null) {
+				Node subNode = ((Node) array[i + 1]).minus(hash, key, shift + BITS);
+				if (subNode == array[i + 1]) {
+					return this;
+				}
+				
+				return subNode == null ? withoutSlot(bit, i) : withSlot(i, null, subNode);
+			}
+			
+			return key.equals(array[i]) ? withoutSlot(bit, i) : this;
+		}
+		
+		private BitmapNode withSlot(int i, Object key, Object value) {
+			Object[] newArray = array.clone();
+			newArray[i] = key;
+			newArray[i + 1] = value;
+			
+			return new BitmapNode(bitmap, newArray);
+		}
+		
+		private BitmapNode withoutSlot(int bit, int i) {
+			if (bitmap == bit) {
+				return null;
+			}
+			
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, i);
+			System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+			
+			return new BitmapNode(bitmap ^ bit, newArray);
+		}
+		
+		private static Node createNode(Object key1, Object value1, int hash2, Object key2, Object value2, int shift) {
+			int hash1 = hash(key1);
+			if (hash1 == hash2) {
+				return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+			}
+			
+			boolean[] added = new boolean[1];
+			
+			return EMPTY.plus(hash1, key1, value1, shift, added).plus(hash2, key2, value2, shift, added);
+		}
+	}
+	
+	/**
+	 * Node of keys with the same hash
+	 */
+	private static class CollisionNode extends Node {
+		private final int hash;
+		
+		private CollisionNode(int hash, Object[] array) {
+			super(array);
+			this.hash = hash;
+		}
+		
+		private int indexOf(Object key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i])) {
+					return i;
+				}
+			}
+			
+			return -1;
+		}
+		
+		@Override
+		Object get(int hash, Object key, int shift) {
+			int i = this.hash == hash ? indexOf(key) : -1;
+			
+			return i < 0 ? null : array[i + 1];
+		}
+		
+		@Override
+		Node plus(int hash, Object key, Object value, int shift, boolean[] added) {
+			if (this.hash != hash) {
+				// the collision node becomes a slot of a bitmap node on the level it was found
+				BitmapNode node = new BitmapNode(BitmapNode.bit(this.hash, shift), new Object[] { null, this });
+				
+				return node.plus(hash, key, value, shift, added);
+			}
+			
+			int i = indexOf(key);
+			if (i >= 0) {
+				if (array[i + 1] == value) {
+					return this;
+				}
+				
+				Object[] newArray = array.clone();
+				newArray[i + 1] = value;
+				
+				return new CollisionNode(hash, newArray);
+			}
+			
+			Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = key;
+			newArray[array.length + 1] = value;
+			added[0] = true;
+			
+			return new CollisionNode(hash, newArray);
+		}
+		
+		@Override
+		Node minus(int hash, Object key, int shift) {
+			int i = this.hash == hash ? indexOf(key) : -1;
+			if (i < 0) {
+				return this;
+			}
+			
+			if (array.length == 2) {
+				return null;
+			}
+			
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, i);
+			System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+			
+			return new CollisionNode(hash, newArray);
+		}
+	}
+	
+	/**
+	 * Depth first iteration over node arrays
+	 */
+	private static class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+		private final Deque<Object[]> arrays = new ArrayDeque<>();
+		private final Deque<Integer> positions = new ArrayDeque<>();
+		private Entry<K, V> next;
+		
+		private EntryIterator(Node root) {
+			if (root != null) {
+				arrays.push(root.array);
+				positions.push(0);
+			}
+			
+			next = advance();
+		}
+		
+		@SuppressWarnings("unchecked")
+		private Entry<K, V> advance() {
+			while (!arrays.isEmpty()) {
+				Object[] array = arrays.peek();
+				int i = positions.pop();
+				if (i >= array.length) {
+					arrays.pop();
+					continue;
+				}
+				
+				positions.push(i + 2);
+				if (array[i] == null) {
+					arrays.push(((Node) array[i + 1]).array);
+					positions.push(0);
+					continue;
+				}
+				
+				return new SimpleImmutableEntry<>((K) array[i], (V) array[i + 1]);
+			}
+			
+			return null;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		@Override
+		public Entry<K, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			
+			Entry<K, V> current = next;
+			next = advance();
+			
+			return current;
+		}
+	}
+}
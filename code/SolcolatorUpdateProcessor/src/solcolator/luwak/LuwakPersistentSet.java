@@ -0,0 +1,59 @@
+package solcolator.luwak;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * Immutable set sharing its structure with the set it was derived from (see LuwakPersistentMap).
+ * Null elements aren't supported
+ * @param <E> - element type
+ */
+public class LuwakPersistentSet<E> extends AbstractSet<E> {
+	private final static LuwakPersistentSet<Object> EMPTY = new LuwakPersistentSet<>(LuwakPersistentMap.empty());
+	
+	private final LuwakPersistentMap<E, Boolean> map;
+	
+	private LuwakPersistentSet(LuwakPersistentMap<E, Boolean> map) {
+		this.map = map;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static <E> LuwakPersistentSet<E> empty() {
+		return (LuwakPersistentSet<E>) EMPTY;
+	}
+	
+	/**
+	 * @param element - element to add
+	 * @return set with the given element (this set if it's already there)
+	 */
+	public LuwakPersistentSet<E> plus(E element) {
+		LuwakPersistentMap<E, Boolean> newMap = map.plus(element, Boolean.TRUE);
+		
+		return newMap == map ? this : new LuwakPersistentSet<>(newMap);
+	}
+	
+	/**
+	 * @param element - element to remove
+	 * @return set without the given element (this set if there is no such element)
+	 */
+	public LuwakPersistentSet<E> minus(Object element) {
+		LuwakPersistentMap<E, Boolean> newMap = map.minus(element);
+		
+		return newMap == map ? this : newMap.isEmpty() ? empty() : new LuwakPersistentSet<>(newMap);
+	}
+	
+	@Override
+	public boolean contains(Object element) {
+		return map.containsKey(element);
+	}
+	
+	@Override
+	public Iterator<E> iterator() {
+		return map.keySet().iterator();
+	}
+	
+	@Override
+	public int size() {
+		return map.size();
+	}
+}
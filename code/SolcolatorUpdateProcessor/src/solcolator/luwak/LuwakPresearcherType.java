@@ -0,0 +1,68 @@
+package solcolator.luwak;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import uk.co.flax.luwak.Presearcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.presearcher.MultipassTermFilteredPresearcher;
+import uk.co.flax.luwak.presearcher.PresearcherComponent;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.termextractor.querytree.TreeWeightor;
+
+/**
+ * Presearchers for selecting candidate queries:
+ * 		MatchAllPresearcher (matchall) - every registered query is run against every document
+ * 		TermFilteredPresearcher (termfiltered) - only queries sharing an indexed term with the batch are run
+ * 		MultipassTermFilteredPresearcher (multipass) - as termfiltered, but a query must match on several extracted terms
+ */
+public enum LuwakPresearcherType {
+	MATCHALL,
+	TERMFILTERED,
+	MULTIPASS;
+	
+	/**
+	 * Term extraction of solcolator query wrappers (filters of queries are wrapped by LuwakFilterQuery)
+	 */
+	private final static PresearcherComponent SOLCOLATOR_QUERIES_COMPONENT =
+			new PresearcherComponent(Collections.singletonList(LuwakFilterQuery.TREE_BUILDER));
+	
+	/**
+	 * If given presearcher type exists, function will return its enum value otherwise will throw exception.
+	 * Function is case insensitive to value of kindName
+	 * @param kindName
+	 * @return enum value of kind name or exception
+	 * @throws Exception 
+	 */
+	public static LuwakPresearcherType get(String kindName) throws Exception {
+		for (LuwakPresearcherType kind : LuwakPresearcherType.values()) {
+			if (kind.name().equalsIgnoreCase(kindName)) {
+				return kind;
+			}
+		}
+		
+		throw new Exception(String.format("Not existing luwak presearcher - %s. Legal kinds: %s",
+				kindName, Arrays.asList(LuwakPresearcherType.values())));
+	}
+	
+	/**
+	 * Create presearcher of this type
+	 * @param weightor - tree weightor (ignored by matchall)
+	 * @param passes - number of passes (used by multipass only)
+	 * @param minWeight - minimal term weight for an extra pass (used by multipass only)
+	 * @return presearcher
+	 */
+	public Presearcher createPresearcher(TreeWeightor weightor, int passes, float minWeight) {
+		switch (this) {
+			case TERMFILTERED:
+				return new TermFilteredPresearcher(weightor, SOLCOLATOR_QUERIES_COMPONENT);
+				
+			case MULTIPASS:
+				return new MultipassTermFilteredPresearcher(passes, minWeight, weightor, SOLCOLATOR_QUERIES_COMPONENT);
+				
+			case MATCHALL:
+			default:
+				return new MatchAllPresearcher();
+		}
+	}
+}
@@ -1,37 +1,129 @@
 package solcolator.luwak;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.SolrCore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import solcolator.io.api.IQueryChangeFeed;
 import solcolator.io.api.ISolcolatorResultsWriter;
+import solcolator.io.api.IWatchableQueryReader;
 import solcolator.io.api.SolcolatorQuery;
+import solcolator.io.api.SolcolatorQueryChanges;
 import solcolator.io.api.IQueryReader;
+
+import com.google.common.util.concurrent.Striped;
+
+import uk.co.flax.luwak.InputDocument;
 import uk.co.flax.luwak.Monitor;
+import uk.co.flax.luwak.MonitorQuery;
 import uk.co.flax.luwak.MonitorQueryParser;
 import uk.co.flax.luwak.Presearcher;
+import uk.co.flax.luwak.QueryError;
+import uk.co.flax.luwak.QueryIndexConfiguration;
 import uk.co.flax.luwak.UpdateException;
-import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
 
 /**
  * The class is responsible for managing (add/update/delete) queries
  */
 public class LuwakQueriesManager implements AutoCloseable {
-	private final static Object updatedLock = new Object();
+	private final static ReadWriteLock bulkLock = new ReentrantReadWriteLock();	// bulk operations (load/refresh all) exclude single query updates
+	private final static int QUERY_LOCK_STRIPES = 64;
 	private final static LuwakQueriesManager manager = new LuwakQueriesManager();
+	private final static String QUERY_INDEX_DIR = "solcolator";
+	private final static String QUERY_INDEX_GENERATION_PREFIX = "gen_";
+	private final static String WARMUP_DOC_ID = "_solcolator_warmup";
+	private final static String REBUILD_STATISTICS = "rebuildStatistics";
+	private final static String CHANGE_FEED_STATISTICS = "changeFeedStatistics";
+	private final static String CHANGE_FEED_TOKEN_FILE = "change_feed.token";
 	
 	private final Logger log = LoggerFactory.getLogger(LuwakQueriesManager.class);
 		
-	private Monitor monitor;
-	private Map<String,LuwakQuery> queryIdToLuwakQuery;
+	private final AtomicReference<LuwakMonitorHolder> monitorHolder = new AtomicReference<>();
+	private final Object rebuildLock = new Object();
+	private final AtomicReference<LuwakQueryRegistry> registry = new AtomicReference<>(LuwakQueryRegistry.empty(null, null));
+	private final Striped<Lock> queryLocks = Striped.lock(QUERY_LOCK_STRIPES);	// single query updates of the same id are serialized
 	private IQueryReader reader;
 	private List<ISolcolatorResultsWriter> writers;
 	private List<String> componentsToParser;
+	private Presearcher presearcher;
+	private LuwakParser parser;
+	private LuwakMatchStatistics matchStatistics;
+	private boolean persistentQueryIndex;
+	private Set<String> persistedQueryIds = new HashSet<>();
+	private Path queryIndexPath;
+	private long queryIndexGeneration;
+	private int loadThreads;
+	private int loadBatchSize;
+	private ExecutorService loadService;	// created on demand, shut down on close (guarded by this)
+	private LuwakLoadStatistics loadStatistics;
+	private boolean shadowRebuild;
+	private int rebuildThreads;
+	private ExecutorService rebuildService;	// created on demand, shut down on close (guarded by this)
+	private long nowBucketMs;
+	private volatile Map<String, LuwakQuery> rebuildJournal;	// single query changes made while rebuilding (null value - deletion)
+	private final AtomicLong rebuilds = new AtomicLong();
+	private final AtomicLong failedRebuilds = new AtomicLong();
+	private volatile long lastRebuildTimeMs = -1;
+	private volatile long lastSwapTimestamp = -1;
+	private long changeFeedPollIntervalMs;
+	private Path changeFeedTokenPath;
+	private volatile String changeFeedToken;	// token of the last applied changes of the change feed (see IQueryChangeFeed)
+	private ScheduledExecutorService changeFeedPoller;
+	private final AtomicLong changeFeedPolls = new AtomicLong();
+	private final AtomicLong changeFeedAppliedChanges = new AtomicLong();
+	private volatile long lastChangeFeedPollTimestamp = -1;
+	private Map<String, Supplier<NamedList<Object>>> componentsStatistics = new ConcurrentHashMap<>();
 		
 	public static LuwakQueriesManager getQueriesManager() {
 		return manager;
@@ -40,80 +132,759 @@ public class LuwakQueriesManager implements AutoCloseable {
 	// ======================================= INIT & CLOSE ======================================= //
 	/**
 	 * Initializing mappings (queryIdToSolrQuery)
+	 * @param loadThreads - number of threads parsing queries in parallel on bulk load
+	 * @param loadBatchSize - number of queries added to monitor with a single commit on bulk load
+	 * @param shadowRebuild - REFRESH and REREAD build a new monitor in the background and swap it in
+	 * @param rebuildThreads - number of low priority threads parsing queries on shadow rebuild
+	 * @param nowBucketMs - NOW rounding of time relative queries resolved at match time, 0 - NOW is resolved at parse time
+	 * @param deduplicateQueries - identical queries are registered in the monitor once (see LuwakQueryCanonicalizer)
+	 * @param changeFeedPollIntervalMs - poll interval of a reader with change feed (see IQueryChangeFeed), 0 - the feed isn't polled
 	 */
- 	public void init(IQueryReader reader, List<ISolcolatorResultsWriter> writers, List<String> componentsToParser) {
-		queryIdToLuwakQuery = new HashMap<>();
+ 	public void init(IQueryReader reader, List<ISolcolatorResultsWriter> writers, List<String> componentsToParser, Presearcher presearcher,
+ 			boolean persistentQueryIndex, int loadThreads, int loadBatchSize, boolean shadowRebuild, int rebuildThreads, long nowBucketMs,
+ 			boolean deduplicateQueries, long changeFeedPollIntervalMs) {
+		registry.set(LuwakQueryRegistry.empty(deduplicateQueries ? new LuwakQueryCanonicalizer() : null, query -> parser.getReferencedFields(query)));
+		matchStatistics = new LuwakMatchStatistics();
 		
 		this.reader = reader;
 		this.writers = writers;
 		this.componentsToParser = componentsToParser;
+		this.presearcher = new LuwakRestrictedPresearcher(presearcher);	// candidates of partially changed documents are restricted
+		this.persistentQueryIndex = persistentQueryIndex;
+		this.loadThreads = loadThreads;
+		this.loadBatchSize = loadBatchSize;
+		this.shadowRebuild = shadowRebuild;
+		this.rebuildThreads = rebuildThreads;
+		this.nowBucketMs = nowBucketMs;
+		this.changeFeedPollIntervalMs = reader instanceof IQueryChangeFeed ? changeFeedPollIntervalMs : 0;
+		
+		registerStatistics(REBUILD_STATISTICS, this::getRebuildStatistics);
+		if (this.changeFeedPollIntervalMs > 0) {
+			registerStatistics(CHANGE_FEED_STATISTICS, this::getChangeFeedStatistics);
+		}
 		
 		log.info("LuwakQueriesManager was initialized successfully");
 	}
 	
 	/**
 	 * Create Luwak monitor for storing solcolator queries
+	 * In the case of persistent query index, the monitor is backed by a memory-mapped directory under the core's data dir
+	 * (the latest generation directory, each shadow rebuild creates a new generation)
 	 * @param core - solr core
 	 * @throws ExceptionInInitializerError
 	 */
 	public void createMonitor(SolrCore core) throws ExceptionInInitializerError {
-		MonitorQueryParser parser = new LuwakParser(core, componentsToParser);
-		Presearcher presearcher = new MatchAllPresearcher();
+		parser = new LuwakParser(core, componentsToParser, nowBucketMs);
+		changeFeedTokenPath = Paths.get(core.getDataDir(), QUERY_INDEX_DIR, CHANGE_FEED_TOKEN_FILE);
+		Monitor monitor = null;
+		
+		LuwakMonitorHolder previous = monitorHolder.getAndSet(null);
+		if (previous != null) {
+			previous.retire(null);	// core reload: release the previous monitor (and its query index lock)
+		}
 		
 		try {
-			monitor = new Monitor(parser, presearcher);
+			if (persistentQueryIndex) {
+				queryIndexPath = Paths.get(core.getDataDir(), QUERY_INDEX_DIR);
+				queryIndexGeneration = findLatestGeneration(queryIndexPath);
+				monitor = createPersistentMonitor(parser, getGenerationPath(queryIndexGeneration));
+			} else {
+				monitor = new Monitor(parser, presearcher, createQueryIndexConfiguration());
+			}
 		} catch (IOException e) {
 			log.error("Failed to create Monitor", e);
 			
-			try {
-				if (monitor != null) {
-					monitor.close();
+			throw new ExceptionInInitializerError(e);
+		}
+		
+		monitorHolder.set(new LuwakMonitorHolder(monitor));
+		
+		log.info(String.format("LuwakQueriesManager monitor was created successfully with %s", presearcher));
+	}
+	
+	/**
+	 * Open (or create) persistent monitor. Queries stored in the query index are reopened by the monitor itself,
+	 * so they don't have to be updated again. If the stored index can't be reopened, it is rebuilt from scratch
+	 * @param parser - query parser
+	 * @param path - query index path
+	 * @return monitor
+	 * @throws IOException
+	 */
+	private Monitor createPersistentMonitor(MonitorQueryParser parser, Path path) throws IOException {
+		Directory directory = new MMapDirectory(path);
+		QueryIndexConfiguration config = createQueryIndexConfiguration().storeQueries(true);
+		IndexWriter writer = null;
+		
+		try {
+			persistedQueryIds = readPersistedQueryIds(directory);
+			writer = createQueryIndexWriter(directory, OpenMode.CREATE_OR_APPEND);
+			Monitor persistentMonitor = new Monitor(parser, presearcher, writer, config);
+			log.info(String.format("Persistent query index %s was opened with %d stored queries", path, persistedQueryIds.size()));
+			
+			return persistentMonitor;
+		} catch (IOException e) {
+			log.error(String.format("Failed to reopen persistent query index %s, it will be rebuilt from scratch", path), e);
+			IOUtils.closeWhileHandlingException(writer);
+			persistedQueryIds = new HashSet<>();
+			
+			return new Monitor(parser, presearcher, createQueryIndexWriter(directory, OpenMode.CREATE), config);
+		}
+	}
+	
+	/**
+	 * Find the latest generation of the persistent query index, older generations (left by a crash during swap) are removed
+	 * @param path - query index path
+	 * @return latest generation or 0 if there is no generation yet
+	 * @throws IOException
+	 */
+	private long findLatestGeneration(Path path) throws IOException {
+		List<Long> generations = new ArrayList<>();
+		
+		if (Files.isDirectory(path)) {
+			try (DirectoryStream<Path> dirs = Files.newDirectoryStream(path, QUERY_INDEX_GENERATION_PREFIX + "*")) {
+				for (Path dir : dirs) {
+					try {
+						generations.add(Long.parseLong(dir.getFileName().toString().substring(QUERY_INDEX_GENERATION_PREFIX.length())));
+					} catch (NumberFormatException e) {
+						log.warn(String.format("Unexpected directory %s in persistent query index", dir));
+					}
 				}
-			} catch (IOException ex) {
-				log.error("Failed to close Monitor", ex);
 			}
-			
-			throw new ExceptionInInitializerError(e);
 		}
 		
-		log.info("LuwakQueriesManager monitor was created successfully");
+		if (generations.isEmpty()) {
+			return 0;
+		}
+		
+		long latest = Collections.max(generations);
+		for (long generation : generations) {
+			if (generation != latest) {
+				deleteQueryIndex(getGenerationPath(generation));
+			}
+		}
+		
+		return latest;
+	}
+	
+	private Path getGenerationPath(long generation) {
+		return queryIndexPath.resolve(QUERY_INDEX_GENERATION_PREFIX + generation);
+	}
+	
+	private void deleteQueryIndex(Path path) {
+		try {
+			IOUtils.rm(path);
+			log.info(String.format("Query index %s was removed", path));
+		} catch (IOException e) {
+			log.error(String.format("Failed to remove query index %s", path), e);
+		}
+	}
+	
+	private QueryIndexConfiguration createQueryIndexConfiguration() {
+		return new QueryIndexConfiguration().setQueryUpdateBufferSize(loadBatchSize);
+	}
+	
+	private IndexWriter createQueryIndexWriter(Directory directory, OpenMode openMode) throws IOException {
+		IndexWriterConfig iwc = new IndexWriterConfig(new KeywordAnalyzer()).setOpenMode(openMode);
+		
+		return new IndexWriter(directory, iwc);
+	}
+	
+	/**
+	 * Read ids of all live queries stored in the query index
+	 * @param directory - query index directory
+	 * @return set of stored query ids
+	 * @throws IOException
+	 */
+	private Set<String> readPersistedQueryIds(Directory directory) throws IOException {
+		Set<String> queryIds = new HashSet<>();
+		
+		if (!DirectoryReader.indexExists(directory)) {
+			return queryIds;
+		}
+		
+		try (DirectoryReader indexReader = DirectoryReader.open(directory)) {
+			for (LeafReaderContext context : indexReader.leaves()) {
+				LeafReader leafReader = context.reader();
+				Terms terms = leafReader.terms(Monitor.FIELDS.id);
+				if (terms == null) {
+					continue;
+				}
+				
+				Bits liveDocs = leafReader.getLiveDocs();
+				TermsEnum termsEnum = terms.iterator();
+				PostingsEnum postings = null;
+				BytesRef term;
+				while ((term = termsEnum.next()) != null) {
+					postings = termsEnum.postings(postings, PostingsEnum.NONE);
+					for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+						if (liveDocs == null || liveDocs.get(doc)) {
+							queryIds.add(term.utf8ToString());
+							break;
+						}
+					}
+				}
+			}
+		}
+		
+		return queryIds;
 	}
 	
 	/**
 	 * Load solcolator queries to Luwak monitor
+	 * Read queries are diffed against the registered ones by a content hash of query text and metadata:
+	 * only added and changed queries are parsed and updated in monitor (in parallel, a single commit per batch)
+	 * and registered queries which don't exist in the source anymore are deleted at once
+	 * In the case of persistent query index, queries which source text and metadata weren't changed since the last run
+	 * aren't updated again, and stored queries which don't exist in the source anymore are deleted
 	 * @param reqHandlerMetadata - Request handler metadata (default args)
+	 * @return load statistics
 	 */
-	public void loadQueriesToSolcolator(Map<String, String> reqHandlerMetadata) {	
+	public LuwakLoadStatistics loadQueriesToSolcolator(Map<String, String> reqHandlerMetadata) {	
+		synchronized (rebuildLock) {	// a shadow rebuild would drop the changes of a load made meanwhile
+			try {
+				long start = System.currentTimeMillis();
+				String token = readCurrentChangeFeedToken();	// changes made while reading are applied by the next poll
+				List<SolcolatorQuery> solcolatorQueries = reader.readAllQueries(reqHandlerMetadata);
+				
+				bulkLock.writeLock().lock();
+				try {
+					loadStatistics = applyQueries(solcolatorQueries, new HashSet<>(registry.get().getQueries().keySet()), start);
+					deleteStaleStoredQueries();
+				} finally {
+					bulkLock.writeLock().unlock();
+				}
+				
+				saveChangeFeedToken(token);
+				
+				log.info(String.format("Solcolator finished to load queries: %s. Monitor contains %d queries", loadStatistics, getMonitor().getQueryCount()));
+				
+				return loadStatistics;
+			} catch (Exception e) {
+				String errMessage = "Failed to load queries to monitor";
+				log.error(errMessage, e);
+				
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+	}
+	
+	/**
+	 * Apply changes of the queries source automatically, if the reader can watch it (see IWatchableQueryReader)
+	 * Changes are pulled and applied in coalesced batches, like a load of the changed queries only
+	 * The reader isn't watched if its change feed is polled (see pollChangeFeed), the feed provides the same changes
+	 * @param reqHandlerMetadata - Request handler metadata (default args)
+	 */
+	public void watchQueries(Map<String, String> reqHandlerMetadata) {
+		if (!(reader instanceof IWatchableQueryReader)) {
+			return;
+		}
+		
+		if (changeFeedPollIntervalMs > 0) {
+			log.warn("The queries source isn't watched, since its change feed is polled (changeFeedPollIntervalMs)");
+			return;
+		}
+		
+		IWatchableQueryReader watchableReader = (IWatchableQueryReader) reader;
 		try {
-			long start = System.currentTimeMillis();
-			List<SolcolatorQuery> solcolatorQueries = reader.readAllQueries(reqHandlerMetadata);
-			
-			for (SolcolatorQuery solcolatorQuery : solcolatorQueries) {
+			if (watchableReader.watch(() -> applyQueryChanges(watchableReader, reqHandlerMetadata))) {
+				log.info("Solcolator is watching the queries source, its changes are applied automatically");
+			}
+		} catch (Exception e) {
+			log.error("Failed to watch the queries source, queries are changed by REREAD/UPDATE/DELETE commands only", e);
+		}
+	}
+	
+	private void applyQueryChanges(IWatchableQueryReader watchableReader, Map<String, String> reqHandlerMetadata) {
+		synchronized (rebuildLock) {	// changes are read and applied in the same order as loads
+			try {
+				long start = System.currentTimeMillis();
+				SolcolatorQueryChanges changes = watchableReader.readChanges(reqHandlerMetadata);
+				if (changes.isEmpty()) {
+					return;
+				}
+				
+				LuwakLoadStatistics statistics;
+				bulkLock.writeLock().lock();
+				try {
+					statistics = applyQueries(changes.getUpsertedQueries(), new HashSet<>(changes.getDeletedQueryIds()), start);
+				} finally {
+					bulkLock.writeLock().unlock();
+				}
+				
+				if (statistics.getAddedQueries() + statistics.getChangedQueries() + statistics.getRemovedQueries() > 0) {
+					log.info(String.format("Solcolator applied changes of the queries source: %s", statistics));
+				}
+			} catch (Exception e) {
+				log.error("Failed to apply changes of the queries source", e);
+			}
+		}
+	}
+	
+	/**
+	 * Resume queries of the previous run instead of loading all queries: stored queries of the persistent query index
+	 * are registered as they are and only changes since the persisted change feed token are read (see IQueryChangeFeed)
+	 * Names of resumed queries are unknown until they are changed. Deduplicated queries can't be resumed
+	 * (stored monitor queries don't keep ids of their subscribers)
+	 * @param reqHandlerMetadata - Request handler metadata (default args)
+	 * @return true if queries were resumed, otherwise all queries have to be loaded
+	 */
+	public boolean resumeQueries(Map<String, String> reqHandlerMetadata) {
+		if (changeFeedPollIntervalMs <= 0 || !persistentQueryIndex || registry.get().isDeduplicated()
+				|| persistedQueryIds.isEmpty() || !Files.exists(changeFeedTokenPath)) {
+			return false;
+		}
+		
+		synchronized (rebuildLock) {
+			try {
+				long start = System.currentTimeMillis();
+				String token = new String(Files.readAllBytes(changeFeedTokenPath), StandardCharsets.UTF_8);
+				List<LuwakQuery> storedQueries = new ArrayList<>(persistedQueryIds.size());
+				for (String queryId : persistedQueryIds) {
+					MonitorQuery storedQuery = getMonitor().getQuery(queryId);
+					if (storedQuery != null) {
+						storedQueries.add(new LuwakQuery(queryId, null, storedQuery.getQuery(), storedQuery.getMetadata()));
+					}
+				}
+				
+				bulkLock.writeLock().lock();
 				try {
-					LuwakQuery luwakQuery = new LuwakQuery(solcolatorQuery.getQueryId(),
-							solcolatorQuery.getQueryName(),
-							solcolatorQuery.getQuery(),
-							solcolatorQuery.getQueryMetadata());
-					updateQueryInMonitor(luwakQuery);
-					queryIdToLuwakQuery.put(luwakQuery.getId(), luwakQuery);
-				} catch(Exception ex) {
-					// Nothing to do. Solcolator will continue to load queries to monitor
-				}			
-			}
-			
-			log.info(String.format("Solcolator finished to load %d queries in %s miliseconds", monitor.getQueryCount(), System.currentTimeMillis() - start));
+					registry.updateAndGet(snapshot -> snapshot.withQueries(storedQueries));
+					parser.clearReferencedFields();
+					persistedQueryIds = new HashSet<>();
+				} finally {
+					bulkLock.writeLock().unlock();
+				}
+				
+				changeFeedToken = token;
+				log.info(String.format("Solcolator resumed %d stored queries at change feed token %s in %d miliseconds",
+						storedQueries.size(), token, System.currentTimeMillis() - start));
+			} catch (Exception e) {
+				log.error("Failed to resume queries, all queries will be loaded", e);
+				
+				return false;
+			}
+		}
+		
+		applyChangeFeed((IQueryChangeFeed) reader, reqHandlerMetadata);		// changes made since the previous run
+		
+		return true;
+	}
+	
+	/**
+	 * Poll the change feed of the reader (see IQueryChangeFeed) every changeFeedPollIntervalMs.
+	 * All changes since the last applied token are applied as a single batch, then the new token is persisted
+	 * @param reqHandlerMetadata - Request handler metadata (default args)
+	 */
+	public void pollChangeFeed(Map<String, String> reqHandlerMetadata) {
+		if (changeFeedPollIntervalMs <= 0) {
+			return;
+		}
+		
+		IQueryChangeFeed changeFeed = (IQueryChangeFeed) reader;
+		changeFeedPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "solcolator-change-feed");
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+		changeFeedPoller.scheduleWithFixedDelay(() -> applyChangeFeed(changeFeed, reqHandlerMetadata),
+				changeFeedPollIntervalMs, changeFeedPollIntervalMs, TimeUnit.MILLISECONDS);
+		
+		log.info(String.format("Solcolator polls the change feed of the queries source every %d ms", changeFeedPollIntervalMs));
+	}
+	
+	private void applyChangeFeed(IQueryChangeFeed changeFeed, Map<String, String> reqHandlerMetadata) {
+		synchronized (rebuildLock) {	// changes are read and applied in the same order as loads
+			try {
+				long start = System.currentTimeMillis();
+				SolcolatorQueryChanges changes = changeFeed.readChangesSince(changeFeedToken, reqHandlerMetadata);
+				changeFeedPolls.incrementAndGet();
+				lastChangeFeedPollTimestamp = start;
+				
+				if (!changes.isEmpty()) {
+					LuwakLoadStatistics statistics;
+					bulkLock.writeLock().lock();
+					try {
+						statistics = applyQueries(changes.getUpsertedQueries(), new HashSet<>(changes.getDeletedQueryIds()), start);
+					} finally {
+						bulkLock.writeLock().unlock();
+					}
+					
+					long appliedChanges = statistics.getAddedQueries() + statistics.getChangedQueries() + statistics.getRemovedQueries();
+					changeFeedAppliedChanges.addAndGet(appliedChanges);
+					if (appliedChanges > 0) {
+						log.info(String.format("Solcolator applied changes of the change feed: %s", statistics));
+					}
+				}
+				
+				saveChangeFeedToken(changes.getToken());
+			} catch (Exception e) {
+				log.error("Failed to apply changes of the change feed", e);
+			}
+		}
+	}
+	
+	private String readCurrentChangeFeedToken() {
+		if (changeFeedPollIntervalMs <= 0) {
+			return null;
+		}
+		
+		try {
+			return ((IQueryChangeFeed) reader).getCurrentToken();
+		} catch (IOException e) {
+			log.error("Failed to read the current change feed token, the next poll reads all changes", e);
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * The token is persisted once its changes are applied, so a restart applies the same changes again at worst
+	 * It's persisted with persistent query index only (otherwise all queries are loaded on restart anyway)
+	 * @param token - token of the applied changes
+	 * @throws IOException
+	 */
+	private void saveChangeFeedToken(String token) throws IOException {
+		if (token == null || (token.equals(changeFeedToken) && Files.exists(changeFeedTokenPath))) {
+			return;
+		}
+		
+		changeFeedToken = token;
+		if (!persistentQueryIndex) {
+			return;
+		}
+		
+		Path tempPath = changeFeedTokenPath.resolveSibling(CHANGE_FEED_TOKEN_FILE + ".tmp");
+		Files.createDirectories(changeFeedTokenPath.getParent());
+		Files.write(tempPath, token.getBytes(StandardCharsets.UTF_8));
+		Files.move(tempPath, changeFeedTokenPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private NamedList<Object> getChangeFeedStatistics() {
+		NamedList<Object> stats = new NamedList<>();
+		stats.add("pollIntervalMs", changeFeedPollIntervalMs);
+		stats.add("token", changeFeedToken);
+		stats.add("polls", changeFeedPolls.get());
+		stats.add("appliedChanges", changeFeedAppliedChanges.get());
+		stats.add("lastPollTimestamp", lastChangeFeedPollTimestamp < 0 ? null : Instant.ofEpochMilli(lastChangeFeedPollTimestamp).toString());
+		
+		return stats;
+	}
+	
+	/**
+	 * Diff queries against the registered ones by a content hash of query text and metadata, update added and changed queries
+	 * and delete removed ones. Called under bulk write lock
+	 * @param solcolatorQueries - read queries
+	 * @param removedQueryIds - ids of queries to delete (ids of read and not registered queries are ignored)
+	 * @param start - start time of the load
+	 * @return load statistics
+	 * @throws Exception
+	 */
+	private LuwakLoadStatistics applyQueries(List<SolcolatorQuery> solcolatorQueries, Set<String> removedQueryIds, long start) throws Exception {
+		List<LuwakQuery> queriesToUpdate = new ArrayList<>();
+		List<LuwakQuery> queriesToPublish = new ArrayList<>();	// unchanged queries which are renamed or not registered yet
+		Set<String> addedQueryIds = new HashSet<>();
+		int unchangedQueries = 0;
+		
+		LuwakQueryRegistry current = registry.get();
+		for (SolcolatorQuery solcolatorQuery : solcolatorQueries) {
+			LuwakQuery luwakQuery = new LuwakQuery(solcolatorQuery.getQueryId(),
+					solcolatorQuery.getQueryName(),
+					solcolatorQuery.getQuery(),
+					solcolatorQuery.getQueryMetadata());
+			LuwakQuery registeredQuery = current.getQuery(luwakQuery.getId());
+			removedQueryIds.remove(luwakQuery.getId());
+			
+			if (registeredQuery != null && registeredQuery.getContentHash().equals(luwakQuery.getContentHash())) {
+				unchangedQueries++;
+				if (!Objects.equals(registeredQuery.getQueryName(), luwakQuery.getQueryName())) {
+					queriesToPublish.add(luwakQuery);
+				}
+			} else if (registeredQuery == null && persistentQueryIndex && isStoredAndUnchanged(luwakQuery)) {
+				unchangedQueries++;
+				queriesToPublish.add(luwakQuery);
+			} else {
+				if (registeredQuery == null) {
+					addedQueryIds.add(luwakQuery.getId());
+				}
+				queriesToUpdate.add(luwakQuery);
+			}
+		}
+		
+		removedQueryIds.retainAll(current.getQueries().keySet());
+		registry.updateAndGet(snapshot -> snapshot.withQueries(queriesToPublish));	// monitor queries are kept
+		LuwakQueryRegistry previousRegistry = publishQueries(queriesToUpdate);
+		Map<String, String> failedQueries = bulkUpdateQueriesInMonitor(getMonitor(), queriesToUpdate, getLoadService());
+		completePublishedQueries(queriesToUpdate, failedQueries, previousRegistry);
+		deleteRemovedQueries(removedQueryIds);
+		parser.clearReferencedFields();
+		
+		int failedAddedQueries = (int) failedQueries.keySet().stream().filter(addedQueryIds::contains).count();
+		
+		return new LuwakLoadStatistics(solcolatorQueries.size(),
+				addedQueryIds.size() - failedAddedQueries,
+				queriesToUpdate.size() - addedQueryIds.size() - (failedQueries.size() - failedAddedQueries),
+				removedQueryIds.size(),
+				unchangedQueries,
+				failedQueries,
+				System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Add/update queries in monitor. Batches of queries are parsed in parallel and each batch is committed once
+	 * With deduplication, identical queries are parsed and added once
+	 * @param target - monitor to update
+	 * @param queries - queries to add/update
+	 * @param pool - pool parsing queries (load or rebuild pool of the manager)
+	 * @return map between id of failed query and its error
+	 * @throws Exception
+	 */
+	private Map<String, String> bulkUpdateQueriesInMonitor(Monitor target, List<LuwakQuery> queries, ExecutorService pool) throws Exception {
+		Map<String, String> failedMonitorQueries = new HashMap<>();
+		List<MonitorQuery> monitorQueries = new ArrayList<>(toMonitorQueries(queries).values());
+		
+		List<Future<Map<String, String>>> futures = new ArrayList<>();
+		for (int from = 0; from < monitorQueries.size(); from += loadBatchSize) {
+			List<MonitorQuery> batch = new ArrayList<>(monitorQueries.subList(from, Math.min(from + loadBatchSize, monitorQueries.size())));
+			futures.add(pool.submit(() -> updateBatchInMonitor(target, batch)));
+		}
+		
+		for (Future<Map<String, String>> future : futures) {
+			failedMonitorQueries.putAll(future.get());
+		}
+		
+		return getFailedQueries(queries, failedMonitorQueries);
+	}
+	
+	/**
+	 * @param queries - solcolator queries
+	 * @return map between monitor id and query to register in the monitor (identical queries are registered once with deduplication)
+	 */
+	private Map<String, MonitorQuery> toMonitorQueries(List<LuwakQuery> queries) {
+		LuwakQueryRegistry current = registry.get();
+		Map<String, MonitorQuery> monitorQueries = new LinkedHashMap<>();
+		
+		for (LuwakQuery query : queries) {
+			MonitorQuery monitorQuery = current.createMonitorQuery(query);
+			monitorQueries.putIfAbsent(monitorQuery.getId(), monitorQuery);
+		}
+		
+		return monitorQueries;
+	}
+	
+	/**
+	 * @param queries - solcolator queries
+	 * @param failedMonitorQueries - map between id of failed monitor query and its error
+	 * @return map between id of failed solcolator query and its error
+	 */
+	private Map<String, String> getFailedQueries(List<LuwakQuery> queries, Map<String, String> failedMonitorQueries) {
+		Map<String, String> failedQueries = new HashMap<>();
+		if (failedMonitorQueries.isEmpty()) {
+			return failedQueries;
+		}
+		
+		LuwakQueryRegistry current = registry.get();
+		for (LuwakQuery query : queries) {
+			String error = failedMonitorQueries.get(current.getMonitorId(query));
+			if (error != null) {
+				failedQueries.put(query.getId(), error);
+			}
+		}
+		
+		return failedQueries;
+	}
+	
+	/**
+	 * @return pool parsing queries on bulk load, it's kept between loads
+	 */
+	private synchronized ExecutorService getLoadService() {
+		if (loadService == null || loadService.isShutdown()) {
+			loadService = Executors.newFixedThreadPool(loadThreads, r -> {
+				Thread thread = new Thread(r, "solcolator-load");
+				thread.setDaemon(true);
+				
+				return thread;
+			});
+		}
+		
+		return loadService;
+	}
+	
+	/**
+	 * Publish queries in a new registry snapshot before they are updated in the live monitor,
+	 * so a match of a new query always finds it. Queries which fail to update are reverted by revertQueries
+	 * @param queries - queries to add/update
+	 * @return snapshot before the queries were published
+	 */
+	private LuwakQueryRegistry publishQueries(List<LuwakQuery> queries) {
+		return registry.getAndUpdate(current -> current.withQueries(queries));
+	}
+	
+	/**
+	 * Revert published queries which failed to update in the live monitor.
+	 * Monitor queries left without subscribers (the query was changed to another canonical query) are deleted.
+	 * The version is bumped once the monitor is updated, so documents skipped as unchanged are matched against the new queries
+	 * Must be called under bulk write lock
+	 * @param queries - published queries
+	 * @param failedQueries - map between id of failed query and its error
+	 * @param previousRegistry - snapshot before the queries were published
+	 * @throws IOException
+	 */
+	private void completePublishedQueries(List<LuwakQuery> queries, Map<String, String> failedQueries, LuwakQueryRegistry previousRegistry) throws IOException {
+		revertQueries(failedQueries.keySet(), previousRegistry);
+		deleteOrphanedMonitorQueries(getMonitor(), previousRegistry, registry.get(), getQueryIds(getSucceededQueries(queries, failedQueries)));
+		if (failedQueries.size() < queries.size()) {
+			registry.updateAndGet(LuwakQueryRegistry::withNextVersion);
+		}
+	}
+	
+	/**
+	 * Delete monitor queries which subscribers were all changed or deleted
+	 * @param target - monitor
+	 * @param before - registry before the changes
+	 * @param after - registry after the changes
+	 * @param queryIds - ids of changed/deleted solcolator queries
+	 * @throws IOException
+	 */
+	private void deleteOrphanedMonitorQueries(Monitor target, LuwakQueryRegistry before, LuwakQueryRegistry after, Collection<String> queryIds) throws IOException {
+		Set<String> orphanedMonitorIds = new HashSet<>();
+		for (String queryId : queryIds) {
+			String monitorId = before.getMonitorId(queryId);
+			if (monitorId != null && after.getSubscribers(monitorId).isEmpty()) {
+				orphanedMonitorIds.add(monitorId);
+			}
+		}
+		
+		if (!orphanedMonitorIds.isEmpty()) {
+			target.deleteById(orphanedMonitorIds);
+			log.info(String.format("%d monitor queries without subscribers were deleted", orphanedMonitorIds.size()));
+		}
+	}
+	
+	/**
+	 * Delete registered queries which don't exist in the source anymore (monitor queries without other subscribers are deleted at once)
+	 * @param queryIds - ids of removed queries
+	 * @throws IOException
+	 */
+	private void deleteRemovedQueries(Set<String> queryIds) throws IOException {
+		if (queryIds.isEmpty()) {
+			return;
+		}
+		
+		LuwakQueryRegistry before = registry.get();
+		LuwakQueryRegistry after = registry.updateAndGet(snapshot -> snapshot.withoutQueries(queryIds));
+		
+		deleteOrphanedMonitorQueries(getMonitor(), before, after, queryIds);
+		log.info(String.format("%d queries which don't exist in the source anymore were deleted", queryIds.size()));
+	}
+	
+	private List<LuwakQuery> getSucceededQueries(List<LuwakQuery> queries, Map<String, String> failedQueries) {
+		List<LuwakQuery> succeededQueries = new ArrayList<>(queries.size());
+		for (LuwakQuery query : queries) {
+			if (!failedQueries.containsKey(query.getId())) {
+				succeededQueries.add(query);
+			}
+		}
+		
+		return succeededQueries;
+	}
+	
+	private List<String> getQueryIds(List<LuwakQuery> queries) {
+		List<String> queryIds = new ArrayList<>(queries.size());
+		for (LuwakQuery query : queries) {
+			queryIds.add(query.getId());
+		}
+		
+		return queryIds;
+	}
+	
+	/**
+	 * Add/update batch of queries in monitor (parsing + a single commit)
+	 * @param target - monitor to update
+	 * @param batch - queries to add/update
+	 * @return map between id of failed query and its error
+	 */
+	private Map<String, String> updateBatchInMonitor(Monitor target, List<MonitorQuery> batch) {
+		Map<String, String> failedQueries = new HashMap<>();
+		
+		try {
+			target.update(batch);
+		} catch (UpdateException e) {
+			log.error(String.format("Failed to load %d queries due to %s", e.errors.size(), LuwakUpdateException.getPrintableErrorString(e.errors)));
+			
+			for (QueryError error : e.errors) {
+				failedQueries.put(error.query.getId(), String.valueOf(error.error));
+			}
 		} catch (Exception e) {
-			String errMessage = "Failed to load queries to monitor";
-			log.error(errMessage, e);
+			log.error(String.format("Failed to load batch of %d queries", batch.size()), e);
 			
-			throw new ExceptionInInitializerError(e);
+			for (MonitorQuery query : batch) {
+				failedQueries.put(query.getId(), e.toString());
+			}
+		}
+		
+		return failedQueries;
+	}
+	
+	/**
+	 * Check if query is already stored in the monitor with the same query text and metadata
+	 * With deduplication, the monitor id is a hash of canonical query text and metadata, so it's enough the query is stored
+	 * @param luwakQuery
+	 * @return true if the stored query is up to date
+	 * @throws IOException
+	 */
+	private boolean isStoredAndUnchanged(LuwakQuery luwakQuery) throws IOException {
+		LuwakQueryRegistry current = registry.get();
+		MonitorQuery storedQuery = getMonitor().getQuery(current.getMonitorId(luwakQuery));
+		
+		if (current.isDeduplicated()) {
+			return storedQuery != null;
+		}
+		
+		return storedQuery != null
+				&& storedQuery.getQuery().equals(luwakQuery.getQuery())
+				&& storedQuery.getMetadata().equals(luwakQuery.getMetadata());
+	}
+	
+	/**
+	 * Delete queries which were stored in the persistent query index by the previous run, but aren't registered anymore
+	 * (don't exist in the source or were failed to load)
+	 */
+	private void deleteStaleStoredQueries() {
+		if (persistedQueryIds.isEmpty()) {
+			return;
 		}
+		
+		persistedQueryIds.removeAll(registry.get().getMonitorIds());
+		
+		try {
+			getMonitor().deleteById(persistedQueryIds);
+			log.info(String.format("%d stale stored queries were deleted from monitor", persistedQueryIds.size()));
+		} catch (Exception e) {
+			log.error("Failed to delete stale stored queries from monitor", e);
+		}
+		
+		persistedQueryIds = new HashSet<>();
 	}
 	
 	/**
 	 * Closing all used resources
 	 */
 	public void close() {
+		if (changeFeedPoller != null) {
+			changeFeedPoller.shutdownNow();
+		}
+		
+		synchronized (this) {
+			if (loadService != null) {
+				loadService.shutdownNow();
+			}
+			
+			if (rebuildService != null) {
+				rebuildService.shutdownNow();
+			}
+		}
+		
 		try {
 			for (ISolcolatorResultsWriter writer : writers) {
 				writer.close();
@@ -132,66 +903,375 @@ public class LuwakQueriesManager implements AutoCloseable {
 		return writers;
 	}
 	
+	/**
+	 * @return current monitor. Matching should use acquireMonitor, since the current monitor can be swapped and closed by rebuild
+	 */
 	public Monitor getMonitor() {
-		return monitor;
+		return monitorHolder.get().getMonitor();
 	}
 	
-	public  Map<String,LuwakQuery> getQueryIdToLuwakQuery() {
-		return queryIdToLuwakQuery;
+	/**
+	 * Take a reference on the current monitor, the caller must release it when the matching is finished
+	 * @return current monitor holder
+	 */
+	public LuwakMonitorHolder acquireMonitor() {
+		while (true) {
+			LuwakMonitorHolder holder = monitorHolder.get();
+			if (holder == null) {
+				throw new IllegalStateException("Monitor isn't created");
+			}
+			
+			if (holder.acquire()) {
+				return holder;
+			}
+			
+			if (holder == monitorHolder.get()) {
+				throw new IllegalStateException("Monitor is closed");
+			}
+		}
+	}
+	
+	/**
+	 * @return current queries snapshot, it isn't changed by later updates
+	 */
+	public LuwakQueryRegistry getQueryRegistry() {
+		return registry.get();
 	}
 	
 	public IQueryReader getQueryReader() {
 		return reader;
 	}
 	
+	public LuwakMatchStatistics getMatchStatistics() {
+		return matchStatistics;
+	}
+	
+	/**
+	 * Register statistics of a solcolator component (executors, caches etc.) to be shown by the info handler
+	 * @param name - statistics name in the response
+	 * @param statistics - statistics supplier, called on each info request
+	 */
+	public void registerStatistics(String name, Supplier<NamedList<Object>> statistics) {
+		componentsStatistics.put(name, statistics);
+	}
+	
+	public Map<String, Supplier<NamedList<Object>>> getComponentsStatistics() {
+		return componentsStatistics;
+	}
+	
+	public LuwakLoadStatistics getLoadStatistics() {
+		return loadStatistics;
+	}
+	
 	// ============================================================================================ //	
 	/**
 	 * Update all queries in solcolator
 	 * In the case query contains dynamic values like NOW, it will be update
+	 * In shadow rebuild mode, a new monitor is built from the current queries and swapped in
 	 */
 	public void updateAllQueries() {
-		synchronized (updatedLock) {
+		if (shadowRebuild) {
+			try {
+				rebuildMonitor(() -> new ArrayList<>(registry.get().getQueries().values()));
+			} catch (Exception e) {
+				log.error("Solcolator failed to rebuild monitor, the current monitor is kept", e);
+			}
+			
+			return;
+		}
+		
+		bulkLock.writeLock().lock();
+		try {
 			log.info("Solcolator is started to update all its queries");
 			long startTime = System.currentTimeMillis();
-			queryIdToLuwakQuery.forEach((queryId, query) -> {
+			Monitor monitor = getMonitor();
+			LuwakQueryRegistry current = registry.get();
+			for (String monitorId : current.getMonitorIds()) {
 				try {
-					monitor.update(query);												// add/update query in monitor
+					monitor.update(current.getMonitorQuery(monitorId));						// add/update query in monitor
 				} catch (Exception e) {
-					log.error(String.format("Query %s is failed to update", queryId), e);
+					log.error(String.format("Query %s is failed to update", monitorId), e);
 				}
-			});
+			}
+			parser.clearReferencedFields();	// fields of registered queries don't change on refresh
 			log.info(String.format("Solcolator is finished to update all its queries in %d miliseconds", System.currentTimeMillis() - startTime));
+		} finally {
+			bulkLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Reread all queries from the source (REREAD command)
+	 * Only the difference from the registered queries is applied to the current monitor (also in shadow rebuild mode)
+	 * @param reqHandlerMetadata - Request handler metadata (default args)
+	 * @return load statistics
+	 */
+	public LuwakLoadStatistics rereadQueries(Map<String, String> reqHandlerMetadata) {
+		return loadQueriesToSolcolator(reqHandlerMetadata);
+	}
+	
+	/**
+	 * Build a new monitor with the given queries on low priority threads while matching goes on with the current monitor.
+	 * The new monitor is validated and warmed, then single query changes made meanwhile are replayed on it
+	 * and it's swapped in atomically. The old monitor is closed once the batches matching against it are finished
+	 * @param queriesSource - provides all queries of the new monitor, it's called once single query changes are recorded
+	 * @return load statistics
+	 * @throws Exception if the new monitor wasn't built or validated (the current monitor is kept)
+	 */
+	private LuwakLoadStatistics rebuildMonitor(Callable<List<LuwakQuery>> queriesSource) throws Exception {
+		synchronized (rebuildLock) {
+			log.info("Solcolator is started to rebuild monitor");
+			long start = System.currentTimeMillis();
+			long generation = queryIndexGeneration + 1;
+			LuwakMonitorHolder newHolder = null;
+			
+			bulkLock.writeLock().lock();
+			try {
+				rebuildJournal = new LinkedHashMap<>();
+			} finally {
+				bulkLock.writeLock().unlock();
+			}
+			
+			try {
+				List<LuwakQuery> queries = queriesSource.call();
+				newHolder = new LuwakMonitorHolder(createShadowMonitor(generation));
+				Map<String, String> failedQueries = bulkUpdateQueriesInMonitor(newHolder.getMonitor(), queries, getRebuildService());
+				List<LuwakQuery> succeededQueries = getSucceededQueries(queries, failedQueries);
+				warmAndValidate(newHolder.getMonitor(), queries.size(), succeededQueries.size(), toMonitorQueries(succeededQueries).size());
+				
+				bulkLock.writeLock().lock();
+				try {
+					LuwakQueryRegistry newRegistry = replayRebuildJournal(newHolder.getMonitor(), registry.get().replaceQueries(succeededQueries));
+					
+					LuwakMonitorHolder oldHolder = monitorHolder.getAndSet(newHolder);
+					registry.set(newRegistry);
+					parser.clearReferencedFields();
+					long oldGeneration = queryIndexGeneration;
+					queryIndexGeneration = generation;
+					rebuildJournal = null;
+					
+					oldHolder.retire(persistentQueryIndex ? () -> deleteQueryIndex(getGenerationPath(oldGeneration)) : null);
+				} finally {
+					bulkLock.writeLock().unlock();
+				}
+				
+				lastRebuildTimeMs = System.currentTimeMillis() - start;
+				lastSwapTimestamp = System.currentTimeMillis();
+				rebuilds.incrementAndGet();
+				
+				LuwakLoadStatistics statistics = new LuwakLoadStatistics(queries.size(), 0, queries.size() - failedQueries.size(), 0, 0, failedQueries, lastRebuildTimeMs);
+				log.info(String.format("Solcolator finished to rebuild monitor: %s", statistics));
+				
+				return statistics;
+			} catch (Exception e) {
+				failedRebuilds.incrementAndGet();
+				rebuildJournal = null;
+				if (newHolder != null) {
+					newHolder.retire(persistentQueryIndex ? () -> deleteQueryIndex(getGenerationPath(generation)) : null);
+				}
+				
+				throw e;
+			}
 		}
 	}
+	
+	/**
+	 * @return pool parsing queries on shadow rebuild, it's kept between rebuilds
+	 */
+	private synchronized ExecutorService getRebuildService() {
+		if (rebuildService == null || rebuildService.isShutdown()) {
+			rebuildService = Executors.newFixedThreadPool(rebuildThreads, r -> {
+				Thread thread = new Thread(r, "solcolator-rebuild");
+				thread.setPriority(Thread.MIN_PRIORITY);	// rebuild mustn't slow down matching
+				thread.setDaemon(true);
+				
+				return thread;
+			});
+		}
+		
+		return rebuildService;
+	}
+	
+	private Monitor createShadowMonitor(long generation) throws IOException {
+		if (!persistentQueryIndex) {
+			return new Monitor(parser, presearcher, createQueryIndexConfiguration());
+		}
+		
+		Directory directory = new MMapDirectory(getGenerationPath(generation));
+		
+		return new Monitor(parser, presearcher, createQueryIndexWriter(directory, OpenMode.CREATE), createQueryIndexConfiguration().storeQueries(true));
+	}
+	
+	/**
+	 * Validate the rebuilt monitor and warm it by matching an empty document (opens query index searcher)
+	 * @param newMonitor - rebuilt monitor
+	 * @param expectedQueries - number of queries to build
+	 * @param succeededQueries - number of successfully built queries
+	 * @param succeededMonitorQueries - number of distinct monitor queries of successfully built queries
+	 * @throws Exception if the rebuilt monitor isn't valid
+	 */
+	private void warmAndValidate(Monitor newMonitor, int expectedQueries, int succeededQueries, int succeededMonitorQueries) throws Exception {
+		if (expectedQueries > 0 && succeededQueries == 0) {
+			throw new Exception(String.format("All %d queries were failed to build", expectedQueries));
+		}
+		
+		if (newMonitor.getQueryCount() != succeededMonitorQueries) {
+			throw new Exception(String.format("Rebuilt monitor contains %d queries instead of %d", newMonitor.getQueryCount(), succeededMonitorQueries));
+		}
+		
+		newMonitor.match(InputDocument.builder(WARMUP_DOC_ID).build(), SimpleMatcher.FACTORY);
+	}
+	
+	/**
+	 * Apply single query changes made while rebuilding to the new monitor. Must be called under bulk write lock
+	 * @param newMonitor - rebuilt monitor
+	 * @param newRegistry - registry of rebuilt monitor
+	 * @return registry with the changes
+	 * @throws IOException
+	 */
+	private LuwakQueryRegistry replayRebuildJournal(Monitor newMonitor, LuwakQueryRegistry newRegistry) throws IOException {
+		List<LuwakQuery> updatedQueries = new ArrayList<>();
+		List<String> deletedQueries = new ArrayList<>();
+		for (Entry<String, LuwakQuery> change : rebuildJournal.entrySet()) {
+			if (change.getValue() == null) {
+				deletedQueries.add(change.getKey());
+			} else {
+				updatedQueries.add(change.getValue());
+			}
+		}
+		
+		Map<String, String> failedQueries = getFailedQueries(updatedQueries,
+				updateBatchInMonitor(newMonitor, new ArrayList<>(toMonitorQueries(updatedQueries).values())));
+		LuwakQueryRegistry changedRegistry = newRegistry.withQueries(getSucceededQueries(updatedQueries, failedQueries)).withoutQueries(deletedQueries);
+		deleteOrphanedMonitorQueries(newMonitor, newRegistry, changedRegistry, rebuildJournal.keySet());
+		log.info(String.format("%d single query changes were replayed on rebuilt monitor", rebuildJournal.size()));
+		
+		return changedRegistry;
+	}
+	
+	/**
+	 * Record a single query change for replaying on the monitor being rebuilt. Called under bulk read lock and query lock
+	 * @param queryId - query id
+	 * @param query - updated query or null on deletion
+	 */
+	private void journalRebuildChange(String queryId, LuwakQuery query) {
+		Map<String, LuwakQuery> journal = rebuildJournal;
+		if (journal == null) {
+			return;
+		}
+		
+		synchronized (journal) {
+			journal.remove(queryId);	// keeps order of the latest change
+			journal.put(queryId, query);
+		}
+	}
+	
+	private NamedList<Object> getRebuildStatistics() {
+		NamedList<Object> stats = new NamedList<>();
+		stats.add("shadowRebuild", shadowRebuild);
+		stats.add("rebuildInProgress", rebuildJournal != null);
+		stats.add("rebuilds", rebuilds.get());
+		stats.add("failedRebuilds", failedRebuilds.get());
+		stats.add("lastRebuildTimeMs", lastRebuildTimeMs);
+		stats.add("lastSwapTimestamp", lastSwapTimestamp < 0 ? null : Instant.ofEpochMilli(lastSwapTimestamp).toString());
+		if (persistentQueryIndex) {
+			stats.add("queryIndexGeneration", queryIndexGeneration);
+		}
+		
+		return stats;
+	}
 		
 	/**
 	 * Update solcolator query (add query if it doesn't exist)
+	 * Updates of different queries run concurrently, updates of the same query (or the same canonical query) are serialized
 	 * @param monitorQuery
 	 * @throws Exception
 	 */
 	public void updateQueryInMonitor(LuwakQuery monitorQuery) throws Exception {
-		synchronized (updatedLock) {
-			String queryId = monitorQuery.getId();
-			
-			try {
-				monitor.update(monitorQuery);												// add/update query in monitor
-			} catch (UpdateException e) {
-				String errMessage = String.format("Failed to load query with id %s due to %s", monitorQuery.getId(), LuwakUpdateException.getPrintableErrorString(e.errors));
-				log.error(errMessage);
-				
-				throw new Exception(errMessage);
-			} catch (Exception e) {
-				String errMessage = String.format("Failed to load query with id %s", monitorQuery.getId());
-				log.error(errMessage, e);
+		String queryId = monitorQuery.getId();
+		
+		bulkLock.readLock().lock();
+		try {
+			while (true) {
+				LuwakQueryRegistry current = registry.get();
+				String newMonitorId = current.getMonitorId(monitorQuery);
+				String oldMonitorId = current.getMonitorId(queryId);
+				List<Lock> locks = lockQueries(queryId, newMonitorId, oldMonitorId);
 				
-				throw new Exception(errMessage, e);
+				try {
+					current = registry.get();
+					if (!Objects.equals(oldMonitorId, current.getMonitorId(queryId))) {
+						continue;	// the query was changed meanwhile, locks have to be taken again
+					}
+					
+					updateQueryInMonitor(monitorQuery, current, newMonitorId, oldMonitorId);
+					
+					return;
+				} finally {
+					parser.forgetReferencedFields(monitorQuery);	// fields are kept by the published snapshot
+					unlockQueries(locks);
+				}
 			}
+		} finally {
+			bulkLock.readLock().unlock();
+		}
+	}
+	
+	private void updateQueryInMonitor(LuwakQuery monitorQuery, LuwakQueryRegistry current, String newMonitorId, String oldMonitorId) throws Exception {
+		String queryId = monitorQuery.getId();
+		Set<String> newSubscribers = current.getSubscribers(newMonitorId);
+		LuwakQueryRegistry previousRegistry = publishQueries(Collections.singletonList(monitorQuery));
 		
+		try {
+			if (!current.isDeduplicated() || newSubscribers.isEmpty() || newSubscribers.equals(Collections.singleton(queryId))) {
+				getMonitor().update(current.createMonitorQuery(monitorQuery));				// add/update query in monitor
+			}
 			
-			queryIdToLuwakQuery.put(queryId, monitorQuery);								// add/update query in queryId to query mapping
+			if (oldMonitorId != null && !oldMonitorId.equals(newMonitorId) && current.getSubscribers(oldMonitorId).equals(Collections.singleton(queryId))) {
+				getMonitor().deleteById(oldMonitorId);										// the last subscriber left the previous canonical query
+			}
+		} catch (UpdateException e) {
+			revertQueries(Collections.singleton(queryId), previousRegistry);
+			String errMessage = String.format("Failed to load query with id %s due to %s", queryId, LuwakUpdateException.getPrintableErrorString(e.errors));
+			log.error(errMessage);
 			
-			log.info(String.format("The query %s was updated successfully", monitorQuery.getId()));
+			throw new Exception(errMessage);
+		} catch (Exception e) {
+			revertQueries(Collections.singleton(queryId), previousRegistry);
+			String errMessage = String.format("Failed to load query with id %s", queryId);
+			log.error(errMessage, e);
+			
+			throw new Exception(errMessage, e);
 		}
+		
+		registry.updateAndGet(LuwakQueryRegistry::withNextVersion);	// documents matched while the monitor was updated are matched again
+		journalRebuildChange(queryId, monitorQuery);
+		
+		log.info(String.format("The query %s was updated successfully", queryId));
+	}
+	
+	/**
+	 * Publish the previous version of queries which failed to update in monitor (remove them if they are new)
+	 * @param queryIds			- ids of failed queries
+	 * @param previousRegistry	- snapshot before the queries were published
+	 */
+	private void revertQueries(Collection<String> queryIds, LuwakQueryRegistry previousRegistry) {
+		if (queryIds.isEmpty()) {
+			return;
+		}
+		
+		List<LuwakQuery> previousQueries = new ArrayList<>();
+		List<String> newQueryIds = new ArrayList<>();
+		for (String queryId : queryIds) {
+			LuwakQuery previousQuery = previousRegistry.getQuery(queryId);
+			if (previousQuery == null) {
+				newQueryIds.add(queryId);
+			} else {
+				previousQueries.add(previousQuery);
+			}
+		}
+		
+		registry.updateAndGet(current -> current.withQueries(previousQueries).withoutQueries(newQueryIds));
 	}
 	
 	/**
@@ -200,25 +1280,80 @@ public class LuwakQueriesManager implements AutoCloseable {
 	 * @throws Exception
 	 */
 	public void deleteQueryFromMonitor(String queryId) throws Exception {
-		synchronized (updatedLock) {
-
-			try {
-				monitor.deleteById(queryId);
-			} catch (Exception ex) {
-				String errMessage = String.format("Failed to delete query with id %s", queryId);
-				log.error(errMessage, ex);
+		bulkLock.readLock().lock();
+		try {
+			while (true) {
+				String monitorId = registry.get().getMonitorId(queryId);
+				List<Lock> locks = lockQueries(queryId, monitorId);
 				
-				throw new Exception(errMessage, ex);
+				try {
+					LuwakQueryRegistry current = registry.get();
+					if (!Objects.equals(monitorId, current.getMonitorId(queryId))) {
+						continue;	// the query was changed meanwhile, locks have to be taken again
+					}
+					
+					deleteQueryFromMonitor(queryId, current, monitorId);
+					
+					return;
+				} finally {
+					unlockQueries(locks);
+				}
 			}
-			
-			LuwakQuery query = queryIdToLuwakQuery.remove(queryId);
-			
-			if (query == null) {
-				log.error(String.format("Illegal case: Query with id %s doesn't exist in solcolator", queryId));
-				return;
+		} finally {
+			bulkLock.readLock().unlock();
+		}
+	}
+	
+	private void deleteQueryFromMonitor(String queryId, LuwakQueryRegistry current, String monitorId) throws Exception {
+		try {
+			if (monitorId == null) {
+				getMonitor().deleteById(queryId);
+			} else if (current.getSubscribers(monitorId).equals(Collections.singleton(queryId))) {
+				getMonitor().deleteById(monitorId);											// the last subscriber of the query
 			}
+		} catch (Exception ex) {
+			String errMessage = String.format("Failed to delete query with id %s", queryId);
+			log.error(errMessage, ex);
 			
-			log.info(String.format("The query %s was deleted successfully", queryId));
+			throw new Exception(errMessage, ex);
+		}
+		
+		journalRebuildChange(queryId, null);
+		if (monitorId == null) {
+			log.error(String.format("Illegal case: Query with id %s doesn't exist in solcolator", queryId));
+			return;
+		}
+		
+		registry.updateAndGet(snapshot -> snapshot.withoutQueries(Collections.singletonList(queryId)));	// publish new snapshot
+		
+		log.info(String.format("The query %s was deleted successfully", queryId));
+	}
+	
+	/**
+	 * Lock stripes of the given ids (solcolator query ids and monitor ids) in a consistent order, null ids are skipped
+	 * @param ids - ids to lock
+	 * @return locked locks
+	 */
+	private List<Lock> lockQueries(String... ids) {
+		List<String> idsToLock = new ArrayList<>();
+		for (String id : ids) {
+			if (id != null) {
+				idsToLock.add(id);
+			}
+		}
+		
+		List<Lock> locks = new ArrayList<>();
+		for (Lock lock : queryLocks.bulkGet(idsToLock)) {
+			lock.lock();
+			locks.add(lock);
+		}
+		
+		return locks;
+	}
+	
+	private void unlockQueries(List<Lock> locks) {
+		for (int i = locks.size() - 1; i >= 0; i--) {
+			locks.get(i).unlock();
 		}
 	}
 }
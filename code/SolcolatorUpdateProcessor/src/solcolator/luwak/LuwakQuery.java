@@ -1,6 +1,12 @@
 package solcolator.luwak;
 
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import uk.co.flax.luwak.MonitorQuery;
 
@@ -9,6 +15,7 @@ import uk.co.flax.luwak.MonitorQuery;
  */
 public class LuwakQuery extends MonitorQuery {
 	private final String queryName;
+	private transient String contentHash;
 	
 	public LuwakQuery(String id, String queryName, String query, Map<String, String> queryMetadata) {
 		super(id, query, queryMetadata);
@@ -18,4 +25,21 @@ public class LuwakQuery extends MonitorQuery {
 	public String getQueryName() {
 		return queryName;
 	}
+	
+	/**
+	 * Queries with equal hashes have the same text and metadata, so the same monitor query (the name isn't hashed)
+	 * @return hash of query text and metadata, it's computed once
+	 */
+	public String getContentHash() {
+		if (contentHash == null) {
+			Hasher hasher = Hashing.murmur3_128().newHasher().putString(getQuery(), Charsets.UTF_8);
+			for (Entry<String, String> entry : new TreeMap<>(getMetadata()).entrySet()) {
+				hasher.putInt(0).putString(entry.getKey(), Charsets.UTF_8).putInt(0).putString(String.valueOf(entry.getValue()), Charsets.UTF_8);
+			}
+			
+			contentHash = hasher.hash().toString();
+		}
+		
+		return contentHash;
+	}
 }
@@ -0,0 +1,60 @@
+package solcolator.luwak;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Canonical form of a solcolator query: query params and metadata are normalized (whitespace is trimmed and collapsed)
+ * and sorted, so the same search written with another params order, fq order or whitespace gets the same canonical id.
+ * The canonical id is a hash of the canonical form and it's used as the query id in the monitor
+ */
+public class LuwakQueryCanonicalizer {
+	private final static Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+	private final static String CANONICAL_ID_PREFIX = "c_";
+	
+	/**
+	 * @param query - query string (params separated by &)
+	 * @param queryMetadata - query metadata
+	 * @return canonical id of the query
+	 */
+	public String getCanonicalId(String query, Map<String, String> queryMetadata) {
+		return CANONICAL_ID_PREFIX + Hashing.murmur3_128().hashString(canonicalize(query, queryMetadata), Charsets.UTF_8).toString();
+	}
+	
+	/**
+	 * @param query - query string (params separated by &)
+	 * @param queryMetadata - query metadata
+	 * @return canonical form of the query
+	 */
+	public String canonicalize(String query, Map<String, String> queryMetadata) {
+		List<String> params = new ArrayList<>();
+		
+		for (String param : query.split("&")) {
+			String normalizedParam = normalize(param);
+			if (!normalizedParam.isEmpty()) {
+				params.add(normalizedParam);
+			}
+		}
+		
+		if (queryMetadata != null) {
+			for (Entry<String, String> entry : queryMetadata.entrySet()) {
+				params.add(normalize(entry.getKey()) + "=" + normalize(entry.getValue()));
+			}
+		}
+		
+		Collections.sort(params);
+		
+		return String.join("&", params);
+	}
+	
+	private String normalize(String value) {
+		return value == null ? "" : WHITESPACE_PATTERN.matcher(value.trim()).replaceAll(" ");
+	}
+}
@@ -0,0 +1,148 @@
+package solcolator.luwak;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PointInSetQuery;
+import org.apache.lucene.search.PointRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SynonymQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.solr.search.WrappedQuery;
+
+/**
+ * Extracts names of fields a parsed query references. Queries of unknown types may reference any field,
+ * so they are reported as ALL (documents aren't pruned while such a query is registered)
+ */
+public class LuwakQueryFields {
+	public final static String ALL_FIELDS = "*";
+	public final static Set<String> ALL = Collections.singleton(ALL_FIELDS);
+	
+	/**
+	 * @param query - parsed query
+	 * @return names of referenced fields or ALL if the query type is unknown
+	 */
+	public static Set<String> getFields(Query query) {
+		Set<String> fields = new HashSet<>();
+		
+		return collectFields(query, fields) ? Collections.unmodifiableSet(fields) : ALL;
+	}
+	
+	/**
+	 * @param query - parsed query
+	 * @param fields - collected field names
+	 * @return false if the query references unknown fields
+	 */
+	private static boolean collectFields(Query query, Set<String> fields) {
+		if (query instanceof BooleanQuery) {
+			for (BooleanClause clause : (BooleanQuery) query) {
+				if (!collectFields(clause.getQuery(), fields)) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		if (query instanceof DisjunctionMaxQuery) {
+			for (Query disjunct : (DisjunctionMaxQuery) query) {
+				if (!collectFields(disjunct, fields)) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		if (query instanceof ConstantScoreQuery) {
+			return collectFields(((ConstantScoreQuery) query).getQuery(), fields);
+		}
+		
+		if (query instanceof BoostQuery) {
+			return collectFields(((BoostQuery) query).getQuery(), fields);
+		}
+		
+		if (query instanceof WrappedQuery) {
+			return collectFields(((WrappedQuery) query).getWrappedQuery(), fields);
+		}
+		
+		if (query instanceof LuwakFilterQuery) {
+			return collectFields(((LuwakFilterQuery) query).getFilter(), fields);
+		}
+		
+		if (query instanceof LuwakTimeRelativeQuery) {
+			try {
+				return collectFields(((LuwakTimeRelativeQuery) query).resolve(), fields);	// NOW doesn't change the fields
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		
+		if (query instanceof TermQuery) {
+			fields.add(((TermQuery) query).getTerm().field());
+			return true;
+		}
+		
+		if (query instanceof PhraseQuery) {
+			for (Term term : ((PhraseQuery) query).getTerms()) {
+				fields.add(term.field());
+			}
+			
+			return true;
+		}
+		
+		if (query instanceof MultiPhraseQuery) {
+			for (Term[] terms : ((MultiPhraseQuery) query).getTermArrays()) {
+				for (Term term : terms) {
+					fields.add(term.field());
+				}
+			}
+			
+			return true;
+		}
+		
+		if (query instanceof SynonymQuery) {
+			for (Term term : ((SynonymQuery) query).getTerms()) {
+				fields.add(term.field());
+			}
+			
+			return true;
+		}
+		
+		if (query instanceof MultiTermQuery) {
+			fields.add(((MultiTermQuery) query).getField());	// prefix, wildcard, fuzzy, regexp and range queries
+			return true;
+		}
+		
+		if (query instanceof PointRangeQuery) {
+			fields.add(((PointRangeQuery) query).getField());
+			return true;
+		}
+		
+		if (query instanceof PointInSetQuery) {
+			fields.add(((PointInSetQuery) query).getField());
+			return true;
+		}
+		
+		if (query instanceof SpanQuery) {
+			fields.add(((SpanQuery) query).getField());
+			return true;
+		}
+		
+		return query instanceof MatchAllDocsQuery || query instanceof MatchNoDocsQuery;
+	}
+}
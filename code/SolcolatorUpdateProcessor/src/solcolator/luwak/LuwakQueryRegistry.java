@@ -0,0 +1,331 @@
+package solcolator.luwak;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import uk.co.flax.luwak.MonitorQuery;
+
+/**
+ * Immutable versioned snapshot of solcolator queries (query id -> query).
+ * Every change creates a new snapshot, so readers (matchers, info handler) can keep a snapshot
+ * for as long as they need without locking and without seeing partial updates.
+ * Snapshots share their structure (see LuwakPersistentMap), so a single query change costs O(log n) instead of copying all queries
+ * 
+ * With deduplication, identical queries (see LuwakQueryCanonicalizer) are registered in the monitor once
+ * under their canonical id, and the snapshot maps each monitor query to its subscribers (solcolator query ids).
+ * Without deduplication, the monitor query id is the solcolator query id
+ * 
+ * The snapshot also indexes fields referenced by monitor queries (see LuwakQueryFields), so documents can be pruned
+ * to the fields some query actually uses before they are indexed into a batch, and a document which changed only some fields
+ * can be matched against the queries referencing those fields only
+ */
+public class LuwakQueryRegistry {
+	private final long version;
+	private final LuwakQueryCanonicalizer canonicalizer;
+	private final LuwakPersistentMap<String, LuwakQuery> queryIdToLuwakQuery;
+	private final LuwakPersistentMap<String, String> queryIdToMonitorId;
+	private final LuwakPersistentMap<String, LuwakPersistentSet<String>> monitorIdToQueryIds;
+	private final Function<MonitorQuery, Set<String>> fieldsResolver;
+	private final LuwakPersistentMap<String, Set<String>> monitorIdToFields;
+	private final LuwakPersistentMap<String, LuwakPersistentSet<String>> fieldToMonitorIds;
+	
+	private LuwakQueryRegistry(long version, LuwakQueryCanonicalizer canonicalizer, LuwakPersistentMap<String, LuwakQuery> queryIdToLuwakQuery,
+			LuwakPersistentMap<String, String> queryIdToMonitorId, LuwakPersistentMap<String, LuwakPersistentSet<String>> monitorIdToQueryIds,
+			Function<MonitorQuery, Set<String>> fieldsResolver, LuwakPersistentMap<String, Set<String>> monitorIdToFields,
+			LuwakPersistentMap<String, LuwakPersistentSet<String>> fieldToMonitorIds) {
+		this.version = version;
+		this.canonicalizer = canonicalizer;
+		this.queryIdToLuwakQuery = queryIdToLuwakQuery;
+		this.queryIdToMonitorId = queryIdToMonitorId;
+		this.monitorIdToQueryIds = monitorIdToQueryIds;
+		this.fieldsResolver = fieldsResolver;
+		this.monitorIdToFields = monitorIdToFields;
+		this.fieldToMonitorIds = fieldToMonitorIds;
+	}
+	
+	/**
+	 * @param canonicalizer - canonicalizer of deduplicated queries or null if deduplication is disabled
+	 * @param fieldsResolver - fields referenced by a parsed monitor query or null if fields aren't known (all fields are used)
+	 * @return empty snapshot
+	 */
+	public static LuwakQueryRegistry empty(LuwakQueryCanonicalizer canonicalizer, Function<MonitorQuery, Set<String>> fieldsResolver) {
+		return new LuwakQueryRegistry(0, canonicalizer, LuwakPersistentMap.empty(), LuwakPersistentMap.empty(), LuwakPersistentMap.empty(),
+				fieldsResolver, LuwakPersistentMap.empty(), LuwakPersistentMap.empty());
+	}
+	
+	/**
+	 * @param queries - queries to add/update
+	 * @return new snapshot with the given queries
+	 */
+	public LuwakQueryRegistry withQueries(Collection<LuwakQuery> queries) {
+		if (queries.isEmpty()) {
+			return this;
+		}
+		
+		Builder builder = new Builder(this);
+		for (LuwakQuery query : queries) {
+			builder.replace(query);
+		}
+		
+		return builder.build(version + 1);
+	}
+	
+	/**
+	 * @param queries - all queries
+	 * @return new snapshot with exactly the given queries
+	 */
+	public LuwakQueryRegistry replaceQueries(Collection<LuwakQuery> queries) {
+		Builder builder = new Builder(empty(canonicalizer, fieldsResolver));
+		for (LuwakQuery query : queries) {
+			builder.remove(query.getId());
+			builder.add(query);
+		}
+		
+		return builder.build(version + 1);
+	}
+	
+	/**
+	 * @param queryIds - ids of queries to delete
+	 * @return new snapshot without the given queries
+	 */
+	public LuwakQueryRegistry withoutQueries(Collection<String> queryIds) {
+		Builder builder = new Builder(this);
+		boolean changed = false;
+		for (String queryId : queryIds) {
+			changed |= builder.remove(queryId);
+		}
+		
+		return changed ? builder.build(version + 1) : this;
+	}
+	
+	/**
+	 * The queries were changed in the monitor after they were published, so matches recorded under the current version
+	 * (see SolcolatorFingerprintCache) may miss them
+	 * @return snapshot with the same queries under the next version
+	 */
+	public LuwakQueryRegistry withNextVersion() {
+		return new LuwakQueryRegistry(version + 1, canonicalizer, queryIdToLuwakQuery, queryIdToMonitorId, monitorIdToQueryIds,
+				fieldsResolver, monitorIdToFields, fieldToMonitorIds);
+	}
+	
+	/**
+	 * @param query - solcolator query
+	 * @return id of the query in the monitor (canonical id with deduplication)
+	 */
+	public String getMonitorId(LuwakQuery query) {
+		return canonicalizer == null ? query.getId() : canonicalizer.getCanonicalId(query.getQuery(), query.getMetadata());
+	}
+	
+	/**
+	 * @param query - solcolator query
+	 * @return query to register in the monitor (under canonical id with deduplication)
+	 */
+	public MonitorQuery createMonitorQuery(LuwakQuery query) {
+		return canonicalizer == null ? query : new MonitorQuery(getMonitorId(query), query.getQuery(), query.getMetadata());
+	}
+	
+	/**
+	 * @param queryId - solcolator query id
+	 * @return id of the query in the monitor or null if there is no such query
+	 */
+	public String getMonitorId(String queryId) {
+		return canonicalizer == null ? (queryIdToLuwakQuery.containsKey(queryId) ? queryId : null) : queryIdToMonitorId.get(queryId);
+	}
+	
+	/**
+	 * @param monitorId - id of the query in the monitor
+	 * @return ids of solcolator queries registered in the monitor under the given id
+	 */
+	public Set<String> getSubscribers(String monitorId) {
+		if (canonicalizer == null) {
+			return queryIdToLuwakQuery.containsKey(monitorId) ? Collections.singleton(monitorId) : Collections.emptySet();
+		}
+		
+		Set<String> subscribers = monitorIdToQueryIds.get(monitorId);
+		
+		return subscribers == null ? Collections.emptySet() : subscribers;
+	}
+	
+	/**
+	 * @param monitorId - id of the query in the monitor
+	 * @return query to register in the monitor or null if the query has no subscribers
+	 */
+	public MonitorQuery getMonitorQuery(String monitorId) {
+		Set<String> subscribers = getSubscribers(monitorId);
+		if (subscribers.isEmpty()) {
+			return null;
+		}
+		
+		LuwakQuery query = queryIdToLuwakQuery.get(subscribers.iterator().next());
+		
+		return canonicalizer == null ? query : new MonitorQuery(monitorId, query.getQuery(), query.getMetadata());
+	}
+	
+	/**
+	 * @return ids of all queries in the monitor
+	 */
+	public Set<String> getMonitorIds() {
+		return canonicalizer == null ? queryIdToLuwakQuery.keySet() : monitorIdToQueryIds.keySet();
+	}
+	
+	/**
+	 * @return true if identical queries are registered in the monitor once
+	 */
+	public boolean isDeduplicated() {
+		return canonicalizer != null;
+	}
+	
+	public long getVersion() {
+		return version;
+	}
+	
+	public LuwakQuery getQuery(String queryId) {
+		return queryIdToLuwakQuery.get(queryId);
+	}
+	
+	public boolean containsQuery(String queryId) {
+		return queryIdToLuwakQuery.containsKey(queryId);
+	}
+	
+	public Map<String, LuwakQuery> getQueries() {
+		return queryIdToLuwakQuery;
+	}
+	
+	public int size() {
+		return queryIdToLuwakQuery.size();
+	}
+	
+	/**
+	 * @return names of fields referenced by the queries or null if some query may reference any field
+	 */
+	public Set<String> getReferencedFields() {
+		return fieldToMonitorIds.containsKey(LuwakQueryFields.ALL_FIELDS) ? null : fieldToMonitorIds.keySet();
+	}
+	
+	/**
+	 * @param fields - field names
+	 * @return ids of monitor queries referencing any of the given fields (including queries which may reference any field)
+	 */
+	public Set<String> getMonitorIdsByFields(Collection<String> fields) {
+		Set<String> monitorIds = new HashSet<>(fieldToMonitorIds.getOrDefault(LuwakQueryFields.ALL_FIELDS, LuwakPersistentSet.empty()));
+		for (String field : fields) {
+			monitorIds.addAll(fieldToMonitorIds.getOrDefault(field, LuwakPersistentSet.empty()));
+		}
+		
+		return monitorIds;
+	}
+	
+	/**
+	 * Next snapshot being built. Changes replace the paths to the changed entries only, the rest is shared with the previous snapshot
+	 */
+	private static class Builder {
+		private final LuwakQueryCanonicalizer canonicalizer;
+		private final Function<MonitorQuery, Set<String>> fieldsResolver;
+		private LuwakPersistentMap<String, LuwakQuery> queryIdToLuwakQuery;
+		private LuwakPersistentMap<String, String> queryIdToMonitorId;
+		private LuwakPersistentMap<String, LuwakPersistentSet<String>> monitorIdToQueryIds;
+		private LuwakPersistentMap<String, Set<String>> monitorIdToFields;
+		private LuwakPersistentMap<String, LuwakPersistentSet<String>> fieldToMonitorIds;
+		
+		private Builder(LuwakQueryRegistry registry) {
+			this.canonicalizer = registry.canonicalizer;
+			this.fieldsResolver = registry.fieldsResolver;
+			this.queryIdToLuwakQuery = registry.queryIdToLuwakQuery;
+			this.queryIdToMonitorId = registry.queryIdToMonitorId;
+			this.monitorIdToQueryIds = registry.monitorIdToQueryIds;
+			this.monitorIdToFields = registry.monitorIdToFields;
+			this.fieldToMonitorIds = registry.fieldToMonitorIds;
+		}
+		
+		private void add(LuwakQuery query) {
+			queryIdToLuwakQuery = queryIdToLuwakQuery.plus(query.getId(), query);
+			if (canonicalizer == null) {
+				addFields(query.getId(), query);
+				return;
+			}
+			
+			String monitorId = canonicalizer.getCanonicalId(query.getQuery(), query.getMetadata());
+			queryIdToMonitorId = queryIdToMonitorId.plus(query.getId(), monitorId);
+			monitorIdToQueryIds = monitorIdToQueryIds.plus(monitorId,
+					monitorIdToQueryIds.getOrDefault(monitorId, LuwakPersistentSet.empty()).plus(query.getId()));
+			addFields(monitorId, query);
+		}
+		
+		/**
+		 * A query which text and metadata weren't changed keeps its monitor query and fields (only the name may be changed)
+		 * @param query - query to add/update
+		 */
+		private void replace(LuwakQuery query) {
+			LuwakQuery previousQuery = queryIdToLuwakQuery.get(query.getId());
+			if (previousQuery != null && previousQuery.getContentHash().equals(query.getContentHash())) {
+				queryIdToLuwakQuery = queryIdToLuwakQuery.plus(query.getId(), query);
+				return;
+			}
+			
+			remove(query.getId());
+			add(query);
+		}
+		
+		private boolean remove(String queryId) {
+			if (!queryIdToLuwakQuery.containsKey(queryId)) {
+				return false;
+			}
+			
+			queryIdToLuwakQuery = queryIdToLuwakQuery.minus(queryId);
+			if (canonicalizer == null) {
+				removeFields(queryId);
+				return true;
+			}
+			
+			String monitorId = queryIdToMonitorId.get(queryId);
+			queryIdToMonitorId = queryIdToMonitorId.minus(queryId);
+			LuwakPersistentSet<String> subscribers = monitorIdToQueryIds.get(monitorId).minus(queryId);
+			if (subscribers.isEmpty()) {
+				monitorIdToQueryIds = monitorIdToQueryIds.minus(monitorId);
+				removeFields(monitorId);
+			} else {
+				monitorIdToQueryIds = monitorIdToQueryIds.plus(monitorId, subscribers);
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Index fields of a monitor query once (subscribers of a deduplicated query share its fields)
+		 */
+		private void addFields(String monitorId, LuwakQuery query) {
+			if (monitorIdToFields.containsKey(monitorId)) {
+				return;
+			}
+			
+			Set<String> fields = fieldsResolver == null ? LuwakQueryFields.ALL : fieldsResolver.apply(query);
+			monitorIdToFields = monitorIdToFields.plus(monitorId, fields);
+			for (String field : fields) {
+				fieldToMonitorIds = fieldToMonitorIds.plus(field,
+						fieldToMonitorIds.getOrDefault(field, LuwakPersistentSet.empty()).plus(monitorId));
+			}
+		}
+		
+		private void removeFields(String monitorId) {
+			Set<String> fields = monitorIdToFields.get(monitorId);
+			if (fields == null) {
+				return;
+			}
+			
+			monitorIdToFields = monitorIdToFields.minus(monitorId);
+			for (String field : fields) {
+				LuwakPersistentSet<String> monitorIds = fieldToMonitorIds.get(field).minus(monitorId);
+				fieldToMonitorIds = monitorIds.isEmpty() ? fieldToMonitorIds.minus(field) : fieldToMonitorIds.plus(field, monitorIds);
+			}
+		}
+		
+		private LuwakQueryRegistry build(long version) {
+			return new LuwakQueryRegistry(version, canonicalizer, queryIdToLuwakQuery, queryIdToMonitorId, monitorIdToQueryIds,
+					fieldsResolver, monitorIdToFields, fieldToMonitorIds);
+		}
+	}
+}
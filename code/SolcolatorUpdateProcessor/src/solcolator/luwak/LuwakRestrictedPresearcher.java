@@ -0,0 +1,120 @@
+package solcolator.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+import com.google.common.collect.Lists;
+
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.Monitor;
+import uk.co.flax.luwak.Presearcher;
+import uk.co.flax.luwak.QueryTermFilter;
+
+/**
+ * Presearcher wrapper which restricts candidate queries of specific document batches to given monitor queries.
+ * Documents which changed only some fields since they were matched are indexed into a restricted batch, so only
+ * queries referencing the changed fields are run against them. Other batches get the candidates of the wrapped presearcher.
+ * The restriction is carried by the reader of the restricted batch, so it lives and dies with the batch
+ */
+public class LuwakRestrictedPresearcher extends Presearcher {
+	private final Presearcher presearcher;
+	
+	/**
+	 * @param presearcher - wrapped presearcher
+	 */
+	public LuwakRestrictedPresearcher(Presearcher presearcher) {
+		this.presearcher = presearcher;
+	}
+	
+	/**
+	 * Restrict candidate queries of a batch
+	 * @param batch - document batch
+	 * @param similarity - schema similarity
+	 * @param monitorIds - ids of monitor queries to run against the batch
+	 * @return restricted batch (closing it closes the given batch)
+	 * @throws IOException
+	 */
+	public static DocumentBatch restrict(DocumentBatch batch, Similarity similarity, Set<String> monitorIds) throws IOException {
+		return new RestrictedBatch(batch, similarity, monitorIds);
+	}
+	
+	@Override
+	public Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+		if (!(reader instanceof RestrictedReader)) {
+			return presearcher.buildQuery(reader, queryTermFilter);
+		}
+		
+		RestrictedReader restrictedReader = (RestrictedReader) reader;
+		Query query = presearcher.buildQuery(restrictedReader.getDelegate(), queryTermFilter);
+		List<BytesRef> ids = new ArrayList<>(restrictedReader.monitorIds.size());
+		for (String monitorId : restrictedReader.monitorIds) {
+			ids.add(new BytesRef(monitorId));
+		}
+		
+		return new BooleanQuery.Builder()
+				.add(query, Occur.MUST)
+				.add(new TermInSetQuery(Monitor.FIELDS.del, ids), Occur.FILTER)	// all documents of a decomposed query have its id
+				.build();
+	}
+	
+	@Override
+	public Document indexQuery(Query query, Map<String, String> metadata) {
+		return presearcher.indexQuery(query, metadata);
+	}
+	
+	@Override
+	public String toString() {
+		return presearcher.getClass().getSimpleName();
+	}
+	
+	/**
+	 * Batch which reader carries the monitor queries to run against it
+	 */
+	private static class RestrictedBatch extends DocumentBatch {
+		private final DocumentBatch batch;
+		private final RestrictedReader reader;
+		
+		private RestrictedBatch(DocumentBatch batch, Similarity similarity, Set<String> monitorIds) throws IOException {
+			super(Lists.newArrayList(batch), similarity);
+			this.batch = batch;
+			this.reader = new RestrictedReader(batch.getIndexReader(), monitorIds);
+		}
+		
+		@Override
+		public LeafReader getIndexReader() throws IOException {
+			return reader;
+		}
+		
+		@Override
+		public String resolveDocId(int docId) {
+			return batch.resolveDocId(docId);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			batch.close();
+		}
+	}
+	
+	private static class RestrictedReader extends FilterLeafReader {
+		private final Set<String> monitorIds;
+		
+		private RestrictedReader(LeafReader in, Set<String> monitorIds) {
+			super(in);
+			this.monitorIds = monitorIds;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package solcolator.luwak;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.similarities.Similarity;
+
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.InputDocument;
+
+/**
+ * Batch of a single document indexed into a Lucene MemoryIndex.
+ * Unlike LuwakDocumentBatch, no directory, index writer, merge or commit are involved, so it is
+ * the cheapest way to match a single document (most of NRT updates)
+ */
+public class LuwakSingleDocumentBatch extends DocumentBatch {
+	private final String docId;
+	private final LeafReader reader;
+	
+	public LuwakSingleDocumentBatch(InputDocument doc, Similarity similarity) {
+		super(Collections.singletonList(doc), similarity);
+		this.docId = doc.getId();
+		
+		MemoryIndex memoryIndex = new MemoryIndex(true, true);
+		memoryIndex.setSimilarity(similarity);
+		for (IndexableField field : doc.getDocument()) {
+			memoryIndex.addField(field, doc.getAnalyzers());
+		}
+		memoryIndex.freeze();
+		
+		this.reader = (LeafReader) memoryIndex.createSearcher().getIndexReader();
+	}
+	
+	@Override
+	public LeafReader getIndexReader() throws IOException {
+		return reader;
+	}
+	
+	@Override
+	public String resolveDocId(int docId) {
+		return this.docId;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
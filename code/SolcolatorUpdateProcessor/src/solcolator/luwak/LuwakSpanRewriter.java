@@ -0,0 +1,30 @@
+package solcolator.luwak;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+import uk.co.flax.luwak.util.RewriteException;
+import uk.co.flax.luwak.util.SpanRewriter;
+
+/**
+ * Span rewriter for highlighting matchers that knows solcolator query wrappers.
+ * Wrappers are unwrapped before the searcher rewrite, which would otherwise return them unchanged
+ */
+public class LuwakSpanRewriter extends SpanRewriter {
+	public final static LuwakSpanRewriter INSTANCE = new LuwakSpanRewriter();
+	
+	@Override
+	public Query rewrite(Query query, IndexSearcher searcher) throws RewriteException, IOException {
+		if (query instanceof LuwakTimeRelativeQuery) {
+			return rewrite(((LuwakTimeRelativeQuery) query).resolve(), searcher);
+		}
+		
+		if (query instanceof LuwakFilterQuery) {
+			return rewrite(((LuwakFilterQuery) query).getFilter(), searcher);
+		}
+		
+		return super.rewrite(query, searcher);
+	}
+}
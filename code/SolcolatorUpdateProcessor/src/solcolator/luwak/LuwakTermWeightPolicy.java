@@ -0,0 +1,64 @@
+package solcolator.luwak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import uk.co.flax.luwak.termextractor.querytree.TreeWeightor;
+import uk.co.flax.luwak.termextractor.weights.FieldWeightNorm;
+import uk.co.flax.luwak.termextractor.weights.TokenLengthNorm;
+import uk.co.flax.luwak.termextractor.weights.WeightNorm;
+
+/**
+ * Policies for choosing which term of a query is indexed by a term filtered presearcher:
+ * 		TOKENLENGTH (tokenlength) - longer (usually rarer) tokens are preferred
+ * 		UNIFORM (uniform) - all terms have the same weight
+ * 
+ * Terms of excluded fields get a minimal weight, so they are chosen only if a query has no term in other fields
+ */
+public enum LuwakTermWeightPolicy {
+	TOKENLENGTH,
+	UNIFORM;
+	
+	private final static float EXCLUDED_FIELD_WEIGHT = 0.001f;
+	private final static float TOKEN_LENGTH_A = 3f;
+	private final static float TOKEN_LENGTH_K = 0.3f;
+	
+	/**
+	 * If given weight policy exists, function will return its enum value otherwise will throw exception.
+	 * Function is case insensitive to value of kindName
+	 * @param kindName
+	 * @return enum value of kind name or exception
+	 * @throws Exception 
+	 */
+	public static LuwakTermWeightPolicy get(String kindName) throws Exception {
+		for (LuwakTermWeightPolicy kind : LuwakTermWeightPolicy.values()) {
+			if (kind.name().equalsIgnoreCase(kindName)) {
+				return kind;
+			}
+		}
+		
+		throw new Exception(String.format("Not existing luwak term weight policy - %s. Legal kinds: %s",
+				kindName, Arrays.asList(LuwakTermWeightPolicy.values())));
+	}
+	
+	/**
+	 * Create tree weightor of this policy
+	 * @param excludedFields - fields which terms should be avoided by presearcher
+	 * @return tree weightor
+	 */
+	public TreeWeightor createTreeWeightor(Set<String> excludedFields) {
+		List<WeightNorm> norms = new ArrayList<>();
+		
+		if (this == TOKENLENGTH) {
+			norms.add(new TokenLengthNorm(TOKEN_LENGTH_A, TOKEN_LENGTH_K));
+		}
+		
+		if (excludedFields != null && !excludedFields.isEmpty()) {
+			norms.add(new FieldWeightNorm(EXCLUDED_FIELD_WEIGHT, excludedFields));
+		}
+		
+		return new TreeWeightor(norms.toArray(new WeightNorm[norms.size()]));
+	}
+}
@@ -0,0 +1,105 @@
+package solcolator.luwak;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Query with NOW date math (e.g. fq=date:[NOW/DAY-7DAYS TO NOW]). The query isn't frozen at parse time:
+ * it's resolved against the current time when it's matched (on rewrite). NOW is rounded down to a time bucket
+ * and the query parsed for the current bucket is cached, so the query is re-parsed once per bucket at most.
+ * Presearchers can't extract terms of the query, so it's always selected as a candidate
+ */
+public class LuwakTimeRelativeQuery extends Query {
+	private final static Logger log = LoggerFactory.getLogger(LuwakTimeRelativeQuery.class);
+	
+	private final String query;
+	private final Map<String, String> queryMetadata;
+	private final long bucketMs;
+	private final IQueryResolver resolver;
+	private volatile ResolvedQuery resolved;
+	
+	/**
+	 * Parses query with a given NOW
+	 */
+	public interface IQueryResolver {
+		Query parse(long now) throws Exception;
+	}
+	
+	/**
+	 * @param query - query string
+	 * @param queryMetadata - query metadata
+	 * @param bucketMs - NOW rounding in ms
+	 * @param resolver - query parser with a given NOW
+	 */
+	public LuwakTimeRelativeQuery(String query, Map<String, String> queryMetadata, long bucketMs, IQueryResolver resolver) {
+		this.query = query;
+		this.queryMetadata = queryMetadata;
+		this.bucketMs = bucketMs;
+		this.resolver = resolver;
+	}
+	
+	/**
+	 * @return query resolved against the current time bucket
+	 * @throws IOException if the query can't be parsed and there is no previously resolved query
+	 */
+	public Query resolve() throws IOException {
+		long bucket = System.currentTimeMillis() / bucketMs;
+		ResolvedQuery current = resolved;
+		if (current != null && current.bucket == bucket) {
+			return current.query;
+		}
+		
+		try {
+			Query resolvedQuery = resolver.parse(bucket * bucketMs);
+			resolved = new ResolvedQuery(bucket, resolvedQuery);	// a race between matching threads only parses the same bucket twice
+			
+			return resolvedQuery;
+		} catch (Exception e) {
+			if (current == null) {
+				throw new IOException(String.format("Failed to resolve time relative query %s", query), e);
+			}
+			
+			log.error(String.format("Failed to resolve time relative query %s, query of the previous time bucket is used", query), e);
+			
+			return current.query;
+		}
+	}
+	
+	@Override
+	public Query rewrite(IndexReader reader) throws IOException {
+		return resolve();
+	}
+	
+	@Override
+	public String toString(String field) {
+		return String.format("NOW(%s)", query);
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other)
+				&& query.equals(((LuwakTimeRelativeQuery) other).query)
+				&& Objects.equals(queryMetadata, ((LuwakTimeRelativeQuery) other).queryMetadata);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * classHash() + Objects.hash(query, queryMetadata);
+	}
+	
+	private static class ResolvedQuery {
+		private final long bucket;
+		private final Query query;
+		
+		private ResolvedQuery(long bucket, Query query) {
+			this.bucket = bucket;
+			this.query = query;
+		}
+	}
+}
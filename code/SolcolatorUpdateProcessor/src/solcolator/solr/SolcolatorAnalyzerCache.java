@@ -0,0 +1,50 @@
+package solcolator.solr;
+
+import java.util.Collections;
+
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.solr.schema.IndexSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schema level cache of luwak documents analyzers. The analyzer is built once per IndexSchema instance
+ * (a new instance is created by solr on each schema change) and shared by all documents of the schema:
+ * 		all schema fields (including dynamic fields) - index analyzers of the schema
+ * 		_luwak_id (luwak internal field) - index analyzer of the unique key field
+ */
+public class SolcolatorAnalyzerCache {
+	private static Logger log = LoggerFactory.getLogger(SolcolatorAnalyzerCache.class);
+	public final static String LUWAK_ID_FIELD = "_luwak_id";
+	
+	private volatile SchemaAnalyzers schemaAnalyzers;
+	
+	/**
+	 * @param schema - index schema of the request
+	 * @return shared analyzer of the schema
+	 */
+	public PerFieldAnalyzerWrapper getAnalyzers(IndexSchema schema) {
+		SchemaAnalyzers current = schemaAnalyzers;
+		if (current != null && current.schema == schema) {
+			return current.analyzers;
+		}
+		
+		// a race between requests only builds the same wrapper twice
+		PerFieldAnalyzerWrapper analyzers = new PerFieldAnalyzerWrapper(schema.getIndexAnalyzer(),
+				Collections.singletonMap(LUWAK_ID_FIELD, schema.getUniqueKeyField().getType().getIndexAnalyzer()));
+		schemaAnalyzers = new SchemaAnalyzers(schema, analyzers);
+		log.info(String.format("Luwak analyzers were built for schema %s", schema.getSchemaName()));
+		
+		return analyzers;
+	}
+	
+	private static class SchemaAnalyzers {
+		private final IndexSchema schema;
+		private final PerFieldAnalyzerWrapper analyzers;
+		
+		private SchemaAnalyzers(IndexSchema schema, PerFieldAnalyzerWrapper analyzers) {
+			this.schema = schema;
+			this.analyzers = analyzers;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package solcolator.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import solcolator.io.api.ISolcolatorResultsWriter;
+import solcolator.luwak.LuwakDocumentBatch;
+import solcolator.luwak.LuwakInputDocument;
+import solcolator.luwak.LuwakMatcherFactory;
+import solcolator.luwak.LuwakMonitorHolder;
+import solcolator.luwak.LuwakQueriesManager;
+import solcolator.luwak.LuwakQuery;
+import solcolator.luwak.LuwakQueryRegistry;
+import solcolator.luwak.LuwakRestrictedPresearcher;
+import solcolator.luwak.LuwakSingleDocumentBatch;
+import solcolator.luwak.LuwakSpanRewriter;
+import solcolator.solr.SolcolatorMatchResults.MatchedDocument;
+
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.DocumentMatches;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.MatcherFactory;
+import uk.co.flax.luwak.Matches;
+import uk.co.flax.luwak.QueryMatch;
+import uk.co.flax.luwak.matchers.HighlightingMatcher;
+import uk.co.flax.luwak.matchers.HighlightsMatch.Hit;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.PartitionMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+
+/**
+ * Matches documents against solcolator queries and forwards the results to all writers.
+ * One instance is shared by all update requests (see SolcolatorMatchingBatcher)
+ */
+public class SolcolatorDocumentsMatcher {
+	private static Logger log = LoggerFactory.getLogger(SolcolatorDocumentsMatcher.class);
+	private final SolcolatorExecutors executors;
+	private final LuwakQueriesManager manager;
+	private final LuwakMatcherFactory factory;
+	private final int smallBatchMaxSize;
+	private final SolcolatorFingerprintCache fingerprintCache;
+	
+	public SolcolatorDocumentsMatcher(SolcolatorExecutors executors,
+			LuwakQueriesManager manager,
+			LuwakMatcherFactory factory,
+			int smallBatchMaxSize,
+			SolcolatorFingerprintCache fingerprintCache) {
+		this.executors = executors;
+		this.manager = manager;
+		this.factory = factory;
+		this.smallBatchMaxSize = smallBatchMaxSize;
+		this.fingerprintCache = fingerprintCache;
+	}
+	
+	/**
+	 * Match documents and write the results
+	 * @param documentsList	- luwak documents
+	 * @param solrDocs		- map between id and solr document (for writers)
+	 * @param similarity	- schema similarity
+	 */
+	public void matchDocumentsList(List<InputDocument> documentsList, Map<String, SolrInputDocument> solrDocs, Similarity similarity) {
+		if (documentsList.isEmpty()) {
+			return;
+		}
+		
+		log.info("Start to match docs through solcolator");
+		long start = System.currentTimeMillis();
+		LuwakQueryRegistry registry = manager.getQueryRegistry();	// pinned for the whole batch
+		long queriesVersion = registry.getVersion();
+		List<DocumentBatch> documentBatches = new ArrayList<>();
+		
+		try {
+			documentBatches = createDocumentBatches(getDocuments(documentsList, false), similarity);
+			documentBatches.addAll(createRestrictedBatches(getDocuments(documentsList, true), similarity));
+			
+			matchByFactory(documentsList, solrDocs, documentBatches, factory, registry);	
+			if (fingerprintCache != null) {
+				fingerprintCache.recordMatched(documentsList, queriesVersion, System.currentTimeMillis() - start);
+			}
+			
+			log.info(String.format("ParallelMatcher matched %d items in %d ms", documentsList.size(), System.currentTimeMillis() - start));	    	
+		} catch (Exception e) {
+			log.error("Failed to match luwak documents", e);
+		} finally {
+			for (DocumentBatch documentBatch : documentBatches) {
+				IOUtils.closeWhileHandlingException(documentBatch);
+			}
+			
+			log.info("Finish to match docs through solcolator");
+		}
+	}
+	
+	/**
+	 * @param documentsList - documents to match
+	 * @param restricted	- true for documents matched against some queries only (see SolcolatorFingerprintCache)
+	 * @return documents matched against all queries or restricted documents
+	 */
+	private List<InputDocument> getDocuments(List<InputDocument> documentsList, boolean restricted) {
+		List<InputDocument> documents = new ArrayList<>();
+		for (InputDocument doc : documentsList) {
+			boolean isRestricted = doc instanceof LuwakInputDocument && ((LuwakInputDocument) doc).getMonitorIds() != null;
+			if (isRestricted == restricted) {
+				documents.add(doc);
+			}
+		}
+		
+		return documents;
+	}
+	
+	/**
+	 * Documents which changed only some fields are indexed into separate batches, and candidate queries of these batches
+	 * are restricted to the queries referencing the changed fields of any of their documents
+	 * @param restrictedDocs	- restricted documents
+	 * @param similarity		- schema similarity
+	 * @return restricted document batches
+	 * @throws IOException
+	 */
+	private List<DocumentBatch> createRestrictedBatches(List<InputDocument> restrictedDocs, Similarity similarity) throws IOException {
+		if (restrictedDocs.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		Set<String> monitorIds = new HashSet<>();
+		for (InputDocument doc : restrictedDocs) {
+			monitorIds.addAll(((LuwakInputDocument) doc).getMonitorIds());
+		}
+		
+		List<DocumentBatch> restrictedBatches = new ArrayList<>();
+		for (DocumentBatch batch : createDocumentBatches(restrictedDocs, similarity)) {
+			try {
+				restrictedBatches.add(LuwakRestrictedPresearcher.restrict(batch, similarity, monitorIds));
+			} catch (IOException e) {
+				IOUtils.closeWhileHandlingException(batch);
+				IOUtils.closeWhileHandlingException(restrictedBatches);
+				
+				throw e;
+			}
+		}
+		
+		return restrictedBatches;
+	}
+	
+	/**
+	 * Small batches (up to smallBatchMaxSize docs) are matched document by document through an in-memory single document index,
+	 * bigger batches are indexed into a single LuwakDocumentBatch
+	 * @param documentsList - documents to match
+	 * @param similarity	- schema similarity
+	 * @return document batches
+	 */
+	private List<DocumentBatch> createDocumentBatches(List<InputDocument> documentsList, Similarity similarity) {
+		List<DocumentBatch> documentBatches = new ArrayList<>();
+		
+		if (documentsList.isEmpty()) {
+			return documentBatches;
+		}
+		
+		if (documentsList.size() > smallBatchMaxSize) {
+			documentBatches.add(new LuwakDocumentBatch(documentsList, similarity));
+			
+			return documentBatches;
+		}
+		
+		for (InputDocument doc : documentsList) {
+			try {
+				documentBatches.add(new LuwakSingleDocumentBatch(doc, similarity));
+			} catch (RuntimeException e) {
+				log.warn(String.format("Failed to build in-memory batch for doc %s, regular batch will be used", doc.getId()), e);
+				documentBatches.add(new LuwakDocumentBatch(Collections.singletonList(doc), similarity));
+			}
+		}
+		
+		return documentBatches;
+	}
+
+	/**
+	 * Match all batches once and write the results to every writer.
+	 * Matching results are shared, each writer gets its own projection of matched documents.
+	 * Queries snapshot is pinned before the batch is matched, so all writers see the same queries even if they are updated meanwhile
+	 * @param registry	- queries snapshot pinned before matching
+	 */
+	private void matchByFactory(List<InputDocument> documentsList, Map<String, SolrInputDocument> solrDocs,
+			List<DocumentBatch> documentBatches, LuwakMatcherFactory factory, LuwakQueryRegistry registry) throws IOException {
+		SolcolatorMatchResults results = factory.isHighlighting() ?
+				SolcolatorMatchResults.create(documentsList, matchBatches(documentBatches, HighlightingMatcher.factory(LuwakSpanRewriter.INSTANCE))) :
+				SolcolatorMatchResults.create(documentsList, matchBatches(documentBatches, SimpleMatcher.FACTORY));
+		
+		if (results.isEmpty()) {
+			return;
+		}
+		
+		for (ISolcolatorResultsWriter writer : manager.getSolcolatorResultsWriters()) {
+			try {
+				writer.writeSolcolatorResults(projectResults(results, registry, solrDocs, writer));
+			} catch (Exception e) {
+				log.error(String.format("Failed to write matched results by writer %s", writer.getClass().getName()), e);
+			}
+		}
+	}
+	
+	/**
+	 * Project matching results to the fields of a specific writer
+	 * Matches of a monitor query are fanned out to all its subscribers (identical solcolator queries with deduplication)
+	 * @param results	- matching results
+	 * @param registry	- pinned queries snapshot, queries added after it was pinned are taken from the current snapshot
+	 * @param solrDocs	- map between id and solr document
+	 * @param writer	- results writer
+	 * @return map between query id and its matched documents (writer's own copy)
+	 */
+	private Map<String, List<SolrInputDocument>> projectResults(SolcolatorMatchResults results, LuwakQueryRegistry registry,
+			Map<String, SolrInputDocument> solrDocs, ISolcolatorResultsWriter writer) {
+		Map<String, List<SolrInputDocument>> docsToWrite = new HashMap<>();
+		
+		for (Entry<String, List<MatchedDocument>> queryMatches : results.getQueryIdToMatchedDocs().entrySet()) {
+			String monitorId = queryMatches.getKey();
+			LuwakQueryRegistry queries = registry;
+			Set<String> subscribers = queries.getSubscribers(monitorId);
+			if (subscribers.isEmpty()) {
+				queries = manager.getQueryRegistry();	// added while matching (queries are published before the monitor is updated)
+				subscribers = queries.getSubscribers(monitorId);
+			}
+			
+			if (subscribers.isEmpty()) {
+				log.warn(String.format("Query %s was deleted while matching, its matches are skipped", monitorId));
+				continue;
+			}
+			
+			for (String queryId : subscribers) {
+				LuwakQuery query = queries.getQuery(queryId);
+				List<SolrInputDocument> docs = new ArrayList<>(queryMatches.getValue().size());
+				
+				for (MatchedDocument matchedDoc : queryMatches.getValue()) {
+					try {
+						docs.add(getDocWithSpecificFields(query, solrDocs.get(matchedDoc.getDocId()), matchedDoc.getHits(), writer));
+					} catch (Exception e) {
+						String errMessage = String.format("Failed to write matched results for doc %s", matchedDoc.getDocId());
+						log.error(errMessage, e);
+					}
+				}
+				
+				docsToWrite.put(queryId, docs);
+			}
+		}
+		
+		return docsToWrite;
+	}
+	
+	/**
+	 * Wrap the matcher factory for running in parallel:
+	 * 		partitioned factories - candidate queries are split into a fixed slice per worker, slices are matched on the work-stealing pool
+	 * 		other factories - ParallelMatcher feeds candidate queries from the calling thread to the match workers
+	 * @param matcherFactory	- luwak matcher factory
+	 * @return parallel matcher factory
+	 */
+	private <T extends QueryMatch> MatcherFactory<T> createParallelMatcherFactory(MatcherFactory<T> matcherFactory) {
+		if (factory.isPartitioned()) {
+			return PartitionMatcher.factory(executors.getPartitionPool(), matcherFactory, executors.getPartitions());
+		}
+		
+		return ParallelMatcher.factory(executors.getMatchWorkerPool(), matcherFactory, executors.getMatchThreads());
+	}
+	
+	/**
+	 * Match all batches against the same monitor and collect matches of each document.
+	 * The monitor is held until the batches are matched, so a rebuild swap doesn't close it meanwhile
+	 * @param documentBatches	- document batches
+	 * @param matcherFactory	- luwak matcher factory
+	 * @return map between document id and its matches
+	 * @throws IOException
+	 */
+	private <T extends QueryMatch> Map<String, DocumentMatches<T>> matchBatches(List<DocumentBatch> documentBatches, MatcherFactory<T> matcherFactory) throws IOException {
+		Map<String, DocumentMatches<T>> docIdToMatches = new HashMap<>();
+		MatcherFactory<T> parallelMatcherFactory = createParallelMatcherFactory(matcherFactory);
+		LuwakMonitorHolder monitorHolder = manager.acquireMonitor();
+		
+		try {
+			for (DocumentBatch documentBatch : documentBatches) {
+				Matches<T> matches = monitorHolder.getMonitor().match(documentBatch, parallelMatcherFactory);
+				reportMatchStatistics(matches);
+				
+				for (DocumentMatches<T> documentMatches : matches) {
+					docIdToMatches.put(documentMatches.getDocId(), documentMatches);
+				}
+			}
+		} finally {
+			monitorHolder.release();
+		}
+		
+		return docIdToMatches;
+	}
+
+	/**
+	 * Report how many queries were selected by presearcher (candidates) vs how many queries really matched
+	 * @param matches		- matching results
+	 */
+	private <T extends QueryMatch> void reportMatchStatistics(Matches<T> matches) {
+		int matchesCount = 0;
+		for (DocumentMatches<T> docMatches : matches) {
+			matchesCount += docMatches.getMatches().size();
+		}
+		
+		log.info(String.format("Presearcher selected %d candidate queries, %d matches were found in %d ms",
+				matches.getQueriesRun(), matchesCount, matches.getSearchTime()));
+		manager.getMatchStatistics().addBatch(matches.getBatchSize(), matches.getQueriesRun(), matchesCount, matches.getSearchTime());
+	}
+    
+	/**
+	 * Return Solr doc with specific (by config) fields only + queryId field, query and hits(optional)
+	 * @param query	- matched query
+	 * @param doc		- Solr doc
+	 * @param hits		- hits(optional)
+	 * @return SolrInputDocument with neccessary fields only
+	 */
+    private SolrInputDocument getDocWithSpecificFields(LuwakQuery query, SolrInputDocument doc, Map<String, Set<Hit>> hits, ISolcolatorResultsWriter writer) {
+    	Map<String, SolrInputField> specificFields = new HashMap<>();
+    	List<String> fl = writer.getFl();	//fl can be different per writer (in the case where we use several writers)
+    	
+    	if (!fl.contains("*")) {	// if fl = * then we want to get all fields
+			for (String fieldName : fl) {
+				specificFields.put(fieldName, doc.getField(fieldName));
+			}
+    	} else {
+    		specificFields = doc.entrySet()
+    				.stream()
+    				.filter(x -> !x.getKey().equals("_version_"))
+    				.collect(Collectors.toMap(Entry::getKey, Entry::getValue));
+    	}
+    	
+    	SolrInputDocument retDoc = new SolrInputDocument(specificFields);
+    	
+    	// add extra fields
+    	retDoc.addField("queryid_s", query.getId());
+    	retDoc.addField("query_s", query.getQuery());
+    	if (hits != null) {
+    		retDoc.addField("hits_s", new SolrInputField(hits.toString()));
+		}
+    	
+    	return retDoc;
+	}
+}
@@ -0,0 +1,210 @@
+package solcolator.solr;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sized pools used for matching:
+ * 		dispatch pool - runs a matching task per batch (building the batch index, matching and writing)
+ * 		match-worker pool - runs luwak matcher workers of the batches
+ * 		spill pool - a single thread with an in-memory secondary queue for batches which don't fit into the dispatch queue
+ * 					(nothing is spilled to disk, so the spilled batches are lost if Solr stops)
+ * 		partition pool - work-stealing pool running query slices of partitioned matchers (one slice per available processor)
+ * 
+ * The dispatch queue is bounded and its overflow is handled by the configured policy.
+ * The match-worker queue isn't bounded by itself: it holds at most matchThreads workers of each running batch,
+ * and the number of running batches is bounded by the dispatch pool (plus the spill thread and caller threads).
+ * Rejecting match workers or running them in the caller thread isn't an option: luwak ParallelMatcher
+ * feeds its workers from the calling thread, so it would wait for itself
+ */
+public class SolcolatorExecutors {
+	private final static Logger log = LoggerFactory.getLogger(SolcolatorExecutors.class);
+	private final static int SPILL_QUEUE_SIZE_FACTOR = 10;
+	private final static long PUT_RETRY_INTERVAL_MS = 100;	// how often a waiting put checks for shutdown
+	
+	private final ThreadPoolExecutor dispatchPool;
+	private final ThreadPoolExecutor matchWorkerPool;
+	private final ThreadPoolExecutor spillPool;
+	private final ExecutorService partitionPool;
+	private final int partitions;
+	private final SolcolatorOverflowPolicy overflowPolicy;
+	private final int matchThreads;
+	
+	private final AtomicLong rejectedTasks = new AtomicLong();
+	private final AtomicLong blockedTasks = new AtomicLong();
+	private final AtomicLong callerRunTasks = new AtomicLong();
+	private final AtomicLong spilledTasks = new AtomicLong();
+	private final AtomicLong droppedTasks = new AtomicLong();
+	
+	public SolcolatorExecutors(int dispatchThreads, int dispatchQueueSize, int matchThreads, SolcolatorOverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+		this.matchThreads = matchThreads;
+		
+		this.dispatchPool = new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(dispatchQueueSize));
+		this.dispatchPool.prestartAllCoreThreads();
+		
+		this.matchWorkerPool = new ThreadPoolExecutor(matchThreads, matchThreads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>());
+		
+		this.spillPool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(dispatchQueueSize * SPILL_QUEUE_SIZE_FACTOR));
+		this.spillPool.prestartAllCoreThreads();
+		
+		this.partitions = Runtime.getRuntime().availableProcessors();
+		this.partitionPool = Executors.newWorkStealingPool(partitions);	// threads are created on demand
+	}
+	
+	/**
+	 * Run matching task on the dispatch pool. If the dispatch queue is full, the overflow policy is applied
+	 * @param task - matching task
+	 * @throws RejectedExecutionException if the pools are shut down or waiting for a free place is interrupted
+	 */
+	public void dispatch(Runnable task) {
+		try {
+			dispatchPool.execute(task);
+		} catch (RejectedExecutionException e) {
+			if (dispatchPool.isShutdown()) {
+				throw e;
+			}
+			
+			rejectedTasks.incrementAndGet();
+			handleOverflow(task);
+		}
+	}
+	
+	private void handleOverflow(Runnable task) {
+		switch (overflowPolicy) {
+			case CALLER_RUNS:
+				callerRunTasks.incrementAndGet();
+				task.run();
+				break;
+				
+			case SPILL:
+				try {
+					spillPool.execute(task);
+					spilledTasks.incrementAndGet();
+				} catch (RejectedExecutionException e) {
+					blockedTasks.incrementAndGet();
+					put(spillPool, task);	// both queues are full: the indexing request waits for the spill thread
+					spilledTasks.incrementAndGet();
+				}
+				break;
+				
+			case BLOCK:
+			default:
+				blockedTasks.incrementAndGet();
+				put(dispatchPool, task);
+				break;
+		}
+	}
+	
+	/**
+	 * Wait for a free place in the queue of a pool. All core threads of the pool are prestarted,
+	 * so the task will be taken by one of them. Like ThreadPoolExecutor.execute, the task is taken back
+	 * from the queue if the pool was shut down meanwhile, so a queued task is never left behind
+	 * @param pool - dispatch or spill pool
+	 * @param task - matching task
+	 * @throws RejectedExecutionException if the pool is shut down or the waiting is interrupted (the interrupt status is restored)
+	 */
+	private void put(ThreadPoolExecutor pool, Runnable task) {
+		BlockingQueue<Runnable> queue = pool.getQueue();
+		
+		try {
+			while (!queue.offer(task, PUT_RETRY_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+				if (pool.isShutdown()) {
+					throw new RejectedExecutionException("Matching pool is shut down");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			droppedTasks.incrementAndGet();
+			throw new RejectedExecutionException("Waiting for a free place in the matching queue was interrupted", e);
+		}
+		
+		if (pool.isShutdown() && pool.remove(task)) {
+			throw new RejectedExecutionException("Matching pool is shut down");
+		}
+	}
+	
+	/**
+	 * @return pool for luwak matcher workers
+	 */
+	public ExecutorService getMatchWorkerPool() {
+		return matchWorkerPool;
+	}
+	
+	/**
+	 * @return number of luwak matcher workers per batch
+	 */
+	public int getMatchThreads() {
+		return matchThreads;
+	}
+	
+	/**
+	 * @return work-stealing pool for query slices of partitioned matchers
+	 */
+	public ExecutorService getPartitionPool() {
+		return partitionPool;
+	}
+	
+	/**
+	 * @return number of query slices per batch for partitioned matchers
+	 */
+	public int getPartitions() {
+		return partitions;
+	}
+	
+	public NamedList<Object> getStatistics() {
+		NamedList<Object> stats = new NamedList<>();
+		stats.add("overflowPolicy", overflowPolicy.name());
+		stats.add("dispatchQueueDepth", dispatchPool.getQueue().size());
+		stats.add("dispatchActiveThreads", dispatchPool.getActiveCount());
+		stats.add("matchWorkerQueueDepth", matchWorkerPool.getQueue().size());
+		stats.add("matchWorkerActiveThreads", matchWorkerPool.getActiveCount());
+		stats.add("spillQueueDepth", spillPool.getQueue().size());
+		stats.add("rejectedTasks", rejectedTasks.get());
+		stats.add("blockedTasks", blockedTasks.get());
+		stats.add("callerRunTasks", callerRunTasks.get());
+		stats.add("spilledTasks", spilledTasks.get());
+		stats.add("droppedTasks", droppedTasks.get());
+		
+		return stats;
+	}
+	
+	/**
+	 * Wait for all submitted tasks and stop the pools
+	 */
+	public void shutdown() {
+		shutdown(dispatchPool);
+		shutdown(spillPool);
+		shutdown(matchWorkerPool);
+		shutdown(partitionPool);
+	}
+	
+	private void shutdown(ExecutorService execService) {
+		try {
+    		execService.shutdown();
+    		execService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			log.error("Stopping of executors service is interrupted");
+		} finally {
+			if (!execService.isTerminated()) {
+				log.error("Stopping of executors service is interrupted: cancel non-finished tasks");
+			}
+
+			execService.shutdownNow();
+		}	
+	}
+}
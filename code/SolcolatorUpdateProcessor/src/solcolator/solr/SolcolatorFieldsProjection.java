@@ -0,0 +1,62 @@
+package solcolator.solr;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import solcolator.io.api.ISolcolatorResultsWriter;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Solr documents are kept until their batch is matched, only for writing matched documents with fields of writers' fl.
+ * So only the union of all writers' fields is retained. fl=* of any writer retains whole documents (expensive for big documents)
+ */
+public class SolcolatorFieldsProjection {
+	private final static Logger log = LoggerFactory.getLogger(SolcolatorFieldsProjection.class);
+	private final static String ALL_FIELDS = "*";
+	
+	private final Set<String> fields;	// null - all fields are retained
+	
+	/**
+	 * @param writers - results writers
+	 */
+	public SolcolatorFieldsProjection(List<ISolcolatorResultsWriter> writers) {
+		Set<String> writersFields = new HashSet<>();
+		for (ISolcolatorResultsWriter writer : writers) {
+			writersFields.addAll(writer.getFl());
+		}
+		
+		if (writersFields.contains(ALL_FIELDS)) {
+			fields = null;
+			log.warn("Some writer has fl=*, whole documents are retained until they are matched");
+		} else {
+			fields = writersFields;
+			log.info(String.format("Fields %s of documents are retained until they are matched", fields));
+		}
+	}
+	
+	/**
+	 * @param doc - solr document of update request
+	 * @return document with the retained fields only (the same document, if all fields are retained)
+	 */
+	public SolrInputDocument project(SolrInputDocument doc) {
+		if (fields == null) {
+			return doc;
+		}
+		
+		SolrInputDocument projectedDoc = new SolrInputDocument(new LinkedHashMap<>(fields.size() * 2));
+		for (String fieldName : fields) {
+			SolrInputField field = doc.getField(fieldName);
+			if (field != null) {
+				projectedDoc.put(fieldName, field);
+			}
+		}
+		
+		return projectedDoc;
+	}
+}
@@ -0,0 +1,177 @@
+package solcolator.solr;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import solcolator.luwak.LuwakInputDocument;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.update.VersionInfo;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import uk.co.flax.luwak.InputDocument;
+
+/**
+ * Fingerprints of matched documents (unique key -> hashes of query relevant fields + version of the queries snapshot).
+ * A document re-indexed without changes of the fields queries look at isn't matched again as long as the queries are the same,
+ * so the same results aren't written again. If only some fields were changed (e.g. atomic updates of a counter or inventory),
+ * the document is matched against the queries referencing the changed fields only. Fingerprints are recorded once the document is matched.
+ * The cache is bounded (least recently used fingerprints are evicted) and fingerprints may expire after ttl
+ */
+public class SolcolatorFingerprintCache {
+	private final static HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+	private final static double MATCH_TIME_SMOOTHING = 0.2;
+	
+	private final Cache<String, Fingerprint> fingerprints;
+	private final AtomicLong skippedDocs = new AtomicLong();
+	private final AtomicLong partiallyMatchedDocs = new AtomicLong();
+	private final AtomicLong matchedDocs = new AtomicLong();
+	private volatile double avgDocMatchTimeMs;
+	
+	/**
+	 * @param maxSize - max number of fingerprints
+	 * @param ttlSec - time to live of a fingerprint, 0 - fingerprints don't expire
+	 */
+	public SolcolatorFingerprintCache(long maxSize, long ttlSec) {
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats();
+		if (ttlSec > 0) {
+			builder.expireAfterWrite(ttlSec, TimeUnit.SECONDS);
+		}
+		
+		fingerprints = builder.build();
+	}
+	
+	/**
+	 * @param batchDoc - document with query relevant fields only
+	 * @return map between field name and hash of its values
+	 */
+	public Map<String, Long> fingerprint(Document batchDoc) {
+		Map<String, Hasher> hashers = new HashMap<>();
+		for (IndexableField field : batchDoc) {
+			if (field.name().equals(VersionInfo.VERSION_FIELD)) {
+				continue;	// a new version on every update (if documents aren't pruned)
+			}
+			
+			Hasher hasher = hashers.computeIfAbsent(field.name(), name -> HASH_FUNCTION.newHasher());
+			if (field.stringValue() != null) {
+				hasher.putString(field.stringValue(), Charsets.UTF_8);
+			} else if (field.binaryValue() != null) {
+				BytesRef bytes = field.binaryValue();
+				hasher.putBytes(bytes.bytes, bytes.offset, bytes.length);
+			} else if (field.numericValue() != null) {
+				hasher.putString(field.numericValue().toString(), Charsets.UTF_8);
+			}
+		}
+		
+		Map<String, Long> fieldFingerprints = new HashMap<>(hashers.size() * 2);
+		for (Entry<String, Hasher> hasher : hashers.entrySet()) {
+			fieldFingerprints.put(hasher.getKey(), hasher.getValue().hash().asLong());
+		}
+		
+		return fieldFingerprints;
+	}
+	
+	/**
+	 * @param id - document unique key
+	 * @param fieldFingerprints - fingerprints of the document fields
+	 * @param queriesVersion - version of the current queries snapshot
+	 * @return names of fields changed since the document was matched against the same queries
+	 * 			(empty if nothing was changed, so only queries which may reference any field are run, see LuwakQueryRegistry.getMonitorIdsByFields)
+	 * 			or null if the document has to be matched against all queries (it wasn't matched or the queries were changed since)
+	 */
+	public Set<String> getChangedFields(String id, Map<String, Long> fieldFingerprints, long queriesVersion) {
+		Fingerprint matched = fingerprints.getIfPresent(id);
+		if (matched == null || matched.queriesVersion != queriesVersion) {
+			return null;
+		}
+		
+		Set<String> changedFields = new HashSet<>();
+		for (Entry<String, Long> field : fieldFingerprints.entrySet()) {
+			if (!field.getValue().equals(matched.fieldFingerprints.get(field.getKey()))) {
+				changedFields.add(field.getKey());
+			}
+		}
+		
+		for (String field : matched.fieldFingerprints.keySet()) {
+			if (!fieldFingerprints.containsKey(field)) {
+				changedFields.add(field);	// removed field
+			}
+		}
+		
+		return changedFields;
+	}
+	
+	/**
+	 * Count a document which isn't matched at all
+	 */
+	public void skipped() {
+		skippedDocs.incrementAndGet();
+	}
+	
+	/**
+	 * Count a document which is matched against the queries of its changed fields only
+	 */
+	public void partiallyMatched() {
+		partiallyMatchedDocs.incrementAndGet();
+	}
+	
+	/**
+	 * Record fingerprints of successfully matched documents
+	 * @param documentsList - matched documents
+	 * @param queriesVersion - version of queries snapshot taken before matching
+	 * @param matchTimeMs - match time of the documents
+	 */
+	public void recordMatched(List<InputDocument> documentsList, long queriesVersion, long matchTimeMs) {
+		for (InputDocument doc : documentsList) {
+			if (doc instanceof LuwakInputDocument && ((LuwakInputDocument) doc).getFieldFingerprints() != null) {
+				fingerprints.put(doc.getId(), new Fingerprint(((LuwakInputDocument) doc).getFieldFingerprints(), queriesVersion));
+			}
+		}
+		
+		matchedDocs.addAndGet(documentsList.size());
+		avgDocMatchTimeMs = (1 - MATCH_TIME_SMOOTHING) * avgDocMatchTimeMs + MATCH_TIME_SMOOTHING * matchTimeMs / documentsList.size();
+	}
+	
+	public NamedList<Object> getStatistics() {
+		NamedList<Object> stats = new NamedList<>();
+		CacheStats cacheStats = fingerprints.stats();
+		long skipped = skippedDocs.get();
+		long matched = matchedDocs.get();
+		
+		stats.add("size", fingerprints.size());
+		stats.add("skippedDocs", skipped);
+		stats.add("partiallyMatchedDocs", partiallyMatchedDocs.get());
+		stats.add("matchedDocs", matched);
+		stats.add("hitRate", skipped + matched == 0 ? 0.0 : (double) skipped / (skipped + matched));
+		stats.add("evictions", cacheStats.evictionCount());
+		stats.add("estimatedSavedMatchTimeMs", (long) (skipped * avgDocMatchTimeMs));
+		
+		return stats;
+	}
+	
+	private static class Fingerprint {
+		private final Map<String, Long> fieldFingerprints;
+		private final long queriesVersion;
+		
+		private Fingerprint(Map<String, Long> fieldFingerprints, long queriesVersion) {
+			this.fieldFingerprints = fieldFingerprints;
+			this.queriesVersion = queriesVersion;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package solcolator.solr;
 
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.Supplier;
 
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.handler.component.SearchHandler;
@@ -10,6 +11,7 @@ import org.apache.solr.response.SolrQueryResponse;
 
 import solcolator.luwak.LuwakQueriesManager;
 import solcolator.luwak.LuwakQuery;
+import solcolator.luwak.LuwakQueryRegistry;
 
 /**
  * The handler for developer & QA tests. It displays the current state of solcolator, which queries are saved in.
@@ -17,14 +19,27 @@ import solcolator.luwak.LuwakQuery;
  */
 public class SolcolatorInfoRequestHander extends SearchHandler {
 	private final static String NUMBER_QUERIES_IN_SOLCOLATOR_HEADER = "numberQueriesInSolcolator";
+	private final static String MATCH_STATISTICS_HEADER = "matchStatistics";
+	private final static String QUERY_REGISTRY_VERSION_HEADER = "queryRegistryVersion";
+	private final static String NUMBER_SUBSCRIBED_QUERIES_HEADER = "numberSubscribedQueries";
 	
 	@Override
 	public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {						
 		LuwakQueriesManager manager = LuwakQueriesManager.getQueriesManager();
-		Map<String, LuwakQuery> queriesMap = manager.getQueryIdToLuwakQuery();
+		LuwakQueryRegistry registry = manager.getQueryRegistry();
+		Map<String, LuwakQuery> queriesMap = registry.getQueries();
 		
 		NamedList<Object> nmsLst = new NamedList<Object>();
 		nmsLst.add(NUMBER_QUERIES_IN_SOLCOLATOR_HEADER, manager.getMonitor().getQueryCount());
+		nmsLst.add(NUMBER_SUBSCRIBED_QUERIES_HEADER, registry.size());	// differs from the monitor count with deduplication
+		nmsLst.add(QUERY_REGISTRY_VERSION_HEADER, registry.getVersion());
+		nmsLst.add(MATCH_STATISTICS_HEADER, manager.getMatchStatistics().toNamedList());
+		if (manager.getLoadStatistics() != null) {
+			nmsLst.add(SolcolatorQueriesRequestHander.LOAD_STATISTICS, manager.getLoadStatistics().toNamedList());
+		}
+		for (Entry<String, Supplier<NamedList<Object>>> statistics : manager.getComponentsStatistics().entrySet()) {
+			nmsLst.add(statistics.getKey(), statistics.getValue().get());
+		}
 		nmsLst.add(SolcolatorQueriesRequestHander.NAME, SolcolatorQueriesRequestCommand.toPrint());
 		
 		rsp.addResponseHeader(nmsLst);
@@ -0,0 +1,99 @@
+package solcolator.solr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import uk.co.flax.luwak.DocumentMatches;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.QueryMatch;
+import uk.co.flax.luwak.matchers.HighlightsMatch;
+import uk.co.flax.luwak.matchers.HighlightsMatch.Hit;
+
+/**
+ * Immutable matching results of a batch: query id -> matched documents (in the order of the batch).
+ * The results are built once per batch and shared by all writers, each writer projects them to its own fields
+ */
+public class SolcolatorMatchResults {
+	private final Map<String, List<MatchedDocument>> queryIdToMatchedDocs;
+	private final int matchesCount;
+	
+	private SolcolatorMatchResults(Map<String, List<MatchedDocument>> queryIdToMatchedDocs, int matchesCount) {
+		this.queryIdToMatchedDocs = queryIdToMatchedDocs;
+		this.matchesCount = matchesCount;
+	}
+	
+	/**
+	 * Build matching results in a single pass over documents and their matches
+	 * @param documentsList	- luwak documents (defines order of matched documents)
+	 * @param docIdToMatches	- map between document id and its matches
+	 * @return immutable matching results
+	 */
+	public static <T extends QueryMatch> SolcolatorMatchResults create(List<InputDocument> documentsList, Map<String, DocumentMatches<T>> docIdToMatches) {
+		Map<String, List<MatchedDocument>> queryIdToMatchedDocs = new LinkedHashMap<>();
+		int matchesCount = 0;
+		
+		for (InputDocument doc : documentsList) {
+			DocumentMatches<T> matches = docIdToMatches.get(doc.getId());
+			if (matches == null) {
+				continue;
+			}
+			
+			for (T match : matches.getMatches()) {
+				Map<String, Set<Hit>> hits = match instanceof HighlightsMatch ? ((HighlightsMatch) match).getHits() : null;
+				
+				List<MatchedDocument> matchedDocs = queryIdToMatchedDocs.get(match.getQueryId());
+				if (matchedDocs == null) {
+					matchedDocs = new ArrayList<>();
+					queryIdToMatchedDocs.put(match.getQueryId(), matchedDocs);
+				}
+				
+				matchedDocs.add(new MatchedDocument(doc.getId(), hits));
+				matchesCount++;
+			}
+		}
+		
+		for (Entry<String, List<MatchedDocument>> entry : queryIdToMatchedDocs.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		
+		return new SolcolatorMatchResults(Collections.unmodifiableMap(queryIdToMatchedDocs), matchesCount);
+	}
+	
+	public Map<String, List<MatchedDocument>> getQueryIdToMatchedDocs() {
+		return queryIdToMatchedDocs;
+	}
+	
+	public int getMatchesCount() {
+		return matchesCount;
+	}
+	
+	public boolean isEmpty() {
+		return matchesCount == 0;
+	}
+	
+	/**
+	 * Document matched by a query with hits (only for highlighting matchers)
+	 */
+	public static class MatchedDocument {
+		private final String docId;
+		private final Map<String, Set<Hit>> hits;
+		
+		private MatchedDocument(String docId, Map<String, Set<Hit>> hits) {
+			this.docId = docId;
+			this.hits = hits;
+		}
+		
+		public String getDocId() {
+			return docId;
+		}
+		
+		public Map<String, Set<Hit>> getHits() {
+			return hits;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package solcolator.solr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import solcolator.common.SolrUtils;
+
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.flax.luwak.InputDocument;
+
+/**
+ * Batching stage shared by all update requests. Documents of many requests are gathered and flushed to the matcher
+ * as a single batch when max docs count, max bytes size or max latency is reached.
+ * The latency window adapts to observed match time: while one batch is matched, the next one is gathered,
+ * so the window follows the average match time and never exceeds max latency.
+ * Every version of a document is matched: a document which is already in the batch flushes it, so its newer version starts the next batch.
+ * If max latency is 0, batching is disabled and each request is matched separately
+ */
+public class SolcolatorMatchingBatcher implements AutoCloseable {
+	private static Logger log = LoggerFactory.getLogger(SolcolatorMatchingBatcher.class);
+	private final static double MATCH_TIME_SMOOTHING = 0.2;
+	
+	private final SolcolatorDocumentsMatcher matcher;
+	private final SolcolatorExecutors executors;
+	private final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "solcolator-batch-flush");
+		thread.setDaemon(true);
+		
+		return thread;
+	});
+	private final int maxDocs;
+	private final long maxBytes;
+	private final long maxLatencyMs;
+	
+	private LinkedHashMap<String, PendingDocument> pendingDocs = new LinkedHashMap<>();
+	private Similarity pendingSimilarity;
+	private long pendingBytes;
+	private ScheduledFuture<?> scheduledFlush;
+	private volatile double avgMatchTimeMs;
+	
+	public SolcolatorMatchingBatcher(SolcolatorDocumentsMatcher matcher, SolcolatorExecutors executors, int maxDocs, long maxBytes, long maxLatencyMs) {
+		this.matcher = matcher;
+		this.executors = executors;
+		this.maxDocs = maxDocs;
+		this.maxBytes = maxBytes;
+		this.maxLatencyMs = maxLatencyMs;
+		this.avgMatchTimeMs = maxLatencyMs;
+	}
+	
+	/**
+	 * Add documents of an update request to the current batch.
+	 * The batch is dispatched outside of the batcher lock, so an update request waiting for a place in the dispatch queue
+	 * (block overflow policy) doesn't stop other requests from gathering the next batch
+	 * @param luwakDocs		- luwak documents
+	 * @param solrDocs		- map between id and solr document
+	 * @param similarity	- schema similarity
+	 */
+	public void submit(List<InputDocument> luwakDocs, Map<String, SolrInputDocument> solrDocs, Similarity similarity) {
+		if (luwakDocs.isEmpty()) {
+			return;
+		}
+		
+		if (maxLatencyMs <= 0) {
+			dispatch(new PendingBatch(luwakDocs, solrDocs, similarity));
+			return;
+		}
+		
+		List<PendingBatch> readyBatches = new ArrayList<>();
+		synchronized (this) {
+			if (pendingSimilarity != null && pendingSimilarity != similarity) {
+				readyBatches.add(takePending());	// schema was changed, documents of different schemas can't be indexed together
+			}
+			
+			pendingSimilarity = similarity;
+			for (InputDocument luwakDoc : luwakDocs) {
+				if (pendingDocs.containsKey(luwakDoc.getId())) {
+					readyBatches.add(takePending());	// the previous version of the document is matched too
+					pendingSimilarity = similarity;
+				}
+				
+				SolrInputDocument solrDoc = solrDocs.get(luwakDoc.getId());
+				pendingDocs.put(luwakDoc.getId(), new PendingDocument(luwakDoc, solrDoc));
+				pendingBytes += SolrUtils.estimateSize(solrDoc);
+			}
+			
+			if (pendingDocs.size() >= maxDocs || pendingBytes >= maxBytes) {
+				readyBatches.add(takePending());
+			} else if (scheduledFlush == null) {
+				scheduledFlush = flushScheduler.schedule(this::flush, getWindowMs(), TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		for (PendingBatch readyBatch : readyBatches) {
+			dispatch(readyBatch);
+		}
+	}
+	
+	/**
+	 * Flush all pending documents to the matcher
+	 */
+	public void flush() {
+		PendingBatch pendingBatch;
+		synchronized (this) {
+			pendingBatch = takePending();
+		}
+		
+		dispatch(pendingBatch);
+	}
+	
+	/**
+	 * Take all pending documents as a batch and start gathering the next one.
+	 * Must be called under the batcher lock
+	 * @return pending batch or null if there are no pending documents
+	 */
+	private PendingBatch takePending() {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		
+		if (pendingDocs.isEmpty()) {
+			return null;
+		}
+		
+		List<InputDocument> luwakDocs = new ArrayList<>(pendingDocs.size());
+		Map<String, SolrInputDocument> solrDocs = new HashMap<>();
+		for (PendingDocument pendingDoc : pendingDocs.values()) {
+			luwakDocs.add(pendingDoc.luwakDoc);
+			solrDocs.put(pendingDoc.luwakDoc.getId(), pendingDoc.solrDoc);
+		}
+		
+		PendingBatch pendingBatch = new PendingBatch(luwakDocs, solrDocs, pendingSimilarity);
+		pendingDocs = new LinkedHashMap<>();
+		pendingBytes = 0;
+		pendingSimilarity = null;
+		
+		return pendingBatch;
+	}
+	
+	private void dispatch(PendingBatch batch) {
+		if (batch == null) {
+			return;
+		}
+		
+		executors.dispatch(() -> {
+			long start = System.currentTimeMillis();
+			matcher.matchDocumentsList(batch.luwakDocs, batch.solrDocs, batch.similarity);
+			
+			avgMatchTimeMs = (1 - MATCH_TIME_SMOOTHING) * avgMatchTimeMs + MATCH_TIME_SMOOTHING * (System.currentTimeMillis() - start);
+		});
+	}
+	
+	/**
+	 * @return current batching window: average match time bounded by max latency
+	 */
+	public long getWindowMs() {
+		return Math.max(1, Math.min(maxLatencyMs, (long) avgMatchTimeMs));
+	}
+	
+	@Override
+	public void close() {
+		flush();
+		flushScheduler.shutdown();
+		log.info("Matching batcher is closed");
+	}
+	
+	private static class PendingBatch {
+		private final List<InputDocument> luwakDocs;
+		private final Map<String, SolrInputDocument> solrDocs;
+		private final Similarity similarity;
+		
+		private PendingBatch(List<InputDocument> luwakDocs, Map<String, SolrInputDocument> solrDocs, Similarity similarity) {
+			this.luwakDocs = luwakDocs;
+			this.solrDocs = solrDocs;
+			this.similarity = similarity;
+		}
+	}
+	
+	private static class PendingDocument {
+		private final InputDocument luwakDoc;
+		private final SolrInputDocument solrDoc;
+		
+		private PendingDocument(InputDocument luwakDoc, SolrInputDocument solrDoc) {
+			this.luwakDoc = luwakDoc;
+			this.solrDoc = solrDoc;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package solcolator.solr;
+
+import java.util.Arrays;
+
+/**
+ * What to do with a matching task when the dispatch queue is full:
+ * 		BLOCK (block) - the indexing request waits until there is a free place in the queue
+ * 		CALLER_RUNS (caller_runs) - the matching is run in the indexing request thread
+ * 		SPILL (spill) - the task is moved to a secondary in-memory overflow queue drained by a single thread (nothing is
+ * 						written to disk), if the overflow queue is full too, the indexing request waits for a free place in it
+ */
+public enum SolcolatorOverflowPolicy {
+	BLOCK,
+	CALLER_RUNS,
+	SPILL;
+	
+	/**
+	 * If given overflow policy exists, function will return its enum value otherwise will throw exception.
+	 * Function is case insensitive to value of kindName
+	 * @param kindName
+	 * @return enum value of kind name or exception
+	 * @throws Exception 
+	 */
+	public static SolcolatorOverflowPolicy get(String kindName) throws Exception {
+		for (SolcolatorOverflowPolicy kind : SolcolatorOverflowPolicy.values()) {
+			if (kind.name().equalsIgnoreCase(kindName)) {
+				return kind;
+			}
+		}
+		
+		throw new Exception(String.format("Not existing overflow policy - %s. Legal kinds: %s",
+				kindName, Arrays.asList(SolcolatorOverflowPolicy.values())));
+	}
+}
@@ -7,6 +7,7 @@ import java.util.Map.Entry;
 
 import solcolator.common.SolrUtils;
 import solcolator.io.api.SolcolatorQuery;
+import solcolator.luwak.LuwakLoadStatistics;
 import solcolator.luwak.LuwakQueriesManager;
 import solcolator.luwak.LuwakQuery;
 
@@ -25,6 +26,7 @@ public class SolcolatorQueriesRequestHander extends SolcolatorRequestHandler {
 	public final static String QUERY_NAME = "queryname";
 	public final static String COMMAND = "command";
 	public final static String NAME = "/update_solcolator_queries";
+	public final static String LOAD_STATISTICS = "loadStatistics";
 	
 	@Override
 	public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {	
@@ -46,7 +48,8 @@ public class SolcolatorQueriesRequestHander extends SolcolatorRequestHandler {
 					break;
 					
 				case REREAD:
-					manager.loadQueriesToSolcolator(getRequestHandlerMetadata(req.getCore()));
+					LuwakLoadStatistics loadStatistics = manager.rereadQueries(getRequestHandlerMetadata(req.getCore()));
+					rsp.add(LOAD_STATISTICS, loadStatistics.toNamedList());
 					break;
 					
 				case UPDATE:
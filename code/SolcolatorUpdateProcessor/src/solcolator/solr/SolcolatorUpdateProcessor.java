@@ -5,224 +5,91 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
 
-import solcolator.io.api.ISolcolatorResultsWriter;
-import solcolator.luwak.LuwakDocumentBatch;
+import solcolator.common.SolrUtils;
 import solcolator.luwak.LuwakInputDocument;
-import solcolator.luwak.LuwakMatcherFactory;
 import solcolator.luwak.LuwakQueriesManager;
+import solcolator.luwak.LuwakQueryRegistry;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.solr.common.SolrInputField;
 import org.apache.solr.schema.IndexSchema;
-import org.apache.solr.schema.SchemaField;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.co.flax.luwak.DocumentBatch;
 import uk.co.flax.luwak.InputDocument;
-import uk.co.flax.luwak.Matches;
-import uk.co.flax.luwak.Monitor;
-import uk.co.flax.luwak.QueryMatch;
-import uk.co.flax.luwak.matchers.HighlightingMatcher;
-import uk.co.flax.luwak.matchers.HighlightsMatch;
-import uk.co.flax.luwak.matchers.HighlightsMatch.Hit;
-import uk.co.flax.luwak.matchers.ParallelMatcher;
-import uk.co.flax.luwak.matchers.SimpleMatcher;
 
 
 public class SolcolatorUpdateProcessor extends UpdateRequestProcessor {
     private static Logger log = LoggerFactory.getLogger(SolcolatorUpdateProcessor.class);
-    private final ExecutorService execService;
-    private final LuwakQueriesManager manager;
-    private final Monitor monitor;
-    private final List<ISolcolatorResultsWriter> writers;
-    private final LuwakMatcherFactory factory;
+    private final SolcolatorMatchingBatcher batcher;
+    private final SolcolatorAnalyzerCache analyzerCache;	// shared by all requests, since documents of several requests can be matched in one batch
+    private final SolcolatorFieldsProjection fieldsProjection;
+    private final int subBatchMaxDocs;
+    private final long subBatchMaxBytes;
+    private final SolcolatorFingerprintCache fingerprintCache;	// null - every document is matched
     
     private List<InputDocument> luwakDocs = new ArrayList<>();
     private Map<String,SolrInputDocument> solrDocs = new HashMap<>();
+    private long subBatchBytes;
     private Similarity similarity;
-    private Map<String, Analyzer> fieldToAnalyzer = new HashMap<>();
 
-    public SolcolatorUpdateProcessor(UpdateRequestProcessor next,
-    		ExecutorService execService,
-    		LuwakQueriesManager manager,
-    		LuwakMatcherFactory factory) {
+    public SolcolatorUpdateProcessor(UpdateRequestProcessor next, SolcolatorMatchingBatcher batcher, SolcolatorAnalyzerCache analyzerCache,
+    		SolcolatorFieldsProjection fieldsProjection, int subBatchMaxDocs, long subBatchMaxBytes,
+    		SolcolatorFingerprintCache fingerprintCache) {
     	super(next);
     	
-    	this.manager = manager;
-        this.execService = execService;
-        this.monitor = manager.getMonitor();
-        this.writers = manager.getSolcolatorResultsWriters();
-        this.factory = factory;
+        this.batcher = batcher;
+        this.analyzerCache = analyzerCache;
+        this.fieldsProjection = fieldsProjection;
+        this.subBatchMaxDocs = subBatchMaxDocs;
+        this.subBatchMaxBytes = subBatchMaxBytes;
+        this.fingerprintCache = fingerprintCache;
     }
     
     @Override
     public void finish() throws IOException {
-    	execService.execute(() -> {
-        	matchDocumentsList(luwakDocs);	//For good performance LUWAK matching would be run only when all docs in bulk had passed processAdd
-        });
+    	submitSubBatch();	//For good performance LUWAK matching would be run only when all docs in bulk had passed processAdd
     	
     	super.finish();
     }
-
-	private void matchDocumentsList(List<InputDocument> documentsList) {
-		log.info("Start to match docs through solcolator");
-		long start = System.currentTimeMillis();
-		
-		try {
-			DocumentBatch documentBatch = new LuwakDocumentBatch(documentsList, similarity);
-			
-			matchByFactory(documentsList, documentBatch, factory);	
-			
-			log.info(String.format("ParallelMatcher matched %d items in %d ms", documentBatch.getBatchSize(), System.currentTimeMillis() - start));	    	
-		} catch (Exception e) {
-			log.error("Failed to match luwak documents", e);
-		} finally {
-			log.info("Finish to match docs through solcolator");
-		}
-	}
-
-	private void matchByFactory(List<InputDocument> documentsList, DocumentBatch documentBatch, LuwakMatcherFactory factory) throws IOException {
-		switch (factory) {
-			case HIGHLIGHTING:
-				highlightingMatch(documentsList, documentBatch);
-				break;
-				
-			case SIMPLE:
-				simpleMach(documentsList, documentBatch);
-				break;
-	
-			default:
-				simpleMach(documentsList, documentBatch);
-				break;
-		}
-	}
-
-	//TODO: To think how to union this function with highlightingMatch
-	private void simpleMach(List<InputDocument> documentsList, DocumentBatch documentBatch) throws IOException {
-		Matches<QueryMatch> matches = monitor.match(documentBatch, ParallelMatcher.factory(execService, SimpleMatcher.FACTORY));
-		Map<String, List<SolrInputDocument>> docsToWrite = new HashMap<>();
-		
-		for (ISolcolatorResultsWriter writer : writers) {
-			for (InputDocument doc : documentsList) {
-				String id = doc.getId();
-				for (QueryMatch documentMatches : matches.getMatches(doc.getId())) {
-					try {
-						String queryId = documentMatches.getQueryId();
-						SolrInputDocument docWithSpecificFields = getDocWithSpecificFields(queryId, id, null, writer);
-						
-						List<SolrInputDocument> docs = docsToWrite.get(queryId);
-						if (docs == null) {
-							docs = new ArrayList<>();
-							docs.add(docWithSpecificFields);
-							docsToWrite.put(queryId, docs);
-						} else {
-							docs.add(docWithSpecificFields);
-						}
-					} catch (Exception e) {
-						String errMessage = String.format("Failed to write matched results for doc %s", doc.getId());
-						log.error(errMessage, e);
-					}
-				}
-			}
-	
-			writer.writeSolcolatorResults(docsToWrite);
-		}
-	}
-
-	private void highlightingMatch(List<InputDocument> documentsList, DocumentBatch documentBatch) throws IOException {
-		Matches<HighlightsMatch> matches = monitor.match(documentBatch, ParallelMatcher.factory(execService, HighlightingMatcher.FACTORY));
-		Map<String, List<SolrInputDocument>> docsToWrite = new HashMap<>();
-		
-		for (ISolcolatorResultsWriter writer : writers) {
-			for (InputDocument doc : documentsList) {
-				String id = doc.getId();
-				for (HighlightsMatch documentMatches : matches.getMatches(doc.getId()).getMatches()) {
-					try {
-						String queryId = documentMatches.getQueryId();
-						SolrInputDocument docWithSpecificFields = getDocWithSpecificFields(queryId, id, documentMatches.getHits(), writer);
-
-						List<SolrInputDocument> docs = docsToWrite.get(queryId);
-						if (docs == null) {
-							docs = new ArrayList<>();
-							docs.add(docWithSpecificFields);
-							docsToWrite.put(queryId, docs);
-						} else {
-							docs.add(docWithSpecificFields);
-						}
-					} catch (Exception e) {
-						String errMessage = String.format("Failed to write matched results for doc %s", doc.getId());
-						log.error(errMessage, e);
-					}
-				}
-			}
-		
-			writer.writeSolcolatorResults(docsToWrite);
-		}
-	}
     
-	/**
-	 * Return Solr doc with specific (by config) fields only + queryId field, query and hits(optional)
-	 * @param queryId	- query id
-	 * @param itemId	- id of Solr doc
-	 * @param hits		- hits(optional)
-	 * @return SolrInputDocument with neccessary fields only
-	 */
-    private SolrInputDocument getDocWithSpecificFields(String queryId, String itemId, Map<String, Set<Hit>> hits, ISolcolatorResultsWriter writer) {
-    	Map<String, SolrInputField> specificFields = new HashMap<>();
-    	SolrInputDocument doc = solrDocs.get(itemId);
-    	List<String> fl = writer.getFl();	//fl can be different per writer (in the case where we use several writers)
-    	
-    	if (!fl.contains("*")) {	// if fl = * then we want to get all fields
-			for (String fieldName : fl) {
-				specificFields.put(fieldName, doc.getField(fieldName));
-			}
-    	} else {
-    		specificFields = doc.entrySet()
-    				.stream()
-    				.filter(x -> !x.getKey().equals("_version_"))
-    				.collect(Collectors.toMap(Entry::getKey, Entry::getValue));
+    /**
+     * Hand the gathered documents over to matching and start gathering the next sub-batch.
+     * Big requests are matched in sub-batches (up to subBatchMaxDocs docs or subBatchMaxBytes bytes), so a sub-batch
+     * is matched while the next one is gathered, and only one sub-batch of the request is held here
+     */
+    private void submitSubBatch() {
+    	if (luwakDocs.isEmpty()) {
+    		return;
     	}
     	
-    	SolrInputDocument retDoc = new SolrInputDocument(specificFields);
-    	
-    	// add extra fields
-    	retDoc.addField("queryid_s", queryId);
-    	retDoc.addField("query_s", manager.getQueryIdToLuwakQuery().get(queryId).getQuery());
-    	if (hits != null) {
-    		retDoc.addField("hits_s", new SolrInputField(hits.toString()));
-		}
-    	
-    	return retDoc;
-	}
+    	batcher.submit(luwakDocs, solrDocs, similarity);
+    	luwakDocs = new ArrayList<>();
+    	solrDocs = new HashMap<>();
+    	subBatchBytes = 0;
+    }
+    
+    private boolean isSubBatchFull() {
+    	return (subBatchMaxDocs > 0 && luwakDocs.size() >= subBatchMaxDocs) || (subBatchMaxBytes > 0 && subBatchBytes >= subBatchMaxBytes);
+    }
 
 	@Override
     public void processAdd(AddUpdateCommand cmd) throws IOException {
     	String itemId = cmd.getIndexedId().utf8ToString();
     	
     	try {    		
-	    	IndexSchema schema = cmd.getReq().getSchema();
-	    	Document luceneDoc = cmd.getLuceneDocument();
-	
-	    	setSimilarity(schema.getSimilarity());
-
-	    	InputDocument luwakDoc = createLuwakDoc(itemId, luceneDoc, schema);	
-	    	luwakDocs.add(luwakDoc);
-	    	solrDocs.put(itemId, cmd.getSolrInputDocument());
+	    	gatherDocument(itemId, cmd);
+	    } catch (RejectedExecutionException e) {
+	    	throw e;	// matching of the sub-batch couldn't be scheduled (the pools are shut down or the request was interrupted)
 	    } catch (Exception e) {
 			String errMessage = String.format("Failed to build luwak document for item_id:%s", itemId);
 			log.error(errMessage, e);
@@ -230,6 +97,47 @@ public class SolcolatorUpdateProcessor extends UpdateRequestProcessor {
     	
     	super.processAdd(cmd);
     }
+    
+    /**
+     * Add the document to the current sub-batch, unless its query relevant fields weren't changed
+     * since it was matched against the same queries (see SolcolatorFingerprintCache).
+     * If only some fields were changed, the document is matched against the queries referencing them only
+     */
+    private void gatherDocument(String itemId, AddUpdateCommand cmd) {
+    	IndexSchema schema = cmd.getReq().getSchema();
+    	Document luceneDoc = cmd.getLuceneDocument();
+    	
+    	LuwakQueryRegistry registry = LuwakQueriesManager.getQueriesManager().getQueryRegistry();
+    	Document batchDoc = pruneFields(luceneDoc, registry.getReferencedFields());
+    	Map<String, Long> fieldFingerprints = null;
+    	Set<String> monitorIds = null;
+    	if (fingerprintCache != null) {
+    		fieldFingerprints = fingerprintCache.fingerprint(batchDoc);
+    		Set<String> changedFields = fingerprintCache.getChangedFields(itemId, fieldFingerprints, registry.getVersion());
+    		if (changedFields != null) {
+    			monitorIds = registry.getMonitorIdsByFields(changedFields);
+    			if (monitorIds.isEmpty()) {
+    				fingerprintCache.skipped();
+    				return;
+    			}
+    			
+    			fingerprintCache.partiallyMatched();
+    		}
+    	}
+    	
+    	setSimilarity(schema.getSimilarity());
+    	
+    	InputDocument luwakDoc = createLuwakDoc(itemId, luceneDoc, batchDoc, schema, fieldFingerprints, monitorIds);	
+    	luwakDocs.add(luwakDoc);
+    	solrDocs.put(itemId, fieldsProjection.project(cmd.getSolrInputDocument()));	// only fields of writers are retained until matching
+    	if (subBatchMaxBytes > 0) {
+    		subBatchBytes += SolrUtils.estimateSize(cmd.getSolrInputDocument());
+    	}
+    	
+    	if (isSubBatchFull()) {
+    		submitSubBatch();
+    	}
+    }
 
 	private void setSimilarity(Similarity indexSchemaSimilarity) {
 		if (similarity == null) {
@@ -237,22 +145,37 @@ public class SolcolatorUpdateProcessor extends UpdateRequestProcessor {
 		}
 	}
 
-	private InputDocument createLuwakDoc(String itemId, Document luceneDoc, IndexSchema schema) {	
-    	for( IndexableField f : luceneDoc.getFields() ) {
-    		String fname = f.name();
-  	      	SchemaField sf = schema.getFieldOrNull(f.name());
-  	      	fieldToAnalyzer.put(fname, sf.getType().getIndexAnalyzer());
-  	    }	
-    	
+	private InputDocument createLuwakDoc(String itemId, Document luceneDoc, Document batchDoc, IndexSchema schema,
+			Map<String, Long> fieldFingerprints, Set<String> monitorIds) {	
     	// Luwak internal must field
     	IndexableField f = luceneDoc.getField(schema.getUniqueKeyField().getName());
-    	fieldToAnalyzer.put("_luwak_id", schema.getFieldOrNull(f.name()).getType().getIndexAnalyzer());
-    	IndexableField _luwak_id = new Field("_luwak_id", itemId, (FieldType) f.fieldType());
-    	luceneDoc.add(_luwak_id);
+    	IndexableField _luwak_id = new Field(SolcolatorAnalyzerCache.LUWAK_ID_FIELD, itemId, (FieldType) f.fieldType());
+    	batchDoc.add(_luwak_id);
 		
-    	PerFieldAnalyzerWrapper analyzers = new PerFieldAnalyzerWrapper(fieldToAnalyzer.get(schema.getUniqueKeyField().getName()), fieldToAnalyzer);
-		LuwakInputDocument luwakDoc = new LuwakInputDocument(itemId, luceneDoc, analyzers);
+		LuwakInputDocument luwakDoc = new LuwakInputDocument(itemId, batchDoc, analyzerCache.getAnalyzers(schema), fieldFingerprints, monitorIds);
 				
 		return luwakDoc;
 	}
+	
+	/**
+	 * Keep only fields referenced by registered queries, other fields would be analyzed and indexed into the batch for nothing.
+	 * A query registered after the document was built doesn't see fields which no other query uses
+	 * @param luceneDoc - document built by the schema
+	 * @param referencedFields - names of fields referenced by queries or null if all fields are needed
+	 * @return document for the batch
+	 */
+	private Document pruneFields(Document luceneDoc, Set<String> referencedFields) {
+		if (referencedFields == null) {
+			return luceneDoc;
+		}
+		
+		Document batchDoc = new Document();
+		for (IndexableField field : luceneDoc) {
+			if (referencedFields.contains(field.name())) {
+				batchDoc.add(field);
+			}
+		}
+		
+		return batchDoc;
+	}
 }
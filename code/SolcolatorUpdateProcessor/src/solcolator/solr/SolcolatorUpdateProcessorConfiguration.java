@@ -1,12 +1,16 @@
 package solcolator.solr;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import solcolator.config.ConfigField;
 import solcolator.config.ConfigFieldType;
 import solcolator.config.SolrConfigurationInitializationException;
 import solcolator.config.SolrPluginConfigurationBase;
 import solcolator.luwak.LuwakMatcherFactory;
+import solcolator.luwak.LuwakPresearcherType;
+import solcolator.luwak.LuwakTermWeightPolicy;
 
 import org.apache.solr.common.util.NamedList;
 import org.slf4j.Logger;
@@ -23,7 +27,57 @@ import org.slf4j.LoggerFactory;
 	<str name="components"/>
 	
 	<!-- Factories for matching docs -->
-	<str name="matchFactory">simple</str> <!-- simple/highlighting -->
+	<str name="matchFactory">simple</str> <!-- simple/highlighting/partitioned/partitioned_highlighting -->
+	
+	<!-- Presearcher for selecting candidate queries (optional) -->
+	<str name="presearcher">matchall</str> <!-- matchall/termfiltered/multipass -->
+	<str name="presearcherWeightPolicy">tokenlength</str> <!-- tokenlength/uniform -->
+	<str name="presearcherExcludedFields">[comma separated list of fields which terms should be avoided by presearcher]</str>
+	<int name="presearcherPasses">2</int> <!-- multipass only -->
+	<float name="presearcherMinWeight">0</float> <!-- multipass only -->
+	
+	<!-- Keep monitor query index in a memory-mapped directory under the core's data dir (optional) -->
+	<bool name="persistentQueryIndex">false</bool>
+	
+	<!-- Bulk queries loading (optional) -->
+	<int name="loadThreads">[number of threads parsing queries in parallel, number of processors by default]</int>
+	<int name="loadBatchSize">5000</int> <!-- number of queries added to monitor with a single commit -->
+	
+	<!-- Queries with NOW date math are resolved at match time with NOW rounded to nowBucketMs (optional, 0 by default).
+		0 - NOW is resolved at parse time and all queries are refreshed daily at target time -->
+	<long name="nowBucketMs">0</long>
+	
+	<!-- REFRESH builds a new monitor in the background and swaps it in (optional, false by default) -->
+	<bool name="shadowRebuild">false</bool>
+	<int name="rebuildThreads">1</int> <!-- number of low priority threads parsing queries on rebuild -->
+	
+	<!-- Identical queries (after canonicalization) are matched once and their matches are fanned out to all of them (optional, false by default) -->
+	<bool name="deduplicateQueries">false</bool>
+	
+	<!-- Requests with up to smallBatchMaxSize docs are matched doc by doc through an in-memory single doc index (optional) -->
+	<int name="smallBatchMaxSize">1</int>
+	
+	<!-- Cross-request batching: documents of many requests are matched together (optional, disabled by default) -->
+	<int name="batchingMaxDocs">1000</int>
+	<long name="batchingMaxBytes">67108864</long>
+	<long name="batchingMaxLatencyMs">0</long> <!-- 0 disables batching, e.g. 50 -->
+	
+	<!-- Big update requests are cut into sub-batches matched in a pipeline (optional, 0 - no limit by default) -->
+	<int name="subBatchMaxDocs">0</int>
+	<long name="subBatchMaxBytes">0</long>
+	
+	<!-- Unchanged documents aren't matched again (optional, 0 - disabled by default) -->
+	<long name="fingerprintCacheSize">0</long> <!-- max number of fingerprints, e.g. 1000000 -->
+	<long name="fingerprintCacheTtlSec">0</long> <!-- 0 - fingerprints don't expire -->
+	
+	<!-- Matching executors (optional) -->
+	<int name="dispatchThreads">[number of batches matched at the same time, number of processors by default]</int>
+	<int name="dispatchQueueSize">100</int> <!-- number of batches waiting for matching -->
+	<int name="matchThreads">[number of luwak matcher workers per batch, number of processors by default]</int>
+	<str name="overflowPolicy">block</str> <!-- block/caller_runs/spill, what to do when dispatch queue is full -->
+	
+	<!-- Change feed of the reader (see IQueryChangeFeed) is polled every changeFeedPollIntervalMs instead of watching the reader (optional, 0 - disabled by default) -->
+	<long name="changeFeedPollIntervalMs">0</long>
 
 	<lst name="reader">
 		<str name="class">solcolator.io.readers.FileReader</str>
@@ -82,6 +136,81 @@ public class SolcolatorUpdateProcessorConfiguration extends SolrPluginConfigurat
 	@ConfigField(fieldName = "matchFactory", fieldType = ConfigFieldType.STRING, isMandatory = true)
 	private String matchFactoryStr;
 	
+	@ConfigField(fieldName = "presearcher", fieldType = ConfigFieldType.STRING, isMandatory = false)
+	private String presearcherStr;
+	
+	@ConfigField(fieldName = "presearcherWeightPolicy", fieldType = ConfigFieldType.STRING, isMandatory = false)
+	private String presearcherWeightPolicyStr;
+	
+	@ConfigField(fieldName = "presearcherExcludedFields", fieldType = ConfigFieldType.STRING, isMandatory = false)
+	private String presearcherExcludedFieldsStr;
+	
+	@ConfigField(fieldName = "presearcherPasses", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer presearcherPasses;
+	
+	@ConfigField(fieldName = "presearcherMinWeight", fieldType = ConfigFieldType.FLOAT, isMandatory = false)
+	private Float presearcherMinWeight;
+	
+	@ConfigField(fieldName = "persistentQueryIndex", fieldType = ConfigFieldType.BOOLEAN, isMandatory = false)
+	private Boolean persistentQueryIndex;
+	
+	@ConfigField(fieldName = "loadThreads", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer loadThreads;
+	
+	@ConfigField(fieldName = "loadBatchSize", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer loadBatchSize;
+	
+	@ConfigField(fieldName = "nowBucketMs", fieldType = ConfigFieldType.LONG, isMandatory = false)
+	private Long nowBucketMs;
+	
+	@ConfigField(fieldName = "shadowRebuild", fieldType = ConfigFieldType.BOOLEAN, isMandatory = false)
+	private Boolean shadowRebuild;
+	
+	@ConfigField(fieldName = "rebuildThreads", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer rebuildThreads;
+	
+	@ConfigField(fieldName = "deduplicateQueries", fieldType = ConfigFieldType.BOOLEAN, isMandatory = false)
+	private Boolean deduplicateQueries;
+	
+	@ConfigField(fieldName = "smallBatchMaxSize", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer smallBatchMaxSize;
+	
+	@ConfigField(fieldName = "batchingMaxDocs", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer batchingMaxDocs;
+	
+	@ConfigField(fieldName = "batchingMaxBytes", fieldType = ConfigFieldType.LONG, isMandatory = false)
+	private Long batchingMaxBytes;
+	
+	@ConfigField(fieldName = "batchingMaxLatencyMs", fieldType = ConfigFieldType.LONG, isMandatory = false)
+	private Long batchingMaxLatencyMs;
+	
+	@ConfigField(fieldName = "subBatchMaxDocs", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer subBatchMaxDocs;
+	
+	@ConfigField(fieldName = "subBatchMaxBytes", fieldType = ConfigFieldType.LONG, isMandatory = false)
+	private Long subBatchMaxBytes;
+	
+	@ConfigField(fieldName = "fingerprintCacheSize", fieldType = ConfigFieldType.LONG, isMandatory = false)
+	private Long fingerprintCacheSize;
+	
+	@ConfigField(fieldName = "fingerprintCacheTtlSec", fieldType = ConfigFieldType.LONG, isMandatory = false)
+	private Long fingerprintCacheTtlSec;
+	
+	@ConfigField(fieldName = "dispatchThreads", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer dispatchThreads;
+	
+	@ConfigField(fieldName = "dispatchQueueSize", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer dispatchQueueSize;
+	
+	@ConfigField(fieldName = "matchThreads", fieldType = ConfigFieldType.INT, isMandatory = false)
+	private Integer matchThreads;
+	
+	@ConfigField(fieldName = "overflowPolicy", fieldType = ConfigFieldType.STRING, isMandatory = false)
+	private String overflowPolicyStr;
+	
+	@ConfigField(fieldName = "changeFeedPollIntervalMs", fieldType = ConfigFieldType.LONG, isMandatory = false)
+	private Long changeFeedPollIntervalMs;
+	
 	@ConfigField(fieldName = "reader", fieldType = ConfigFieldType.NAMED_LIST, isMandatory = true)
 	private NamedList<?> reader;
 	
@@ -90,6 +219,10 @@ public class SolcolatorUpdateProcessorConfiguration extends SolrPluginConfigurat
 	
 	private List<String> components;
 	private LuwakMatcherFactory matchFactory;
+	private LuwakPresearcherType presearcherType;
+	private LuwakTermWeightPolicy presearcherWeightPolicy;
+	private Set<String> presearcherExcludedFields;
+	private SolcolatorOverflowPolicy overflowPolicy;
 	
 	public SolcolatorUpdateProcessorConfiguration(NamedList<?> args) throws SolrConfigurationInitializationException {
 		super(args);
@@ -100,6 +233,50 @@ public class SolcolatorUpdateProcessorConfiguration extends SolrPluginConfigurat
 	public void setAndValidateConfig(NamedList<?> args) {		
 		try {
 			matchFactory = LuwakMatcherFactory.get(matchFactoryStr);
+			presearcherType = presearcherStr == null ? LuwakPresearcherType.MATCHALL : LuwakPresearcherType.get(presearcherStr);
+			presearcherWeightPolicy = presearcherWeightPolicyStr == null ? LuwakTermWeightPolicy.TOKENLENGTH : LuwakTermWeightPolicy.get(presearcherWeightPolicyStr);
+			presearcherExcludedFields = new HashSet<>();
+			if (presearcherExcludedFieldsStr != null) {
+				for (String field : presearcherExcludedFieldsStr.split(",")) {
+					if (!field.trim().isEmpty()) {
+						presearcherExcludedFields.add(field.trim());
+					}
+				}
+			}
+			presearcherPasses = presearcherPasses == null ? 2 : presearcherPasses;
+			presearcherMinWeight = presearcherMinWeight == null ? 0f : presearcherMinWeight;
+			persistentQueryIndex = persistentQueryIndex == null ? false : persistentQueryIndex;
+			loadThreads = loadThreads == null ? Runtime.getRuntime().availableProcessors() : loadThreads;
+			loadBatchSize = loadBatchSize == null ? 5000 : loadBatchSize;
+			nowBucketMs = nowBucketMs == null ? 0L : nowBucketMs;
+			shadowRebuild = shadowRebuild == null ? false : shadowRebuild;
+			rebuildThreads = rebuildThreads == null ? 1 : rebuildThreads;
+			deduplicateQueries = deduplicateQueries == null ? false : deduplicateQueries;
+			smallBatchMaxSize = smallBatchMaxSize == null ? 1 : smallBatchMaxSize;
+			batchingMaxDocs = batchingMaxDocs == null ? 1000 : batchingMaxDocs;
+			batchingMaxBytes = batchingMaxBytes == null ? 64L * 1024 * 1024 : batchingMaxBytes;
+			batchingMaxLatencyMs = batchingMaxLatencyMs == null ? 0L : batchingMaxLatencyMs;
+			subBatchMaxDocs = subBatchMaxDocs == null ? 0 : subBatchMaxDocs;
+			subBatchMaxBytes = subBatchMaxBytes == null ? 0L : subBatchMaxBytes;
+			fingerprintCacheSize = fingerprintCacheSize == null ? 0L : fingerprintCacheSize;
+			fingerprintCacheTtlSec = fingerprintCacheTtlSec == null ? 0L : fingerprintCacheTtlSec;
+			dispatchThreads = dispatchThreads == null ? Runtime.getRuntime().availableProcessors() : dispatchThreads;
+			dispatchQueueSize = dispatchQueueSize == null ? 100 : dispatchQueueSize;
+			matchThreads = matchThreads == null ? Runtime.getRuntime().availableProcessors() : matchThreads;
+			overflowPolicy = overflowPolicyStr == null ? SolcolatorOverflowPolicy.BLOCK : SolcolatorOverflowPolicy.get(overflowPolicyStr);
+			changeFeedPollIntervalMs = changeFeedPollIntervalMs == null ? 0L : changeFeedPollIntervalMs;
+			
+			if (loadThreads <= 0 || loadBatchSize <= 0) {
+				throw new Exception("loadThreads and loadBatchSize must be positive");
+			}
+			
+			if (rebuildThreads <= 0) {
+				throw new Exception("rebuildThreads must be positive");
+			}
+			
+			if (dispatchThreads <= 0 || dispatchQueueSize <= 0 || matchThreads <= 0) {
+				throw new Exception("dispatchThreads, dispatchQueueSize and matchThreads must be positive");
+			}
 		} catch(Exception ex) {
 			String errMsg = "Config validation is failed";
 			log.error(errMsg, ex);
@@ -128,6 +305,106 @@ public class SolcolatorUpdateProcessorConfiguration extends SolrPluginConfigurat
 		return matchFactory;
 	}
 	
+	public LuwakPresearcherType getPresearcherType() {
+		return presearcherType;
+	}
+	
+	public LuwakTermWeightPolicy getPresearcherWeightPolicy() {
+		return presearcherWeightPolicy;
+	}
+	
+	public Set<String> getPresearcherExcludedFields() {
+		return presearcherExcludedFields;
+	}
+	
+	public int getPresearcherPasses() {
+		return presearcherPasses;
+	}
+	
+	public float getPresearcherMinWeight() {
+		return presearcherMinWeight;
+	}
+	
+	public boolean isPersistentQueryIndex() {
+		return persistentQueryIndex;
+	}
+	
+	public int getLoadThreads() {
+		return loadThreads;
+	}
+	
+	public int getLoadBatchSize() {
+		return loadBatchSize;
+	}
+	
+	public long getNowBucketMs() {
+		return nowBucketMs;
+	}
+	
+	public boolean isShadowRebuild() {
+		return shadowRebuild;
+	}
+	
+	public int getRebuildThreads() {
+		return rebuildThreads;
+	}
+	
+	public boolean isDeduplicateQueries() {
+		return deduplicateQueries;
+	}
+	
+	public int getSmallBatchMaxSize() {
+		return smallBatchMaxSize;
+	}
+	
+	public int getBatchingMaxDocs() {
+		return batchingMaxDocs;
+	}
+	
+	public long getBatchingMaxBytes() {
+		return batchingMaxBytes;
+	}
+	
+	public long getBatchingMaxLatencyMs() {
+		return batchingMaxLatencyMs;
+	}
+	
+	public int getSubBatchMaxDocs() {
+		return subBatchMaxDocs;
+	}
+	
+	public long getSubBatchMaxBytes() {
+		return subBatchMaxBytes;
+	}
+	
+	public long getFingerprintCacheSize() {
+		return fingerprintCacheSize;
+	}
+	
+	public long getFingerprintCacheTtlSec() {
+		return fingerprintCacheTtlSec;
+	}
+	
+	public int getDispatchThreads() {
+		return dispatchThreads;
+	}
+	
+	public int getDispatchQueueSize() {
+		return dispatchQueueSize;
+	}
+	
+	public int getMatchThreads() {
+		return matchThreads;
+	}
+	
+	public SolcolatorOverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	public long getChangeFeedPollIntervalMs() {
+		return changeFeedPollIntervalMs;
+	}
+	
 	public NamedList<?> getReader() {
 		return this.getNamedListParameter("reader", true);
 	}
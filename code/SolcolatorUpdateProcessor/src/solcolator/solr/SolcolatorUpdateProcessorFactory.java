@@ -2,15 +2,13 @@ package solcolator.solr;
 
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import solcolator.common.IScheduledTask;
 import solcolator.common.ScheduledTaskExecutor;
 import solcolator.io.IOFactoryWithReflection;
 import solcolator.io.api.ISolcolatorResultsWriter;
 import solcolator.io.api.IQueryReader;
+import solcolator.luwak.LuwakFilterCache;
 import solcolator.luwak.LuwakQueriesManager;
 
 import org.apache.solr.common.util.NamedList;
@@ -24,12 +22,21 @@ import org.apache.solr.util.plugin.SolrCoreAware;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.co.flax.luwak.Presearcher;
+
 public class SolcolatorUpdateProcessorFactory  extends UpdateRequestProcessorFactory implements SolrCoreAware {
 	private final static Logger log = LoggerFactory.getLogger(SolcolatorUpdateProcessorFactory.class);
+	private final static String EXECUTORS_STATISTICS = "executorsStatistics";
+	private final static String FILTER_CACHE_STATISTICS = "filterCacheStatistics";
+	private final static String FINGERPRINT_CACHE_STATISTICS = "fingerprintCacheStatistics";
 	
 	private SolcolatorUpdateProcessorConfiguration config;
-	private ExecutorService execService = Executors.newCachedThreadPool();
+	private SolcolatorExecutors executors;
 	private LuwakQueriesManager manager;
+	private SolcolatorMatchingBatcher batcher;
+	private SolcolatorAnalyzerCache analyzerCache = new SolcolatorAnalyzerCache();
+	private SolcolatorFieldsProjection fieldsProjection;
+	private SolcolatorFingerprintCache fingerprintCache;	// null - disabled
 	private ScheduledTaskExecutor scheduledTaskExecutor; //scheduling queries refresh
 		
 	@SuppressWarnings("rawtypes")
@@ -45,10 +52,34 @@ public class SolcolatorUpdateProcessorFactory  extends UpdateRequestProcessorFac
 			IOFactoryWithReflection factory = new IOFactoryWithReflection(config.getReader(), config.getWriters());	
 			IQueryReader queryReader = factory.getQueryReader();			
 			List<ISolcolatorResultsWriter> solcolatorResultsWriters = factory.getWriters();
+			fieldsProjection = new SolcolatorFieldsProjection(solcolatorResultsWriters);
 
 			List<String> componentsToParser = config.getComponents();
+			Presearcher presearcher = config.getPresearcherType().createPresearcher(
+					config.getPresearcherWeightPolicy().createTreeWeightor(config.getPresearcherExcludedFields()),
+					config.getPresearcherPasses(),
+					config.getPresearcherMinWeight());
+			
+			manager.init(queryReader, solcolatorResultsWriters, componentsToParser, presearcher,
+					config.isPersistentQueryIndex(), config.getLoadThreads(), config.getLoadBatchSize(),
+					config.isShadowRebuild(), config.getRebuildThreads(), config.getNowBucketMs(),
+					config.isDeduplicateQueries(), config.getChangeFeedPollIntervalMs());
+			
+			executors = new SolcolatorExecutors(config.getDispatchThreads(), config.getDispatchQueueSize(),
+					config.getMatchThreads(), config.getOverflowPolicy());
+			manager.registerStatistics(EXECUTORS_STATISTICS, executors::getStatistics);
+			manager.registerStatistics(FILTER_CACHE_STATISTICS, LuwakFilterCache::getStatistics);
+			
+			if (config.getFingerprintCacheSize() > 0) {
+				fingerprintCache = new SolcolatorFingerprintCache(config.getFingerprintCacheSize(), config.getFingerprintCacheTtlSec());
+				manager.registerStatistics(FINGERPRINT_CACHE_STATISTICS, fingerprintCache::getStatistics);
+			}
+			
+			SolcolatorDocumentsMatcher matcher = new SolcolatorDocumentsMatcher(executors, manager, config.getMatcherFactory(),
+					config.getSmallBatchMaxSize(), fingerprintCache);
+			batcher = new SolcolatorMatchingBatcher(matcher, executors,
+					config.getBatchingMaxDocs(), config.getBatchingMaxBytes(), config.getBatchingMaxLatencyMs());
 			
-			manager.init(queryReader, solcolatorResultsWriters, componentsToParser);
 			scheduledTaskExecutor = new ScheduledTaskExecutor(new IScheduledTask() {				
 				
 				@Override
@@ -67,16 +98,26 @@ public class SolcolatorUpdateProcessorFactory  extends UpdateRequestProcessorFac
 
 	@Override
 	public UpdateRequestProcessor getInstance(SolrQueryRequest solrQueryRequest, SolrQueryResponse solrQueryResponse, UpdateRequestProcessor next) {
-		return new SolcolatorUpdateProcessor(next, execService, manager, config.getMatcherFactory());
+		return new SolcolatorUpdateProcessor(next, batcher, analyzerCache, fieldsProjection,
+				config.getSubBatchMaxDocs(), config.getSubBatchMaxBytes(), fingerprintCache);
     }
 
 	@Override
 	public void inform(SolrCore core) {
 		manager.createMonitor(core);
 		Map<String, String> reqHandlerMetadata = SolcolatorQueriesRequestHander.getRequestHandlerMetadata(core);
-		manager.loadQueriesToSolcolator(reqHandlerMetadata);
+		if (!manager.resumeQueries(reqHandlerMetadata)) {
+			manager.loadQueriesToSolcolator(reqHandlerMetadata);
+		}
 		
-		scheduledTaskExecutor.startExecutionAt();
+		manager.watchQueries(reqHandlerMetadata);
+		manager.pollChangeFeed(reqHandlerMetadata);
+		
+		if (config.getNowBucketMs() > 0) {
+			log.info("Queries with NOW are resolved at match time, daily queries refresh isn't scheduled");
+		} else {
+			scheduledTaskExecutor.startExecutionAt();
+		}
 		
 		core.addCloseHook(new CloseHook() {
 			
@@ -85,18 +126,8 @@ public class SolcolatorUpdateProcessorFactory  extends UpdateRequestProcessorFac
 			
 			@Override
 			public void postClose(SolrCore core) {
-				try {
-		    		execService.shutdown();
-		    		execService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-				} catch (InterruptedException e) {
-					log.error("Stopping of executors service is interrupted");
-				} finally {
-					if (!execService.isTerminated()) {
-						log.error("Stopping of executors service is interrupted: cancel non-finished tasks");
-					}
-
-					execService.shutdownNow();
-				}	
+				batcher.close();
+				executors.shutdown();
 				
 				manager.close();
 			}
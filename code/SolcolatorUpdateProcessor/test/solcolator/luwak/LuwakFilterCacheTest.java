@@ -0,0 +1,92 @@
+package solcolator.luwak;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.junit.Test;
+
+import uk.co.flax.luwak.InputDocument;
+
+public class LuwakFilterCacheTest {
+	private static LuwakDocumentBatch batch() {
+		StandardAnalyzer analyzer = new StandardAnalyzer();
+		InputDocument red = InputDocument.builder("1").addField("color", "red", analyzer).addField("text", "apple", analyzer).build();
+		InputDocument green = InputDocument.builder("2").addField("color", "green", analyzer).addField("text", "apple pear", analyzer).build();
+
+		return new LuwakDocumentBatch(Arrays.asList(red, green), new ClassicSimilarity());
+	}
+
+	private static Query filtered(String text) {
+		return new BooleanQuery.Builder()
+				.add(new TermQuery(new Term("text", text)), Occur.MUST)
+				.add(new LuwakFilterQuery(new TermQuery(new Term("color", "red"))), Occur.FILTER)
+				.build();
+	}
+
+	@Test
+	public void equalFiltersAreEvaluatedOncePerBatch() throws Exception {
+		try (LuwakDocumentBatch batch = batch()) {
+			IndexSearcher searcher = batch.getSearcher();
+			LuwakFilterCache cache = LuwakFilterCache.get(batch.getIndexReader());
+			assertNotNull(cache);
+
+			assertEquals(1, searcher.count(filtered("apple")));
+			assertEquals(0, searcher.count(filtered("pear")));
+
+			assertEquals(1, cache.getMisses());
+			assertEquals(1, cache.getHits());
+		}
+	}
+
+	@Test
+	public void cachesAreNotSharedBetweenBatches() throws Exception {
+		try (LuwakDocumentBatch first = batch(); LuwakDocumentBatch second = batch()) {
+			first.getSearcher().count(filtered("apple"));
+
+			assertEquals(1, LuwakFilterCache.get(first.getIndexReader()).getMisses());
+			assertEquals(0, LuwakFilterCache.get(second.getIndexReader()).getMisses());
+		}
+	}
+
+	@Test
+	public void filterIsEvaluatedWithoutBatch() throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+			InputDocument doc = InputDocument.builder("1").addField("color", "red", new StandardAnalyzer()).addField("text", "apple", new StandardAnalyzer()).build();
+			writer.addDocument(doc.getDocument());
+		}
+
+		try (DirectoryReader reader = DirectoryReader.open(directory)) {
+			LeafReader leaf = reader.leaves().get(0).reader();
+			assertNull(LuwakFilterCache.get(leaf));
+			assertEquals(1, new IndexSearcher(reader).count(filtered("apple")));
+		}
+	}
+
+	@Test
+	public void closedBatchAccountsItsStatistics() throws Exception {
+		long batches = (Long) LuwakFilterCache.getStatistics().get("batches");
+		try (LuwakDocumentBatch batch = batch()) {
+			batch.getSearcher().count(filtered("apple"));
+		}
+
+		assertTrue((Long) LuwakFilterCache.getStatistics().get("batches") > batches);
+	}
+}
@@ -0,0 +1,200 @@
+package solcolator.luwak;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LuwakPersistentMapTest {
+	@Test
+	public void plusAndGet() {
+		LuwakPersistentMap<String, Integer> map = LuwakPersistentMap.<String, Integer>empty().plus("a", 1).plus("b", 2);
+
+		assertEquals(2, map.size());
+		assertEquals(Integer.valueOf(1), map.get("a"));
+		assertEquals(Integer.valueOf(2), map.get("b"));
+		assertNull(map.get("c"));
+		assertTrue(map.containsKey("a"));
+		assertFalse(map.containsKey("c"));
+	}
+
+	@Test
+	public void plusReplacesValueAndKeepsSize() {
+		LuwakPersistentMap<String, Integer> map = LuwakPersistentMap.<String, Integer>empty().plus("a", 1);
+		LuwakPersistentMap<String, Integer> replaced = map.plus("a", 2);
+
+		assertEquals(1, replaced.size());
+		assertEquals(Integer.valueOf(2), replaced.get("a"));
+		assertEquals(Integer.valueOf(1), map.get("a"));
+		assertSame(replaced, replaced.plus("a", replaced.get("a")));
+	}
+
+	@Test
+	public void minusOfMissingKeyReturnsSameMap() {
+		LuwakPersistentMap<String, Integer> map = LuwakPersistentMap.<String, Integer>empty().plus("a", 1);
+
+		assertSame(map, map.minus("b"));
+		assertSame(map, map.minus(null));
+		assertSame(LuwakPersistentMap.empty(), LuwakPersistentMap.empty().minus("a"));
+	}
+
+	@Test
+	public void minusDownToEmpty() {
+		LuwakPersistentMap<Integer, Integer> map = LuwakPersistentMap.empty();
+		for (int i = 0; i < 2000; i++) {
+			map = map.plus(i, i);
+		}
+
+		for (int i = 0; i < 2000; i++) {
+			map = map.minus(i);
+			assertEquals(1999 - i, map.size());
+			assertNull(map.get(i));
+		}
+
+		assertSame(LuwakPersistentMap.empty(), map);
+		assertFalse(map.entrySet().iterator().hasNext());
+	}
+
+	@Test
+	public void collidingKeys() {
+		// the same hash: a collision node
+		CollidingKey a = new CollidingKey(7, "a");
+		CollidingKey b = new CollidingKey(7, "b");
+		CollidingKey c = new CollidingKey(7, "c");
+		// the same lowest 5 bits, another hash: the collision node moves a level down
+		CollidingKey d = new CollidingKey(7 + (1 << 5), "d");
+
+		LuwakPersistentMap<CollidingKey, String> map = LuwakPersistentMap.<CollidingKey, String>empty()
+				.plus(a, "a").plus(b, "b").plus(c, "c").plus(d, "d");
+
+		assertEquals(4, map.size());
+		assertEquals("a", map.get(a));
+		assertEquals("b", map.get(b));
+		assertEquals("c", map.get(c));
+		assertEquals("d", map.get(d));
+		assertNull(map.get(new CollidingKey(7, "e")));
+		assertEquals("b2", map.plus(b, "b2").get(b));
+		assertEquals(4, map.plus(b, "b2").size());
+
+		LuwakPersistentMap<CollidingKey, String> removed = map.minus(b);
+		assertEquals(3, removed.size());
+		assertNull(removed.get(b));
+		assertEquals("a", removed.get(a));
+		assertEquals("c", removed.get(c));
+		assertEquals("b", map.get(b));
+
+		assertSame(LuwakPersistentMap.empty(), removed.minus(a).minus(c).minus(d));
+	}
+
+	@Test
+	public void iterationVisitsEveryEntryOnce() {
+		Map<Object, Integer> expected = new HashMap<>();
+		LuwakPersistentMap<Object, Integer> map = LuwakPersistentMap.empty();
+		for (int i = 0; i < 1000; i++) {
+			Object key = i % 3 == 0 ? new CollidingKey(i % 10, String.valueOf(i)) : "key" + i;
+			expected.put(key, i);
+			map = map.plus(key, i);
+		}
+
+		Map<Object, Integer> iterated = new HashMap<>();
+		for (Map.Entry<Object, Integer> entry : map.entrySet()) {
+			assertNull(iterated.put(entry.getKey(), entry.getValue()));
+		}
+
+		assertEquals(expected, iterated);
+		assertEquals(expected, map);
+		assertEquals(expected.hashCode(), map.hashCode());
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void exhaustedIteratorThrows() {
+		Iterator<Map.Entry<String, Integer>> iterator = LuwakPersistentMap.<String, Integer>empty().plus("a", 1).entrySet().iterator();
+		iterator.next();
+		iterator.next();
+	}
+
+	@Test
+	public void randomChangesMatchHashMapAndKeepSnapshots() {
+		Random random = new Random(42);
+		Map<Object, Integer> expected = new HashMap<>();
+		LuwakPersistentMap<Object, Integer> map = LuwakPersistentMap.empty();
+		List<Map<Object, Integer>> expectedSnapshots = new ArrayList<>();
+		List<LuwakPersistentMap<Object, Integer>> snapshots = new ArrayList<>();
+
+		for (int i = 0; i < 50000; i++) {
+			// few distinct hashes shifted to random levels force collisions and deep paths
+			Object key = random.nextBoolean() ? "q" + random.nextInt(3000)
+					: new CollidingKey(random.nextInt(30) << random.nextInt(28), String.valueOf(random.nextInt(100)));
+			if (random.nextInt(3) == 0) {
+				expected.remove(key);
+				map = map.minus(key);
+			} else {
+				int value = random.nextInt(10);
+				expected.put(key, value);
+				map = map.plus(key, value);
+			}
+
+			assertEquals(expected.size(), map.size());
+			if (i % 5000 == 0) {
+				expectedSnapshots.add(new HashMap<>(expected));
+				snapshots.add(map);
+			}
+		}
+
+		assertEquals(expected, map);
+		for (int i = 0; i < snapshots.size(); i++) {
+			assertEquals(expectedSnapshots.get(i), snapshots.get(i));
+		}
+
+		for (Object key : expected.keySet()) {
+			map = map.minus(key);
+		}
+
+		assertSame(LuwakPersistentMap.empty(), map);
+	}
+
+	/**
+	 * Key with a given hash code
+	 */
+	private static class CollidingKey {
+		private final int hash;
+		private final String name;
+
+		private CollidingKey(int hash, String name) {
+			this.hash = hash;
+			this.name = name;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CollidingKey)) {
+				return false;
+			}
+
+			CollidingKey other = (CollidingKey) obj;
+
+			return hash == other.hash && name.equals(other.name);
+		}
+
+		@Override
+		public String toString() {
+			return hash + "/" + name;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package solcolator.luwak;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class LuwakPersistentSetTest {
+	@Test
+	public void plusAndMinus() {
+		LuwakPersistentSet<String> set = LuwakPersistentSet.<String>empty().plus("a").plus("b");
+		LuwakPersistentSet<String> withoutA = set.minus("a");
+
+		assertEquals(new HashSet<>(Arrays.asList("a", "b")), set);
+		assertEquals(Collections.singleton("b"), withoutA);
+		assertTrue(set.contains("a"));
+		assertFalse(withoutA.contains("a"));
+	}
+
+	@Test
+	public void unchangedSetIsReturnedAsIs() {
+		LuwakPersistentSet<String> set = LuwakPersistentSet.<String>empty().plus("a");
+
+		assertSame(set, set.plus("a"));
+		assertSame(set, set.minus("b"));
+	}
+
+	@Test
+	public void removalOfLastElementReturnsEmptySet() {
+		LuwakPersistentSet<String> set = LuwakPersistentSet.<String>empty().plus("a").minus("a");
+
+		assertSame(LuwakPersistentSet.empty(), set);
+		assertTrue(set.isEmpty());
+		assertFalse(set.iterator().hasNext());
+	}
+}
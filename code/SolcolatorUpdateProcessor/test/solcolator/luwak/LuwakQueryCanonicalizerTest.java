@@ -0,0 +1,56 @@
+package solcolator.luwak;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LuwakQueryCanonicalizerTest {
+	private final LuwakQueryCanonicalizer canonicalizer = new LuwakQueryCanonicalizer();
+
+	@Test
+	public void paramsOrderAndWhitespaceAreIgnored() {
+		String canonicalId = canonicalizer.getCanonicalId("q=title:solr&fq=type:book&fq=lang:en", null);
+
+		assertEquals(canonicalId, canonicalizer.getCanonicalId("fq=lang:en&q=title:solr&fq=type:book", null));
+		assertEquals(canonicalId, canonicalizer.getCanonicalId("  q=title:solr &fq=type:book&&fq=lang:en  ", null));
+		assertTrue(canonicalId.startsWith("c_"));
+	}
+
+	@Test
+	public void innerWhitespaceIsCollapsed() {
+		assertEquals(canonicalizer.getCanonicalId("q=title:solr AND type:book", null),
+				canonicalizer.getCanonicalId("q=title:solr  \t AND\ntype:book", null));
+	}
+
+	@Test
+	public void differentQueriesGetDifferentIds() {
+		assertNotEquals(canonicalizer.getCanonicalId("q=title:solr", null), canonicalizer.getCanonicalId("q=title:lucene", null));
+		assertNotEquals(canonicalizer.getCanonicalId("q=title:solr&fq=a:1", null), canonicalizer.getCanonicalId("q=title:solr", null));
+	}
+
+	@Test
+	public void metadataIsPartOfCanonicalForm() {
+		Map<String, String> metadata = new LinkedHashMap<>();
+		metadata.put("fl", "id,title");
+		metadata.put("owner", "x");
+		Map<String, String> reorderedMetadata = new LinkedHashMap<>();
+		reorderedMetadata.put("owner", " x ");
+		reorderedMetadata.put("fl", "id,title");
+
+		assertEquals(canonicalizer.canonicalize("q=title:solr", metadata), canonicalizer.canonicalize("q=title:solr", reorderedMetadata));
+		assertNotEquals(canonicalizer.getCanonicalId("q=title:solr", metadata), canonicalizer.getCanonicalId("q=title:solr", null));
+		assertNotEquals(canonicalizer.getCanonicalId("q=title:solr", metadata),
+				canonicalizer.getCanonicalId("q=title:solr", Collections.singletonMap("fl", "id")));
+	}
+
+	@Test
+	public void canonicalFormIsSorted() {
+		assertEquals("fl=id&fq=a:1&q=x", canonicalizer.canonicalize("q=x&fq=a:1", Collections.singletonMap("fl", "id")));
+	}
+}
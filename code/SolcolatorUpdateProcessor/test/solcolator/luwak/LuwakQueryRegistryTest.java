@@ -0,0 +1,171 @@
+package solcolator.luwak;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import uk.co.flax.luwak.MonitorQuery;
+
+public class LuwakQueryRegistryTest {
+	@Test
+	public void changesPublishNewVersionAndKeepOldSnapshot() {
+		LuwakQueryRegistry empty = LuwakQueryRegistry.empty(null, null);
+		LuwakQueryRegistry registry = empty.withQueries(Arrays.asList(query("1", "q=a"), query("2", "q=b")));
+		LuwakQueryRegistry withoutFirst = registry.withoutQueries(Collections.singletonList("1"));
+
+		assertEquals(0, empty.size());
+		assertEquals(1, registry.getVersion());
+		assertEquals(2, registry.size());
+		assertEquals(2, withoutFirst.getVersion());
+		assertEquals(1, withoutFirst.size());
+		assertFalse(withoutFirst.containsQuery("1"));
+		assertTrue(registry.containsQuery("1"));
+		assertEquals("q=a", registry.getQuery("1").getQuery());
+	}
+
+	@Test
+	public void noChangesReturnSameSnapshot() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(null, null).withQueries(Collections.singletonList(query("1", "q=a")));
+
+		assertSame(registry, registry.withQueries(Collections.emptyList()));
+		assertSame(registry, registry.withoutQueries(Collections.singletonList("2")));
+	}
+
+	@Test
+	public void nextVersionKeepsQueries() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(null, null).withQueries(Collections.singletonList(query("1", "q=a")));
+		LuwakQueryRegistry next = registry.withNextVersion();
+
+		assertEquals(registry.getVersion() + 1, next.getVersion());
+		assertEquals(registry.getQueries(), next.getQueries());
+	}
+
+	@Test
+	public void replaceQueriesKeepsOnlyGivenQueries() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(null, null).withQueries(Arrays.asList(query("1", "q=a"), query("2", "q=b")));
+		LuwakQueryRegistry replaced = registry.replaceQueries(Arrays.asList(query("2", "q=c"), query("3", "q=d")));
+
+		assertEquals(new HashSet<>(Arrays.asList("2", "3")), replaced.getQueries().keySet());
+		assertEquals("q=c", replaced.getQuery("2").getQuery());
+		assertEquals(registry.getVersion() + 1, replaced.getVersion());
+	}
+
+	@Test
+	public void monitorIdIsQueryIdWithoutDeduplication() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(null, null).withQueries(Arrays.asList(query("1", "q=a"), query("2", "q=a")));
+
+		assertFalse(registry.isDeduplicated());
+		assertEquals("1", registry.getMonitorId("1"));
+		assertNull(registry.getMonitorId("3"));
+		assertEquals(Collections.singleton("1"), registry.getSubscribers("1"));
+		assertEquals(new HashSet<>(Arrays.asList("1", "2")), registry.getMonitorIds());
+		assertSame(registry.getQuery("1"), registry.getMonitorQuery("1"));
+	}
+
+	@Test
+	public void identicalQueriesShareMonitorQuery() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(new LuwakQueryCanonicalizer(), null)
+				.withQueries(Arrays.asList(query("1", "q=a&fq=b"), query("2", "fq=b&q=a"), query("3", "q=c")));
+		String monitorId = registry.getMonitorId("1");
+
+		assertTrue(registry.isDeduplicated());
+		assertEquals(monitorId, registry.getMonitorId("2"));
+		assertNotEquals(monitorId, registry.getMonitorId("3"));
+		assertEquals(new HashSet<>(Arrays.asList("1", "2")), registry.getSubscribers(monitorId));
+		assertEquals(2, registry.getMonitorIds().size());
+
+		MonitorQuery monitorQuery = registry.getMonitorQuery(monitorId);
+		assertEquals(monitorId, monitorQuery.getId());
+		assertEquals(monitorId, registry.createMonitorQuery(query("4", "q=a&fq=b")).getId());
+	}
+
+	@Test
+	public void lastSubscriberRemovesMonitorQuery() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(new LuwakQueryCanonicalizer(), null)
+				.withQueries(Arrays.asList(query("1", "q=a"), query("2", "q=a")));
+		String monitorId = registry.getMonitorId("1");
+
+		// the first subscriber changes to another canonical query, the second one is deleted
+		LuwakQueryRegistry changed = registry.withQueries(Collections.singletonList(query("1", "q=b")));
+		assertEquals(Collections.singleton("2"), changed.getSubscribers(monitorId));
+		assertEquals(Collections.singleton("1"), changed.getSubscribers(changed.getMonitorId("1")));
+
+		LuwakQueryRegistry deleted = changed.withoutQueries(Collections.singletonList("2"));
+		assertTrue(deleted.getSubscribers(monitorId).isEmpty());
+		assertNull(deleted.getMonitorQuery(monitorId));
+		assertFalse(deleted.getMonitorIds().contains(monitorId));
+		assertEquals(new HashSet<>(Arrays.asList("1", "2")), registry.getSubscribers(monitorId));
+	}
+
+	@Test
+	public void referencedFieldsAreCountedPerMonitorQuery() {
+		// the query text lists the fields it references
+		LuwakQueryRegistry empty = LuwakQueryRegistry.empty(new LuwakQueryCanonicalizer(),
+				query -> new HashSet<>(Arrays.asList(query.getQuery().split(","))));
+		LuwakQueryRegistry registry = empty.withQueries(Arrays.asList(query("1", "a,b"), query("2", "a,b"), query("3", "b,c")));
+
+		assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), registry.getReferencedFields());
+
+		// "a" is kept while the shared monitor query has a subscriber
+		LuwakQueryRegistry withoutFirst = registry.withoutQueries(Collections.singletonList("1"));
+		assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), withoutFirst.getReferencedFields());
+
+		LuwakQueryRegistry withoutShared = withoutFirst.withoutQueries(Collections.singletonList("2"));
+		assertEquals(new HashSet<>(Arrays.asList("b", "c")), withoutShared.getReferencedFields());
+
+		LuwakQueryRegistry changed = withoutShared.withQueries(Collections.singletonList(query("3", "d")));
+		assertEquals(Collections.singleton("d"), changed.getReferencedFields());
+		assertTrue(changed.withoutQueries(Collections.singletonList("3")).getReferencedFields().isEmpty());
+	}
+
+	@Test
+	public void monitorQueriesAreIndexedByFields() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(null,
+				query -> query.getQuery().equals("*") ? LuwakQueryFields.ALL : new HashSet<>(Arrays.asList(query.getQuery().split(","))))
+				.withQueries(Arrays.asList(query("1", "a,b"), query("2", "b,c"), query("3", "*")));
+
+		assertEquals(new HashSet<>(Arrays.asList("1", "3")), registry.getMonitorIdsByFields(Collections.singleton("a")));
+		assertEquals(new HashSet<>(Arrays.asList("1", "2", "3")), registry.getMonitorIdsByFields(Arrays.asList("a", "c")));
+		// nothing changed: only queries which may reference any field
+		assertEquals(Collections.singleton("3"), registry.getMonitorIdsByFields(Collections.emptySet()));
+
+		LuwakQueryRegistry changed = registry.withQueries(Collections.singletonList(query("1", "c"))).withoutQueries(Collections.singletonList("3"));
+		assertTrue(changed.getMonitorIdsByFields(Collections.singleton("a")).isEmpty());
+		assertEquals(new HashSet<>(Arrays.asList("1", "2")), changed.getMonitorIdsByFields(Collections.singleton("c")));
+		assertEquals(new HashSet<>(Arrays.asList("b", "c")), changed.getReferencedFields());
+	}
+
+	@Test
+	public void renamedQueryKeepsMonitorQueryAndFields() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(new LuwakQueryCanonicalizer(),
+				query -> new HashSet<>(Arrays.asList(query.getQuery().split(","))))
+				.withQueries(Collections.singletonList(query("1", "a,b")));
+		LuwakQueryRegistry renamed = registry.withQueries(Collections.singletonList(new LuwakQuery("1", "renamed", "a,b", Collections.emptyMap())));
+
+		assertEquals("renamed", renamed.getQuery("1").getQueryName());
+		assertEquals(registry.getMonitorId("1"), renamed.getMonitorId("1"));
+		assertEquals(Collections.singleton("1"), renamed.getSubscribers(renamed.getMonitorId("1")));
+		assertEquals(registry.getReferencedFields(), renamed.getReferencedFields());
+	}
+
+	@Test
+	public void unknownFieldsDisablePruning() {
+		LuwakQueryRegistry registry = LuwakQueryRegistry.empty(null, null).withQueries(Collections.singletonList(query("1", "q=a")));
+
+		assertNull(registry.getReferencedFields());
+		assertTrue(registry.withoutQueries(Collections.singletonList("1")).getReferencedFields().isEmpty());
+	}
+
+	private static LuwakQuery query(String id, String query) {
+		return new LuwakQuery(id, "name" + id, query, Collections.emptyMap());
+	}
+}
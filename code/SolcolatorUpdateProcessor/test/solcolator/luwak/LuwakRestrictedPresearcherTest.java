@@ -0,0 +1,80 @@
+package solcolator.luwak;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.junit.Test;
+
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.Matches;
+import uk.co.flax.luwak.Monitor;
+import uk.co.flax.luwak.MonitorQuery;
+import uk.co.flax.luwak.QueryMatch;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+public class LuwakRestrictedPresearcherTest {
+	private static Monitor monitor() throws Exception {
+		Monitor monitor = new Monitor(new LuceneQueryParser("text"), new LuwakRestrictedPresearcher(new TermFilteredPresearcher()));
+		monitor.update(new MonitorQuery("apple", "apple"), new MonitorQuery("fruit", "apple fruit"), new MonitorQuery("pear", "pear"));
+
+		return monitor;
+	}
+
+	private static List<InputDocument> docs() {
+		StandardAnalyzer analyzer = new StandardAnalyzer();
+
+		return Arrays.asList(
+				InputDocument.builder("1").addField("text", "apple pear", analyzer).build(),
+				InputDocument.builder("2").addField("text", "apple", analyzer).build());
+	}
+
+	@Test
+	public void unrestrictedBatchRunsAllCandidates() throws Exception {
+		try (Monitor monitor = monitor(); DocumentBatch batch = new LuwakDocumentBatch(docs(), new ClassicSimilarity())) {
+			Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+
+			assertEquals(3, matches.getMatchCount("1"));
+			assertEquals(2, matches.getMatchCount("2"));
+		}
+	}
+
+	@Test
+	public void restrictedBatchRunsGivenQueriesOnly() throws Exception {
+		try (Monitor monitor = monitor();
+				DocumentBatch batch = LuwakRestrictedPresearcher.restrict(new LuwakDocumentBatch(docs(), new ClassicSimilarity()),
+						new ClassicSimilarity(), new HashSet<>(Arrays.asList("fruit", "pear")))) {
+			Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+
+			assertEquals(2, matches.getMatchCount("1"));
+			assertNull(matches.matches("apple", "1"));
+			assertNotNull(matches.matches("fruit", "2"));
+			assertEquals(1, matches.getMatchCount("2"));
+		}
+	}
+
+	@Test
+	public void restrictionLivesWithItsBatch() throws Exception {
+		try (Monitor monitor = monitor()) {
+			DocumentBatch restricted = LuwakRestrictedPresearcher.restrict(new LuwakSingleDocumentBatch(docs().get(1), new ClassicSimilarity()),
+					new ClassicSimilarity(), Collections.singleton("pear"));
+			assertEquals(0, monitor.match(restricted, SimpleMatcher.FACTORY).getMatchCount("2"));
+			restricted.close();
+
+			// a batch of the same documents built after the restricted one is closed isn't restricted
+			try (DocumentBatch batch = new LuwakSingleDocumentBatch(docs().get(1), new ClassicSimilarity())) {
+				assertEquals(2, monitor.match(batch, SimpleMatcher.FACTORY).getMatchCount("2"));
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package solcolator.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SolcolatorExecutorsTest {
+	private final CountDownLatch release = new CountDownLatch(1);
+	private SolcolatorExecutors executors;
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		if (executors != null) {
+			executors.shutdown();
+		}
+	}
+
+	@Test
+	public void dispatchRunsTaskOnDispatchPool() throws Exception {
+		executors = new SolcolatorExecutors(1, 1, 1, SolcolatorOverflowPolicy.BLOCK);
+		AtomicReference<Thread> thread = new AtomicReference<>();
+		CountDownLatch done = new CountDownLatch(1);
+
+		executors.dispatch(() -> {
+			thread.set(Thread.currentThread());
+			done.countDown();
+		});
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertNotSame(Thread.currentThread(), thread.get());
+		assertEquals(0L, getStatistic("rejectedTasks"));
+	}
+
+	@Test
+	public void callerRunsTaskWhenQueueIsFull() throws Exception {
+		executors = new SolcolatorExecutors(1, 1, 1, SolcolatorOverflowPolicy.CALLER_RUNS);
+		fillDispatchPool();
+		AtomicReference<Thread> thread = new AtomicReference<>();
+
+		executors.dispatch(() -> thread.set(Thread.currentThread()));
+
+		assertSame(Thread.currentThread(), thread.get());
+		assertEquals(1L, getStatistic("rejectedTasks"));
+		assertEquals(1L, getStatistic("callerRunTasks"));
+	}
+
+	@Test
+	public void spillRunsTaskOnSpillThreadWhenQueueIsFull() throws Exception {
+		executors = new SolcolatorExecutors(1, 1, 1, SolcolatorOverflowPolicy.SPILL);
+		fillDispatchPool();
+		CountDownLatch done = new CountDownLatch(1);
+
+		executors.dispatch(done::countDown);
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(1L, getStatistic("spilledTasks"));
+		assertEquals(0L, getStatistic("blockedTasks"));
+	}
+
+	@Test
+	public void blockWaitsForFreePlaceInQueue() throws Exception {
+		executors = new SolcolatorExecutors(1, 1, 1, SolcolatorOverflowPolicy.BLOCK);
+		fillDispatchPool();
+		CountDownLatch done = new CountDownLatch(1);
+
+		Thread dispatcher = new Thread(() -> executors.dispatch(done::countDown));
+		dispatcher.start();
+		waitForBlockedTask();
+		assertEquals(1L, done.getCount());
+
+		release.countDown();
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		dispatcher.join();
+	}
+
+	@Test
+	public void blockedDispatchIsRejectedOnShutdown() throws Exception {
+		executors = new SolcolatorExecutors(1, 1, 1, SolcolatorOverflowPolicy.BLOCK);
+		fillDispatchPool();
+		AtomicReference<Exception> error = new AtomicReference<>();
+
+		Thread dispatcher = startDispatcher(error);
+		waitForBlockedTask();
+
+		Thread shutdown = new Thread(executors::shutdown);
+		shutdown.start();
+		dispatcher.join(10000);
+		release.countDown();
+		shutdown.join(10000);
+		executors = null;
+
+		assertTrue(error.get() instanceof RejectedExecutionException);
+	}
+
+	@Test
+	public void interruptedBlockedDispatchIsDropped() throws Exception {
+		executors = new SolcolatorExecutors(1, 1, 1, SolcolatorOverflowPolicy.BLOCK);
+		fillDispatchPool();
+		AtomicReference<Exception> error = new AtomicReference<>();
+
+		Thread dispatcher = startDispatcher(error);
+		waitForBlockedTask();
+		dispatcher.interrupt();
+		dispatcher.join(10000);
+
+		assertTrue(error.get() instanceof RejectedExecutionException);
+		assertEquals(1L, getStatistic("droppedTasks"));
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void dispatchAfterShutdownIsRejected() {
+		executors = new SolcolatorExecutors(1, 1, 1, SolcolatorOverflowPolicy.CALLER_RUNS);
+		executors.shutdown();
+
+		executors.dispatch(() -> fail("Task was run after shutdown"));
+	}
+
+	/**
+	 * Occupy the only dispatch thread until release and fill the dispatch queue
+	 */
+	private void fillDispatchPool() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		executors.dispatch(() -> {
+			started.countDown();
+			awaitRelease();
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		executors.dispatch(this::awaitRelease);
+	}
+
+	private Thread startDispatcher(AtomicReference<Exception> error) {
+		Thread dispatcher = new Thread(() -> {
+			try {
+				executors.dispatch(() -> { });
+			} catch (RejectedExecutionException e) {
+				error.set(e);
+			}
+		});
+		dispatcher.start();
+
+		return dispatcher;
+	}
+
+	private void waitForBlockedTask() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (getStatistic("blockedTasks") == 0) {
+			assertTrue("Dispatch wasn't blocked", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+
+		Thread.sleep(50);	// the dispatcher waits in the queue
+	}
+
+	private void awaitRelease() {
+		try {
+			release.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private long getStatistic(String name) {
+		return (Long) executors.getStatistics().get(name);
+	}
+}
@@ -0,0 +1,107 @@
+package solcolator.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.solr.update.VersionInfo;
+import org.junit.Test;
+
+import solcolator.luwak.LuwakInputDocument;
+
+public class SolcolatorFingerprintCacheTest {
+	private final static PerFieldAnalyzerWrapper ANALYZERS = new PerFieldAnalyzerWrapper(new StandardAnalyzer());
+
+	private static Document doc(String title, String color) {
+		Document doc = new Document();
+		doc.add(new TextField("title", title, Field.Store.NO));
+		doc.add(new StringField("color", color, Field.Store.NO));
+
+		return doc;
+	}
+
+	private static void record(SolcolatorFingerprintCache cache, String id, Document doc, long queriesVersion) {
+		LuwakInputDocument luwakDoc = new LuwakInputDocument(id, doc, ANALYZERS, cache.fingerprint(doc), null);
+		cache.recordMatched(Collections.singletonList(luwakDoc), queriesVersion, 10);
+	}
+
+	@Test
+	public void fingerprintHashesEveryFieldExceptVersion() {
+		SolcolatorFingerprintCache cache = new SolcolatorFingerprintCache(10, 0);
+		Document versioned = doc("apple", "red");
+		versioned.add(new StringField(VersionInfo.VERSION_FIELD, "1", Field.Store.NO));
+		Map<String, Long> fingerprint = cache.fingerprint(versioned);
+
+		assertEquals(new HashSet<>(Arrays.asList("title", "color")), fingerprint.keySet());
+		assertEquals(fingerprint, cache.fingerprint(doc("apple", "red")));
+		assertNotEquals(fingerprint.get("color"), cache.fingerprint(doc("apple", "green")).get("color"));
+	}
+
+	@Test
+	public void unmatchedDocumentIsMatchedAgainstAllQueries() {
+		SolcolatorFingerprintCache cache = new SolcolatorFingerprintCache(10, 0);
+
+		assertNull(cache.getChangedFields("1", cache.fingerprint(doc("apple", "red")), 1));
+	}
+
+	@Test
+	public void changedQueriesMatchDocumentAgainstAllQueries() {
+		SolcolatorFingerprintCache cache = new SolcolatorFingerprintCache(10, 0);
+		record(cache, "1", doc("apple", "red"), 1);
+
+		assertNull(cache.getChangedFields("1", cache.fingerprint(doc("apple", "red")), 2));
+	}
+
+	@Test
+	public void unchangedDocumentHasNoChangedFields() {
+		SolcolatorFingerprintCache cache = new SolcolatorFingerprintCache(10, 0);
+		record(cache, "1", doc("apple", "red"), 1);
+
+		// empty, not null: only queries which may reference any field are run
+		assertTrue(cache.getChangedFields("1", cache.fingerprint(doc("apple", "red")), 1).isEmpty());
+	}
+
+	@Test
+	public void changedAddedAndRemovedFieldsAreReported() {
+		SolcolatorFingerprintCache cache = new SolcolatorFingerprintCache(10, 0);
+		record(cache, "1", doc("apple", "red"), 1);
+
+		assertEquals(Collections.singleton("color"), cache.getChangedFields("1", cache.fingerprint(doc("apple", "green")), 1));
+
+		Document withoutColor = new Document();
+		withoutColor.add(new TextField("title", "apple", Field.Store.NO));
+		withoutColor.add(new StringField("size", "big", Field.Store.NO));
+		assertEquals(new HashSet<>(Arrays.asList("color", "size")), cache.getChangedFields("1", cache.fingerprint(withoutColor), 1));
+	}
+
+	@Test
+	public void documentsWithoutFingerprintAreNotRecorded() {
+		SolcolatorFingerprintCache cache = new SolcolatorFingerprintCache(10, 0);
+		cache.recordMatched(Collections.singletonList(new LuwakInputDocument("1", doc("apple", "red"), ANALYZERS)), 1, 10);
+
+		assertNull(cache.getChangedFields("1", cache.fingerprint(doc("apple", "red")), 1));
+		assertEquals(1L, cache.getStatistics().get("matchedDocs"));
+	}
+
+	@Test
+	public void leastRecentlyUsedFingerprintsAreEvicted() {
+		SolcolatorFingerprintCache cache = new SolcolatorFingerprintCache(1, 0);
+		record(cache, "1", doc("apple", "red"), 1);
+		record(cache, "2", doc("pear", "green"), 1);
+
+		assertNull(cache.getChangedFields("1", cache.fingerprint(doc("apple", "red")), 1));
+		assertTrue(cache.getChangedFields("2", cache.fingerprint(doc("pear", "green")), 1).isEmpty());
+	}
+}
@@ -0,0 +1,173 @@
+package solcolator.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.After;
+import org.junit.Test;
+
+import uk.co.flax.luwak.InputDocument;
+
+public class SolcolatorMatchingBatcherTest {
+	private final static Similarity SIMILARITY = new BM25Similarity();
+	private final static long NO_LATENCY_FLUSH = TimeUnit.MINUTES.toMillis(10);
+
+	private final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<>();
+	private final SolcolatorExecutors executors = new SolcolatorExecutors(1, 10, 1, SolcolatorOverflowPolicy.BLOCK);
+	private SolcolatorMatchingBatcher batcher;
+
+	@After
+	public void tearDown() {
+		if (batcher != null) {
+			batcher.close();
+		}
+
+		executors.shutdown();
+	}
+
+	@Test
+	public void batchingDisabledMatchesEachRequest() throws Exception {
+		batcher = createBatcher(100, Long.MAX_VALUE, 0);
+
+		submit(SIMILARITY, "a:1", "b:1");
+		submit(SIMILARITY, "c:1");
+
+		assertEquals(Arrays.asList("a:1", "b:1"), nextBatch());
+		assertEquals(Arrays.asList("c:1"), nextBatch());
+	}
+
+	@Test
+	public void batchIsFlushedWhenMaxDocsAreGathered() throws Exception {
+		batcher = createBatcher(3, Long.MAX_VALUE, NO_LATENCY_FLUSH);
+
+		submit(SIMILARITY, "a:1", "b:1");
+		submit(SIMILARITY, "c:1", "d:1");
+		submit(SIMILARITY, "e:1");
+
+		assertEquals(Arrays.asList("a:1", "b:1", "c:1", "d:1"), nextBatch());
+		assertNull(batches.poll(50, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void batchIsFlushedWhenMaxBytesAreGathered() throws Exception {
+		batcher = createBatcher(100, 1, NO_LATENCY_FLUSH);
+
+		submit(SIMILARITY, "a:1");
+		submit(SIMILARITY, "b:1");
+
+		assertEquals(Arrays.asList("a:1"), nextBatch());
+		assertEquals(Arrays.asList("b:1"), nextBatch());
+	}
+
+	@Test
+	public void batchIsFlushedAfterLatencyWindow() throws Exception {
+		batcher = createBatcher(100, Long.MAX_VALUE, 20);
+
+		submit(SIMILARITY, "a:1");
+		submit(SIMILARITY, "b:1");
+
+		assertEquals(Arrays.asList("a:1", "b:1"), nextBatch());
+	}
+
+	@Test
+	public void everyVersionOfDocumentIsMatched() throws Exception {
+		batcher = createBatcher(100, Long.MAX_VALUE, NO_LATENCY_FLUSH);
+
+		submit(SIMILARITY, "a:1", "b:1");
+		submit(SIMILARITY, "c:1", "a:2", "d:1");
+		submit(SIMILARITY, "a:3");
+		batcher.flush();
+
+		assertEquals(Arrays.asList("a:1", "b:1", "c:1"), nextBatch());
+		assertEquals(Arrays.asList("a:2", "d:1"), nextBatch());
+		assertEquals(Arrays.asList("a:3"), nextBatch());
+	}
+
+	@Test
+	public void changedSimilarityFlushesBatch() throws Exception {
+		batcher = createBatcher(100, Long.MAX_VALUE, NO_LATENCY_FLUSH);
+
+		submit(SIMILARITY, "a:1");
+		submit(new ClassicSimilarity(), "b:1");
+		batcher.flush();
+
+		assertEquals(Arrays.asList("a:1"), nextBatch());
+		assertEquals(Arrays.asList("b:1"), nextBatch());
+	}
+
+	@Test
+	public void closeFlushesPendingDocuments() throws Exception {
+		batcher = createBatcher(100, Long.MAX_VALUE, NO_LATENCY_FLUSH);
+
+		submit(SIMILARITY, "a:1");
+		batcher.close();
+		batcher = null;
+
+		assertEquals(Arrays.asList("a:1"), nextBatch());
+	}
+
+	private SolcolatorMatchingBatcher createBatcher(int maxDocs, long maxBytes, long maxLatencyMs) {
+		return new SolcolatorMatchingBatcher(new RecordingMatcher(), executors, maxDocs, maxBytes, maxLatencyMs);
+	}
+
+	/**
+	 * @param docs - documents as id:version
+	 */
+	private void submit(Similarity similarity, String... docs) {
+		List<InputDocument> luwakDocs = new ArrayList<>();
+		Map<String, SolrInputDocument> solrDocs = new HashMap<>();
+		for (String doc : docs) {
+			String[] idAndVersion = doc.split(":");
+			luwakDocs.add(InputDocument.builder(idAndVersion[0]).addField("text", doc, new StandardAnalyzer()).build());
+
+			SolrInputDocument solrDoc = new SolrInputDocument();
+			solrDoc.addField("id", idAndVersion[0]);
+			solrDoc.addField("version", idAndVersion[1]);
+			solrDocs.put(idAndVersion[0], solrDoc);
+		}
+
+		batcher.submit(luwakDocs, solrDocs, similarity);
+	}
+
+	private List<String> nextBatch() throws InterruptedException {
+		List<String> batch = batches.poll(10, TimeUnit.SECONDS);
+		if (batch == null) {
+			throw new AssertionError("No batch was matched");
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Matcher recording matched documents as id:version
+	 */
+	private class RecordingMatcher extends SolcolatorDocumentsMatcher {
+		private RecordingMatcher() {
+			super(null, null, null, 0, null);
+		}
+
+		@Override
+		public void matchDocumentsList(List<InputDocument> documentsList, Map<String, SolrInputDocument> solrDocs, Similarity similarity) {
+			List<String> batch = new ArrayList<>();
+			for (InputDocument doc : documentsList) {
+				batch.add(doc.getId() + ":" + solrDocs.get(doc.getId()).getFieldValue("version"));
+			}
+
+			batches.add(batch);
+		}
+	}
+}